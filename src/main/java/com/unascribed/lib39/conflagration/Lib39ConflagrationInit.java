@@ -4,6 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
+import com.unascribed.lib39.core.api.StartupProfiler;
+
 import net.fabricmc.api.ModInitializer;
 
 public class Lib39ConflagrationInit implements ModInitializer {
@@ -13,10 +15,12 @@ public class Lib39ConflagrationInit implements ModInitializer {
 	
 	@Override
 	public void onInitialize() {
-		isInitialized = true;
-		synchronized (initTasks) {
-			initTasks.forEach(Runnable::run);
-			initTasks.clear();
+		try (var s = StartupProfiler.begin("initializer", "lib39-conflagration")) {
+			isInitialized = true;
+			synchronized (initTasks) {
+				initTasks.forEach(Runnable::run);
+				initTasks.clear();
+			}
 		}
 	}
 
@@ -1,28 +1,56 @@
 package com.unascribed.lib39.conflagration.api;
 
-import java.io.File;
 import java.io.IOException;
 import java.lang.annotation.Documented;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
+import org.jetbrains.annotations.Nullable;
+
 import com.unascribed.lib39.conflagration.Lib39ConflagrationInit;
 import com.unascribed.lib39.conflagration.api.qdcss.QDCSS;
+import com.unascribed.lib39.conflagration.api.qdcss.QDCSSException;
 import com.unascribed.lib39.core.Lib39Log;
+import com.unascribed.lib39.core.api.StartupProfiler;
 import com.google.common.base.Ascii;
-import com.google.common.base.Enums;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterators;
 import com.google.common.primitives.Doubles;
@@ -30,12 +58,14 @@ import com.google.common.primitives.Ints;
 
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.fabricmc.loader.api.FabricLoader;
 import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.gui.widget.ButtonWidget;
 import net.minecraft.client.gui.widget.SliderWidget;
 import net.minecraft.client.gui.widget.TextFieldWidget;
 import net.minecraft.text.MutableText;
 import net.minecraft.text.Text;
+import net.minecraft.util.Language;
 import net.minecraft.util.math.MathHelper;
 
 public abstract class AutoConfig {
@@ -118,14 +148,54 @@ public abstract class AutoConfig {
 		double max();
 	}
 	
-	private record Registration(String namespace, String path, Class<? extends AutoConfig> clazz, ImmutableMap<String, SectionDef> sections) {}
+	private record Registration(String namespace, String path, Class<? extends AutoConfig> clazz, ImmutableMap<String, SectionDef> sections,
+			AtomicReference<Map<String, ConfigValue<?>>> pendingSave, List<Consumer<List<OptionChange>>> reloadListeners) {}
 	private record SectionDef(String key, ImmutableMap<String, OptionDef> options) {}
-	private record OptionDef(String key, ConfigValueType<?, ?> type, String def, Field field) {}
+	/**
+	 * @param id the section and option keys joined with a dot, used to key snapshots
+	 * @param fileKey the key of this option in the config file
+	 * @param getter the option's static field getter, as {@code ()Object}
+	 * @param setter the option's static field setter, as {@code (Object)void}
+	 */
+	private record OptionDef(String key, String id, String fileKey, ConfigValueType<?, ?> type, Object def, MethodHandle getter, MethodHandle setter) {
+		Object get() {
+			try {
+				return (Object)getter.invokeExact();
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+		}
+		
+		void set(Object value) {
+			try {
+				setter.invokeExact(value);
+			} catch (Throwable t) {
+				throw new RuntimeException(t);
+			}
+		}
+	}
+	
+	private record BindingKey(Class<? extends AutoConfig> clazz, String namespace) {}
+	
+	/**
+	 * Creates the ConfigValueType for an option field; resolved once per type class.
+	 */
+	private interface TypeFactory {
+		ConfigValueType<?, ?> create(String namespace, Field f) throws Throwable;
+	}
 	
 	private record ConfigValue<T>(ConfigValueType<T, ?> type, T value) {
 		String marshal() { return type().marshal(value()); }
 	}
 	
+	/**
+	 * An option whose value was changed by a hot reload.
+	 * 
+	 * @param section the key of the option's section, as given in {@link Section}
+	 * @param option the key of the option, as given in {@link Option}
+	 */
+	public record OptionChange(String section, String option, Object oldValue, Object newValue) {}
+	
 	public enum LoadResult {
 		/**
 		 * The file does not exist. All options adopted default values.
@@ -142,14 +212,83 @@ public abstract class AutoConfig {
 		;
 	}
 	
-	public static final Map<String, Registration> configsByPath = new HashMap<>();
-	public static final Map<Class<? extends AutoConfig>, Registration> configsByClass = new HashMap<>();
+	// concurrent, as the watcher and IO threads iterate these while configs are still being registered
+	public static final Map<String, Registration> configsByPath = new ConcurrentHashMap<>();
+	public static final Map<Class<? extends AutoConfig>, Registration> configsByClass = new ConcurrentHashMap<>();
+	
+	// sections and options of each config class, so reflection only happens the first time one is registered
+	private static final Map<BindingKey, ImmutableMap<String, SectionDef>> bindings = new ConcurrentHashMap<>();
+	
+	private static final ClassValue<TypeFactory> typeFactories = new ClassValue<>() {
+		@Override
+		protected TypeFactory computeValue(Class<?> typeClass) {
+			try {
+				// types with a no-args constructor are stateless, so every option can share one
+				ConfigValueType<?, ?> shared = (ConfigValueType<?, ?>)typeClass.getConstructor().newInstance();
+				return (namespace, f) -> shared;
+			} catch (NoSuchMethodException e) {
+				// fall through to createImplicit
+			} catch (Exception e) {
+				throw new IllegalArgumentException(e);
+			}
+			MethodHandle createImplicit;
+			try {
+				createImplicit = MethodHandles.lookup().unreflect(typeClass.getMethod("createImplicit", String.class, Field.class));
+			} catch (NoSuchMethodException e) {
+				return (namespace, f) -> {
+					throw new IllegalArgumentException(typeClass+" does not define a no-args constructor or createImplicit(String, Field)");
+				};
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException(e);
+			}
+			return (namespace, f) -> {
+				Object res = createImplicit.invoke(namespace, f);
+				if (res instanceof Optional<?> opt) {
+					res = opt.orElse(null);
+				}
+				if (res == null) {
+					throw new IllegalArgumentException(f+" uses "+typeClass.getSimpleName()+" but is missing the annotation needed to create it implicitly");
+				}
+				return (ConfigValueType<?, ?>)res;
+			};
+		}
+	};
 	
-	private static final Executor SAVE_THREAD = Executors.newSingleThreadExecutor(r -> {
-		var t = new Thread(r, "Lib39 Conflagration save thread");
+	/**
+	 * How long saveAsync waits before writing. Any further saveAsync calls in that time replace the
+	 * snapshot that will be written instead of queueing writes of their own.
+	 */
+	private static final long SAVE_DEBOUNCE_MS = 500;
+	
+	/**
+	 * How long the watcher waits after a config file last changed before reloading it. Editors
+	 * often write a file in several steps, and we only want to read the end result.
+	 */
+	private static final long RELOAD_DEBOUNCE_MS = 250;
+	
+	// runs saves and hot reloads
+	private static final ScheduledExecutorService IO_THREAD = Executors.newSingleThreadScheduledExecutor(r -> {
+		var t = new Thread(r, "Lib39 Conflagration IO thread");
 		t.setDaemon(true);
 		return t;
 	});
+	// held while writing any config, so a save and a delayed saveAsync can't interleave
+	private static final Object SAVE_LOCK = new Object();
+	
+	// what we last wrote to each file, so the watcher can ignore our own saves
+	private static final Map<Path, String> lastWritten = new ConcurrentHashMap<>();
+	
+	private static WatchService watchService;
+	private static volatile Executor reloadExecutor;
+	private static final Map<Path, WatchKey> watchedDirs = new ConcurrentHashMap<>();
+	private static final Map<Path, ScheduledFuture<?>> pendingReloads = new ConcurrentHashMap<>();
+	
+	static {
+		// the IO thread is a daemon, so don't let a debounced save die with it
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			configsByClass.values().forEach(AutoConfig::flushPendingSave);
+		}, "Lib39 Conflagration save flush"));
+	}
 	
 	/**
 	 * Register an autoconfig for the given path. You should call this in your static initializer,
@@ -164,42 +303,19 @@ public abstract class AutoConfig {
 	 * @param cfg the autoconfig class to register
 	 */
 	public static void register(String namespace, String path, Class<? extends AutoConfig> cfg) {
-		Map<String, SectionDef> sections = new LinkedHashMap<>();
-		for (Class<?> clazz : cfg.getDeclaredClasses()) {
-			Section s = clazz.getAnnotation(Section.class);
-			if (s != null) {
-				Map<String, OptionDef> options = new HashMap<>();
-				for (Field f : clazz.getDeclaredFields()) {
-					Option o = f.getAnnotation(Option.class);
-					if (o != null) {
-						String key = o.key();
-						String def = o.def();
-						Class<? extends ConfigValueType<?, ?>> typeClass = o.type();
-						ConfigValueType<?, ?> type;
-						try {
-							var cons = typeClass.getConstructor();
-							type = cons.newInstance();
-						} catch (NoSuchMethodException e) {
-							try {
-								var m = typeClass.getMethod("createImplicit", String.class, Field.class);
-								type = (ConfigValueType<?, ?>)m.invoke(null, namespace, f);
-							} catch (NoSuchMethodException e2) {
-								throw new IllegalArgumentException(typeClass+" does not define a no-args constructor or createImplicit(String, Field)");
-							} catch (Exception e2) {
-								throw new IllegalArgumentException(e2);
-							}
-						} catch (Exception e) {
-							throw new IllegalArgumentException(e);
-						}
-						
-					}
-				}
-				sections.put(s.key(), new SectionDef(s.key(), ImmutableMap.copyOf(options)));
-			}
+		try (var s = StartupProfiler.begin("AutoConfig", namespace)) {
+			doRegister(namespace, path, cfg);
 		}
-		var reg = new Registration(namespace, path, cfg, ImmutableMap.copyOf(sections));
+	}
+
+	private static void doRegister(String namespace, String path, Class<? extends AutoConfig> cfg) {
+		var sections = bindings.computeIfAbsent(new BindingKey(cfg, namespace), k -> bind(k.clazz(), k.namespace()));
+		var reg = new Registration(namespace, path, cfg, sections, new AtomicReference<>(), new CopyOnWriteArrayList<>());
 		configsByPath.put(path, reg);
 		configsByClass.put(cfg, reg);
+		synchronized (AutoConfig.class) {
+			if (watchService != null) watch(reg);
+		}
 		var res = load(cfg);
 		if (res == LoadResult.MISSING || (res == LoadResult.NORMAL && Lib39ConflagrationInit.isInitialized)) {
 			saveAsync(cfg);
@@ -212,51 +328,419 @@ public abstract class AutoConfig {
 		}
 	}
 	
-	private static Map<String, ConfigValue<?>> snapshot(Class<? extends AutoConfig> cfg) {
-		return Map.of(); // TODO
+	/**
+	 * Build the binding table for a config class: every section and option, with accessors for the
+	 * option fields and their value types. This is the only place AutoConfig uses reflection.
+	 */
+	private static ImmutableMap<String, SectionDef> bind(Class<? extends AutoConfig> cfg, String namespace) {
+		Map<String, SectionDef> sections = new LinkedHashMap<>();
+		for (Class<?> clazz : cfg.getDeclaredClasses()) {
+			Section s = clazz.getAnnotation(Section.class);
+			if (s == null) continue;
+			Map<String, OptionDef> options = new LinkedHashMap<>();
+			for (Field f : clazz.getDeclaredFields()) {
+				Option o = f.getAnnotation(Option.class);
+				if (o == null) continue;
+				String key = o.key();
+				String def = o.def();
+				Class<? extends ConfigValueType<?, ?>> typeClass = o.type();
+				ConfigValueType<?, ?> type;
+				try {
+					type = typeFactories.get(typeClass).create(namespace, f);
+				} catch (IllegalArgumentException e) {
+					throw e;
+				} catch (Throwable t) {
+					throw new IllegalArgumentException(t);
+				}
+				if (!Modifier.isStatic(f.getModifiers()) || Modifier.isFinal(f.getModifiers())) {
+					throw new IllegalArgumentException(f+" must be static and non-final to be an option");
+				}
+				MethodHandle getter, setter;
+				try {
+					f.setAccessible(true);
+					getter = MethodHandles.lookup().unreflectGetter(f).asType(MethodType.methodType(Object.class));
+					setter = MethodHandles.lookup().unreflectSetter(f).asType(MethodType.methodType(void.class, Object.class));
+				} catch (IllegalAccessException e) {
+					throw new IllegalArgumentException(e);
+				}
+				// an explicit default wins; otherwise, whatever the field was initialized to
+				Object defValue;
+				try {
+					defValue = (Object)getter.invokeExact();
+				} catch (Throwable t) {
+					throw new IllegalArgumentException(t);
+				}
+				if (!def.isEmpty() || defValue == null) {
+					defValue = type.unmarshal(def).orElseThrow(() -> new IllegalArgumentException("Default value \""+def+"\" of "+f+" is not valid for "+typeClass.getSimpleName()));
+				}
+				options.put(key, new OptionDef(key, s.key()+"."+key, toCss(s.key())+"."+toCss(key), type, defValue, getter, setter));
+			}
+			sections.put(s.key(), new SectionDef(s.key(), ImmutableMap.copyOf(options)));
+		}
+		return ImmutableMap.copyOf(sections);
+	}
+	
+	private static Map<String, ConfigValue<?>> snapshot(Registration reg) {
+		Map<String, ConfigValue<?>> out = new LinkedHashMap<>();
+		for (SectionDef s : reg.sections().values()) {
+			for (OptionDef o : s.options().values()) {
+				out.put(o.id(), configValue(o.type(), o.get()));
+			}
+		}
+		return out;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <T> ConfigValue<T> configValue(ConfigValueType<T, ?> type, Object value) {
+		return new ConfigValue<>(type, (T)value);
 	}
 	
 	private static void doSave(Registration reg, Map<String, ConfigValue<?>> snapshot) {
-		// TODO (make sure to do an atomic save for safety)
+		Language lang = getLanguage();
+		StringBuilder sb = new StringBuilder();
+		Map<String, String> written = new LinkedHashMap<>();
+		for (SectionDef s : reg.sections().values()) {
+			appendComment(sb, "", lang, "config."+reg.namespace()+"."+s.key()+".desc");
+			sb.append(toCss(s.key())).append(" {\n");
+			for (OptionDef o : s.options().values()) {
+				ConfigValue<?> v = snapshot.get(o.id());
+				if (v == null) continue;
+				String value = v.marshal();
+				String quoted = quote(value);
+				if (quoted == null) {
+					Lib39Log.warn("Can't write the value of {} to config {} as it contains a }, a line break, or both kinds of quote; it will be reset to its default next time the config is loaded",
+							o.fileKey(), reg.path());
+					continue;
+				}
+				appendComment(sb, "\t", lang, "config."+reg.namespace()+"."+o.key()+".desc");
+				sb.append("\t").append(toCss(o.key())).append(": ").append(quoted).append(";\n");
+				written.put(o.fileKey(), value);
+			}
+			sb.append("}\n\n");
+		}
+		Path file = resolve(reg);
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+		String text = sb.toString();
+		// never replace a readable file with one that won't load back the same
+		try {
+			QDCSS qd = QDCSS.load(file.getFileName().toString(), text);
+			for (var en : written.entrySet()) {
+				if (!qd.get(en.getKey()).equals(Optional.of(en.getValue()))) {
+					Lib39Log.error("Not saving config {}, as {} would be read back as {} rather than {}",
+							reg.path(), en.getKey(), qd.get(en.getKey()).orElse(null), en.getValue());
+					return;
+				}
+			}
+		} catch (QDCSSException e) {
+			Lib39Log.error("Not saving config {}, as it wouldn't load back", reg.path(), e);
+			return;
+		}
+		try {
+			Files.createDirectories(file.getParent());
+			Files.writeString(tmp, text, StandardCharsets.UTF_8);
+			lastWritten.put(file, text);
+			try {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			Lib39Log.warn("Failed to save config {}", reg.path(), e);
+		}
+	}
+	
+	private static void flushPendingSave(Registration reg) {
+		synchronized (SAVE_LOCK) {
+			var snap = reg.pendingSave().getAndSet(null);
+			if (snap != null) {
+				doSave(reg, snap);
+			}
+		}
+	}
+	
+	private static Language getLanguage() {
+		try {
+			return Language.getInstance();
+		} catch (Throwable t) {
+			// too early; the file will be rewritten with comments after init
+			return null;
+		}
+	}
+	
+	private static void appendComment(StringBuilder sb, String indent, Language lang, String key) {
+		if (lang == null || !lang.hasTranslation(key)) return;
+		// a ruleset ends at the first }, even inside a comment
+		sb.append(indent).append("/* ").append(lang.get(key).replace("*/", "* /").replace('}', ')')).append(" */\n");
+	}
+	
+	private static String toCss(String key) {
+		return key.replace('_', '-');
 	}
 	
 	/**
-	 * Immediately save the given config to disk.
+	 * @return the value as it should be written to a config file, or null if it can't be written
+	 * 		in a way QDCSS would read back unchanged
+	 */
+	private static @Nullable String quote(String value) {
+		// there's no escaping; a ruleset ends at the first }, and a quoted value at the end of its
+		// line or the first matching quote not after a backslash
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '}' || c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029') return null;
+		}
+		boolean bare = !value.isEmpty() && value.charAt(0) != '"' && value.charAt(0) != '\'';
+		for (int i = 0; bare && i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (Character.isWhitespace(c) || c == ';') bare = false;
+		}
+		if (bare) return value;
+		if (value.indexOf('"') != -1 && value.indexOf('\'') != -1) return null;
+		if (value.endsWith("\\")) return null;
+		char q = value.indexOf('"') != -1 ? '\'' : '"';
+		return q+value+q;
+	}
+	
+	private static Path resolve(Registration reg) {
+		return FabricLoader.getInstance().getGameDir().resolve(reg.path());
+	}
+	
+	/**
+	 * Immediately save the given config to disk. Any save pending from {@link #saveAsync} is
+	 * superseded.
 	 */
 	public static void save(Class<? extends AutoConfig> cfg) {
 		Registration reg = configsByClass.get(cfg);
 		if (reg == null) throw new IllegalArgumentException(cfg+" has not been registered");
-		doSave(reg, snapshot(cfg));
+		synchronized (SAVE_LOCK) {
+			reg.pendingSave().set(null);
+			doSave(reg, snapshot(reg));
+		}
 	}
 	
 	/**
-	 * Save the given config to disk in a background thread.
+	 * Save the given config to disk in a background thread. The current values are captured
+	 * immediately, but written a short time later; calls in between collapse into a single write
+	 * of the latest values.
 	 */
 	public static void saveAsync(Class<? extends AutoConfig> cfg) {
 		Registration reg = configsByClass.get(cfg);
 		if (reg == null) throw new IllegalArgumentException(cfg+" has not been registered");
-		var snap = snapshot(cfg);
-		SAVE_THREAD.execute(() -> {
-			doSave(reg, snap);
-		});
+		if (reg.pendingSave().getAndSet(snapshot(reg)) == null) {
+			IO_THREAD.schedule(() -> flushPendingSave(reg), SAVE_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+		}
 	}
 	
 	/**
-	 * Immediately load the given config from disk.
+	 * Immediately load the given config from disk. Options that are missing or invalid adopt their
+	 * default values.
+	 * <p>
+	 * If the file can't be parsed, it's copied aside to a {@code .broken} file so the defaults that
+	 * will be written over it don't lose anything.
 	 */
 	public static LoadResult load(Class<? extends AutoConfig> cfg) {
 		Registration reg = configsByClass.get(cfg);
 		if (reg == null) throw new IllegalArgumentException(cfg+" has not been registered");
-		File f = new File(reg.path());
-		if (f.exists()) {
+		Path file = resolve(reg);
+		QDCSS qd = null;
+		if (Files.exists(file)) {
 			try {
-				QDCSS qd = QDCSS.load(f);
-				
-			} catch (IOException e) {
+				qd = QDCSS.load(file);
+			} catch (IOException | QDCSSException e) {
 				Lib39Log.warn("Failed to load config {}", reg.path(), e);
+				try {
+					Files.copy(file, file.resolveSibling(file.getFileName()+".broken"), StandardCopyOption.REPLACE_EXISTING);
+				} catch (IOException e2) {
+					Lib39Log.warn("Failed to back up broken config {}", reg.path(), e2);
+				}
+			}
+		}
+		boolean complete = true;
+		for (SectionDef s : reg.sections().values()) {
+			for (OptionDef o : s.options().values()) {
+				Object value = null;
+				if (qd != null) {
+					if (qd.containsKey(o.fileKey())) {
+						value = readOption(qd, o);
+					} else {
+						complete = false;
+					}
+				}
+				o.set(value == null ? o.def() : value);
+			}
+		}
+		if (qd == null) return LoadResult.MISSING;
+		return complete ? LoadResult.NORMAL : LoadResult.INCOMPLETE;
+	}
+	
+	/**
+	 * @return the option's value in the given file, or null if it's missing or invalid; invalid
+	 * 		values are logged
+	 */
+	private static Object readOption(QDCSS qd, OptionDef o) {
+		String key = o.fileKey();
+		Optional<String> str = qd.get(key);
+		if (str.isEmpty()) return null;
+		Object value = o.type().unmarshal(str.get()).orElse(null);
+		if (value == null) {
+			Lib39Log.warn("Invalid value {} for {} near {}", str.get(), key, qd.getBlame(key));
+		}
+		return value;
+	}
+	
+	/**
+	 * Listen for options of the given config being changed by a hot reload. The listener is called
+	 * on the executor passed to {@link #enableHotReload}, after the new values have been set, with
+	 * only the options whose values changed.
+	 */
+	public static void addReloadListener(Class<? extends AutoConfig> cfg, Consumer<List<OptionChange>> listener) {
+		Registration reg = configsByClass.get(cfg);
+		if (reg == null) throw new IllegalArgumentException(cfg+" has not been registered");
+		reg.reloadListeners().add(listener);
+	}
+	
+	/**
+	 * Start watching the files of all registered configs, including ones registered later, and
+	 * reload them when they're edited. Files are parsed off-thread; changed values are then set
+	 * and reload listeners called on the given executor, which should be the main thread - a
+	 * MinecraftServer or MinecraftClient is a suitable executor.
+	 * <p>
+	 * A missing option reverts to its default. An invalid option, or a file that fails to parse,
+	 * is logged and leaves the current values alone.
+	 * <p>
+	 * Calling this again only replaces the executor.
+	 */
+	public static synchronized void enableHotReload(Executor mainThread) {
+		reloadExecutor = mainThread;
+		if (watchService != null) return;
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+		} catch (IOException e) {
+			Lib39Log.warn("Failed to start watching config files", e);
+			return;
+		}
+		for (Registration reg : configsByClass.values()) {
+			watch(reg);
+		}
+		WatchService ws = watchService;
+		var t = new Thread(() -> runWatcher(ws), "Lib39 Conflagration watcher");
+		t.setDaemon(true);
+		t.start();
+	}
+	
+	/**
+	 * Stop watching config files. Reloads that are already pending are discarded.
+	 */
+	public static synchronized void disableHotReload() {
+		if (watchService == null) return;
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			Lib39Log.warn("Failed to stop watching config files", e);
+		}
+		watchService = null;
+		watchedDirs.clear();
+		pendingReloads.values().forEach(f -> f.cancel(false));
+		pendingReloads.clear();
+	}
+	
+	private static void watch(Registration reg) {
+		Path dir = resolve(reg).getParent();
+		watchedDirs.computeIfAbsent(dir, d -> {
+			try {
+				Files.createDirectories(d);
+				return d.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+			} catch (IOException e) {
+				Lib39Log.warn("Failed to watch {} for config changes", d, e);
+				return null;
+			}
+		});
+	}
+	
+	private static void runWatcher(WatchService ws) {
+		while (true) {
+			WatchKey key;
+			try {
+				key = ws.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
 			}
+			Path dir = (Path)key.watchable();
+			for (WatchEvent<?> ev : key.pollEvents()) {
+				// nothing may escape, or the watcher would silently stop
+				try {
+					Path changed = ev.kind() == StandardWatchEventKinds.OVERFLOW ? null : dir.resolve((Path)ev.context());
+					for (Registration reg : configsByClass.values()) {
+						Path file = resolve(reg);
+						// on overflow we don't know what changed, so check everything in the directory
+						if (changed == null ? dir.equals(file.getParent()) : changed.equals(file)) {
+							scheduleReload(reg, file);
+						}
+					}
+				} catch (Throwable t) {
+					Lib39Log.error("Failed to handle config change in {}", dir, t);
+				}
+			}
+			if (!key.reset()) {
+				watchedDirs.remove(dir);
+			}
+		}
+	}
+	
+	private static void scheduleReload(Registration reg, Path file) {
+		// each event pushes the reload back, so a burst of writes results in one reload
+		pendingReloads.compute(file, (f, prev) -> {
+			if (prev != null) prev.cancel(false);
+			return IO_THREAD.schedule(() -> reload(reg, file), RELOAD_DEBOUNCE_MS, TimeUnit.MILLISECONDS);
+		});
+	}
+	
+	private static void reload(Registration reg, Path file) {
+		String text;
+		try {
+			text = Files.readString(file, StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return;
+		} catch (IOException e) {
+			Lib39Log.warn("Failed to reload config {}", reg.path(), e);
+			return;
 		}
-		return null; // TODO
+		if (text.equals(lastWritten.get(file))) return;
+		QDCSS qd;
+		try {
+			qd = QDCSS.load(file.getFileName().toString(), text);
+		} catch (QDCSSException e) {
+			Lib39Log.warn("Not reloading config {}: {}", reg.path(), e.getMessage());
+			return;
+		}
+		record Read(SectionDef section, OptionDef option, Object value) {}
+		List<Read> read = new ArrayList<>();
+		for (SectionDef s : reg.sections().values()) {
+			for (OptionDef o : s.options().values()) {
+				Object value = qd.containsKey(o.fileKey()) ? readOption(qd, o) : o.def();
+				if (value != null) read.add(new Read(s, o, value));
+			}
+		}
+		// the fields belong to the main thread, so only look at them there
+		reloadExecutor.execute(() -> {
+			List<OptionChange> changes = new ArrayList<>();
+			for (Read r : read) {
+				Object current = r.option().get();
+				if (!Objects.equals(current, r.value())) {
+					r.option().set(r.value());
+					changes.add(new OptionChange(r.section().key(), r.option().key(), current, r.value()));
+				}
+			}
+			if (changes.isEmpty()) return;
+			Lib39Log.info("Reloaded {} option{} from config {}", changes.size(), changes.size() == 1 ? "" : "s", reg.path());
+			List<OptionChange> published = Collections.unmodifiableList(changes);
+			for (var l : reg.reloadListeners()) {
+				try {
+					l.accept(published);
+				} catch (Throwable t) {
+					Lib39Log.error("Config reload listener for {} threw an exception", reg.path(), t);
+				}
+			}
+		});
 	}
 	
 	protected AutoConfig() {
@@ -340,7 +824,10 @@ public abstract class AutoConfig {
 		
 		@Override
 		public Optional<E> unmarshal(String s) {
-			return Enums.getIfPresent(clazz, s).toJavaUtil();
+			for (E e : clazz.getEnumConstants()) {
+				if (e.name().equalsIgnoreCase(s)) return Optional.of(e);
+			}
+			return Optional.empty();
 		}
 
 		@Override
@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
 import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
@@ -25,8 +27,6 @@ import java.util.Set;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * A quick-and-dirty "CSS" parser.
@@ -352,66 +352,13 @@ public class QDCSS {
 		};
 	}
 	
-	private static final Pattern JUNK_PATTERN = Pattern.compile("^(\\s*(/\\*.*?\\*/)?\\s*)*$", Pattern.DOTALL);
-	private static final Pattern RULESET_PATTERN = Pattern.compile("[#.]?(@?\\w+?)\\s*\\{(.*?)\\}", Pattern.DOTALL);
-	private static final Pattern RULE_PATTERN = Pattern.compile("(\\S+?)\\s*:\\s*(?:\\\"(.*?)(?<!\\\\)\\\"|'(.*?)(?<!\\\\)'|(\\S+?))\\s*(?:;|$)");
-	
 	public static QDCSS load(String fileName, String s) throws SyntaxErrorException {
-		// vanilla CSS is a very simple grammar, so we can parse it using only regexes
-		Map<String, List<BlameString>> data = new LinkedHashMap<>();
-		Matcher ruleset = RULESET_PATTERN.matcher(s);
-		int lastEnd = 0;
-		while (ruleset.find()) {
-			String skipped = s.substring(lastEnd, ruleset.start());
-			if (!JUNK_PATTERN.matcher(skipped).matches()) {
-				throw new SyntaxErrorException("Expected a ruleset near line "+getLine(s, ruleset.start())+" in "+fileName);
-			}
-			String selector = ruleset.group(1);
-			String rules = ruleset.group(2);
-			Matcher rule = RULE_PATTERN.matcher(rules);
-			int lastRulesEnd = 0;
-			while (rule.find()) {
-				String skippedRule = rules.substring(lastRulesEnd, rule.start());
-				if (!JUNK_PATTERN.matcher(skippedRule).matches()) {
-					throw new SyntaxErrorException("Expected a rule near line "+getLine(s, ruleset.start(2)+rule.start())+" in "+fileName);
-				}
-				String property = rule.group(1);
-				String value;
-				if (rule.group(2) != null) {
-					value = rule.group(2);
-				} else if (rule.group(3) != null) {
-					value = rule.group(3);
-				} else {
-					value = rule.group(4);
-				}
-				String key = selector+"."+property;
-				if (!data.containsKey(key)) {
-					data.put(key, new ArrayList<>());
-				}
-				data.get(key).add(new BlameString(value, fileName, getLine(s, ruleset.start(2)+rule.start())));
-				lastRulesEnd = rule.end();
-			}
-			String skippedRule = rules.substring(lastRulesEnd);
-			if (!JUNK_PATTERN.matcher(skippedRule).matches()) {
-				throw new SyntaxErrorException("Expected a rule near line "+getLine(s, ruleset.start(2)+lastRulesEnd)+" in "+fileName);
-			}
-			lastEnd = ruleset.end();
-		}
-		String skipped = s.substring(lastEnd);
-		if (!JUNK_PATTERN.matcher(skipped).matches()) {
-			throw new SyntaxErrorException("Expected a ruleset or EOF near line "+getLine(s, lastEnd)+" in "+fileName);
-		}
-		return new QDCSS(fileName, data);
-	}
-
-	private static int getLine(String s, int start) {
-		int line = 1;
-		for (int i = 0; i < start; i++) {
-			if (s.charAt(i) == '\n') {
-				line++;
-			}
+		try {
+			return load(fileName, new StringReader(s));
+		} catch (IOException e) {
+			// StringReader doesn't throw
+			throw new UncheckedIOException(e);
 		}
-		return line;
 	}
 
 	public static QDCSS load(File f) throws IOException {
@@ -450,14 +397,277 @@ public class QDCSS {
 	}
 
 	public static QDCSS load(String fileName, Reader r) throws IOException {
-		char[] buf = new char[512];
-		StringBuilder sb = new StringBuilder();
-		while (true) {
-			int read = r.read(buf);
-			if (read < 0) break;
-			sb.append(buf, 0, read);
+		return new Parser(fileName, r).parse();
+	}
+
+	/**
+	 * Single pass parser. Only one ruleset is held in memory at a time, and line numbers are
+	 * counted as it goes rather than looked up after the fact.
+	 * <p>
+	 * The grammar is the one the original regex-based parser accepted, except that selectors may
+	 * also contain dashes, so the dashed section names AutoConfig writes can be read back. A
+	 * ruleset is an optional {@code #} or {@code .}, an optional {@code @}, a word (which may
+	 * contain dashes after its first character), and a body in braces that ends at the first
+	 * {@code }}. A rule is a property, a colon, and a value that's either quoted on one line or a
+	 * run of non-whitespace, followed by a semicolon or the end of the body. The property is the
+	 * shortest run of non-whitespace that leaves a valid value after it, so it may itself contain
+	 * colons. Whitespace and comments may appear between rulesets and between rules.
+	 */
+	private static final class Parser {
+		private final String fileName;
+		private final Reader r;
+		private final char[] buf = new char[8192];
+		private int pos, len;
+		private int line = 1;
+		private final StringBuilder body = new StringBuilder();
+		private final Map<String, List<BlameString>> data = new LinkedHashMap<>();
+
+		// start and end of the last value matched in the current body
+		private int valueStart, valueEnd;
+
+		private Parser(String fileName, Reader r) {
+			this.fileName = fileName;
+			this.r = r;
+		}
+
+		QDCSS parse() throws IOException {
+			while (true) {
+				skipJunk();
+				if (peek(0) == -1) break;
+				int rulesetLine = line;
+				String selector = readSelector();
+				if (selector == null) {
+					throw new SyntaxErrorException("Expected a ruleset near line "+rulesetLine+" in "+fileName);
+				}
+				int bodyLine = line;
+				if (!readBody()) {
+					throw new SyntaxErrorException("Expected a ruleset or EOF near line "+rulesetLine+" in "+fileName);
+				}
+				parseRules(selector, body, bodyLine);
+			}
+			return new QDCSS(fileName, data);
+		}
+
+		private boolean fill(int ahead) throws IOException {
+			if (pos+ahead < len) return true;
+			if (pos > 0) {
+				System.arraycopy(buf, pos, buf, 0, len-pos);
+				len -= pos;
+				pos = 0;
+			}
+			while (ahead >= len) {
+				int read = r.read(buf, len, buf.length-len);
+				if (read < 0) return false;
+				len += read;
+			}
+			return true;
+		}
+
+		private int peek(int ahead) throws IOException {
+			return fill(ahead) ? buf[pos+ahead] : -1;
+		}
+
+		private int next() throws IOException {
+			if (!fill(0)) return -1;
+			char c = buf[pos++];
+			if (c == '\n') line++;
+			return c;
+		}
+
+		private void skipJunk() throws IOException {
+			while (true) {
+				int c = peek(0);
+				if (isSpace(c)) {
+					next();
+				} else if (c == '/' && peek(1) == '*') {
+					int commentLine = line;
+					next();
+					next();
+					while (true) {
+						c = next();
+						if (c == -1) {
+							throw new SyntaxErrorException("Expected a ruleset or EOF near line "+commentLine+" in "+fileName);
+						}
+						if (c == '*' && peek(0) == '/') {
+							next();
+							break;
+						}
+					}
+				} else {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Read everything up to and including the opening brace of a ruleset.
+		 *
+		 * @return the selector, or null if this isn't a ruleset
+		 */
+		private String readSelector() throws IOException {
+			int c = peek(0);
+			if (c == '#' || c == '.') {
+				next();
+				c = peek(0);
+			}
+			StringBuilder sb = new StringBuilder();
+			if (c == '@') {
+				sb.append((char)next());
+				c = peek(0);
+			}
+			if (!isWord(c)) return null;
+			while (isWord(c) || c == '-') {
+				sb.append((char)next());
+				c = peek(0);
+			}
+			while (isSpace(c)) {
+				next();
+				c = peek(0);
+			}
+			if (c != '{') return null;
+			next();
+			return sb.toString();
+		}
+
+		/**
+		 * Read everything up to the closing brace of a ruleset into {@link #body}, and consume the
+		 * brace.
+		 *
+		 * @return false if the input ended first
+		 */
+		private boolean readBody() throws IOException {
+			body.setLength(0);
+			while (true) {
+				if (!fill(0)) return false;
+				int start = pos;
+				while (pos < len && buf[pos] != '}') {
+					if (buf[pos] == '\n') line++;
+					pos++;
+				}
+				body.append(buf, start, pos-start);
+				if (pos < len) {
+					pos++;
+					return true;
+				}
+			}
+		}
+
+		private void parseRules(String selector, StringBuilder b, int startLine) {
+			int n = b.length();
+			int i = 0;
+			int line = startLine;
+			int linePos = 0;
+			while (true) {
+				int ruleStart = i;
+				i = skipJunk(b, i);
+				for (; linePos < ruleStart; linePos++) {
+					if (b.charAt(linePos) == '\n') line++;
+				}
+				if (i == -1) {
+					throw new SyntaxErrorException("Expected a rule near line "+line+" in "+fileName);
+				}
+				if (i == n) break;
+				for (; linePos < i; linePos++) {
+					if (b.charAt(linePos) == '\n') line++;
+				}
+				int end = -1;
+				int propEnd;
+				for (propEnd = i+1; propEnd <= n && !isSpace(b.charAt(propEnd-1)); propEnd++) {
+					int colon = skipSpace(b, propEnd);
+					if (colon < n && b.charAt(colon) == ':') {
+						end = matchValue(b, skipSpace(b, colon+1));
+						if (end != -1) break;
+					}
+				}
+				if (end == -1) {
+					throw new SyntaxErrorException("Expected a rule near line "+line+" in "+fileName);
+				}
+				String key = selector+"."+b.subSequence(i, propEnd);
+				String value = b.subSequence(valueStart, valueEnd).toString();
+				data.computeIfAbsent(key, k -> new ArrayList<>()).add(new BlameString(value, fileName, line));
+				i = end;
+			}
+		}
+
+		/**
+		 * @return the index after the value's terminator, or -1 if there's no valid value here
+		 */
+		private int matchValue(StringBuilder b, int v) {
+			int n = b.length();
+			if (v >= n) return -1;
+			char q = b.charAt(v);
+			if (q == '"' || q == '\'') {
+				for (int k = v+1; k < n; k++) {
+					char c = b.charAt(k);
+					if (isLineTerminator(c)) break;
+					if (c == q && b.charAt(k-1) != '\\') {
+						int end = matchTerminator(b, k+1);
+						if (end != -1) {
+							valueStart = v+1;
+							valueEnd = k;
+							return end;
+						}
+					}
+				}
+			}
+			for (int k = v+1; k <= n && !isSpace(b.charAt(k-1)); k++) {
+				int end = matchTerminator(b, k);
+				if (end != -1) {
+					valueStart = v;
+					valueEnd = k;
+					return end;
+				}
+			}
+			return -1;
+		}
+
+		private static int matchTerminator(StringBuilder b, int i) {
+			int n = b.length();
+			i = skipSpace(b, i);
+			if (i < n && b.charAt(i) == ';') return i+1;
+			// mirrors $, which also matches just before a trailing line terminator
+			if (i == n || (i == n-1 && isLineTerminator(b.charAt(i)))) return i;
+			return -1;
+		}
+
+		private static int skipSpace(StringBuilder b, int i) {
+			int n = b.length();
+			while (i < n && isSpace(b.charAt(i))) i++;
+			return i;
+		}
+
+		/**
+		 * @return the index of the first character that isn't whitespace or part of a comment, or
+		 * 		-1 if a comment is left open
+		 */
+		private static int skipJunk(StringBuilder b, int i) {
+			int n = b.length();
+			while (i < n) {
+				char c = b.charAt(i);
+				if (isSpace(c)) {
+					i++;
+				} else if (c == '/' && i+1 < n && b.charAt(i+1) == '*') {
+					int close = b.indexOf("*/", i+2);
+					if (close == -1) return -1;
+					i = close+2;
+				} else {
+					break;
+				}
+			}
+			return i;
+		}
+
+		private static boolean isSpace(int c) {
+			return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+		}
+
+		private static boolean isWord(int c) {
+			return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '_';
+		}
+
+		private static boolean isLineTerminator(char c) {
+			return c == '\n' || c == '\r' || c == '\u0085' || c == '\u2028' || c == '\u2029';
 		}
-		return load(fileName, sb.toString());
 	}
 
 }
@@ -6,6 +6,7 @@ import java.util.function.Consumer;
 import com.unascribed.lib39.core.api.ClientModPostInitializer;
 import com.unascribed.lib39.core.api.DedicatedServerModPostInitializer;
 import com.unascribed.lib39.core.api.ModPostInitializer;
+import com.unascribed.lib39.core.api.StartupProfiler;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Maps;
@@ -32,17 +33,19 @@ public class Lib39Mod implements ModInitializer, ClientModInitializer, Dedicated
 	public void onInitializeServer() {
 		onPostInitialize();
 		onServerPostInitialize();
+		StartupProfiler.finish();
 	}
 
 	@Override
 	public void onInitializeClient() {
 		onPostInitialize();
 		onClientPostInitialize();
+		StartupProfiler.finish();
 	}
 
 	private static <T> void runEntrypoint(String key, Class<T> clazz, Consumer<T> cons) {
 		for (var ec : FabricLoader.getInstance().getEntrypointContainers(key, clazz)) {
-			try {
+			try (var s = StartupProfiler.begin(key, ec.getProvider().getMetadata().getId())) {
 				cons.accept(ec.getEntrypoint());
 			} catch (Throwable t) {
 				throw new RuntimeException("'"+ec.getProvider().getMetadata().getId()+"' threw an exception during "+key+"!", t);
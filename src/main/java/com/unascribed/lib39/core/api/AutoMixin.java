@@ -1,5 +1,6 @@
 package com.unascribed.lib39.core.api;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -15,6 +16,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.function.Predicate;
@@ -30,6 +32,7 @@ import org.spongepowered.asm.mixin.extensibility.IMixinInfo;
 
 import com.unascribed.lib39.core.Lib39Log;
 import com.unascribed.lib39.core.mixinsupport.AutoMixinEligible;
+import com.unascribed.lib39.core.mixinsupport.AutoMixinIndex;
 
 import com.google.common.collect.Lists;
 
@@ -269,38 +272,54 @@ public class AutoMixin implements IMixinConfigPlugin {
 
 	@Override
 	public List<String> getMixins() {
-		List<String> rtrn = Lists.newArrayList();
+		try (var s = StartupProfiler.begin("AutoMixin", pkg)) {
+			return discoverMixins();
+		}
+	}
+
+	private List<String> discoverMixins() {
+		long start = System.nanoTime();
+		List<AutoMixinIndex.Entry> entries = null;
+		List<Candidate> candidates = Lists.newArrayList();
+		boolean fromIndex = false;
 		int total = 0;
-		int skipped = 0;
 		try {
 			URL url = getJarURL(getClass().getProtectionDomain().getCodeSource().getLocation());
 			Lib39Log.debug("Jar URL appears to be {}", url);
 			if ("file".equals(url.getProtocol())) {
 				File f = new File(url.toURI());
-				if (f.isDirectory()) {
+				boolean useIndex = useDiscoveryIndex() && !Boolean.getBoolean("lib39.automixin.noIndex");
+				if (useIndex) {
+					entries = AutoMixinIndex.load(binaryPkgPrefix, f.toPath());
+					fromIndex = entries != null;
+				}
+				if (fromIndex) {
+					Lib39Log.debug("Discovering mixins via index");
+				} else if (f.isDirectory()) {
 					// Q/F dev environment
 					Path base = f.toPath();
 					try (var stream = Files.walk(base)) {
 						Lib39Log.debug("Discovering mixins via directory iteration (Quilt/Fabric dev environment)");
 						for (Path p : (Iterable<Path>)stream::iterator) {
 							total++;
-							if (discover(rtrn, base.relativize(p).toString(), () -> Files.newInputStream(p))) {
-								skipped++;
-							}
+							collect(candidates, base.relativize(p).toString(), () -> Files.newInputStream(p));
 						}
 					}
+					entries = scan(candidates);
 				} else {
 					// FLoader, old QLoader
 					try (ZipFile zip = new ZipFile(f)) {
 						Lib39Log.debug("Discovering mixins via direct ZIP iteration (Fabric or old Quilt)");
 						for (var en : Collections.list(zip.entries())) {
 							total++;
-							if (discover(rtrn, en.getName(), () -> zip.getInputStream(en))) {
-								skipped++;
-							}
+							collect(candidates, en.getName(), () -> zip.getInputStream(en));
 						}
+						entries = scan(candidates);
 					}
 				}
+				if (useIndex && !fromIndex) {
+					AutoMixinIndex.save(binaryPkgPrefix, f.toPath(), entries);
+				}
 			} else {
 				// Hours wasted on Quilt refactors: ||||| ||
 				try {
@@ -312,8 +331,10 @@ public class AutoMixin implements IMixinConfigPlugin {
 								Lib39Log.debug("Discovering mixins via URL ZIP iteration (Quilt <= 0.17)");
 							}
 							total++;
-							if (discover(rtrn, en.getName(), () -> zip)) {
-								skipped++;
+							// the stream only goes forward, so grab the bytes now for parsing later
+							if (candidateName(en.getName()) != null) {
+								byte[] data = zip.readAllBytes();
+								collect(candidates, en.getName(), () -> new ByteArrayInputStream(data));
 							}
 						}
 					}
@@ -343,48 +364,98 @@ public class AutoMixin implements IMixinConfigPlugin {
 						total++;
 						for (Path p : (Iterable<Path>)Files.walk(base)::iterator) {
 							total++;
-							if (discover(rtrn, base.relativize(p).toString(), () -> Files.newInputStream(p))) {
-								skipped++;
-							}
+							collect(candidates, base.relativize(p).toString(), () -> Files.newInputStream(p));
 						}
 					}
 				}
+				entries = scan(candidates);
 			}
 		} catch (URISyntaxException e) {
 			throw new AssertionError(e);
 		} catch (Throwable e) {
 			throw new RuntimeException("Cannot autodiscover mixins for "+pkg, e);
 		}
+		List<String> rtrn = Lists.newArrayList();
+		int skipped = 0;
+		// conditions depend on the environment, mods and config, so they're checked every launch
+		for (var en : entries) {
+			if (shouldMixinBeSkipped(en.name(), en.node())) {
+				skipped++;
+			} else {
+				rtrn.add(en.name().substring(binaryPkgPrefix.length()));
+			}
+		}
+		long ms = (System.nanoTime()-start)/1_000_000;
 		if (rtrn.isEmpty()) {
 			Lib39Log.warn("Found no mixins in {}", pkg);
+		} else if (fromIndex) {
+			Lib39Log.info("Discovered {} mixins in {} in {}ms from index (skipped {})", rtrn.size(), pkg, ms, skipped);
 		} else {
-			Lib39Log.debug("Discovered {} mixins in {} (skipped {}, found {} total files)", rtrn.size(), pkg, skipped, total);
+			Lib39Log.info("Discovered {} mixins in {} in {}ms by scanning {} classes (skipped {}, found {} total files)", rtrn.size(), pkg, ms, candidates.size(), skipped, total);
 		}
 		return rtrn;
 	}
 
+	/**
+	 * Whether to remember the mixin classes found and their annotations in
+	 * {@code .lib39/automixin} so later launches can skip reading class files until the jar changes.
+	 * Can also be turned off for everything with the {@code lib39.automixin.noIndex} system property.
+	 * <p>
+	 * This is an extension point for AutoMixin consumers.
+	 * @implNote The default implementation returns {@code true} unless {@link #shouldMixinBeSkipped}
+	 * 		is overridden, as the ClassNodes passed to it from the index only have their name and
+	 * 		annotations. Overrides that only look at those can return {@code true} here to use it.
+	 */
+	protected boolean useDiscoveryIndex() {
+		for (Class<?> c = getClass(); c != AutoMixin.class; c = c.getSuperclass()) {
+			try {
+				c.getDeclaredMethod("shouldMixinBeSkipped", String.class, ClassNode.class);
+				return false;
+			} catch (NoSuchMethodException ignore) {}
+		}
+		return true;
+	}
+
 	private interface StreamOpener {
 		InputStream openStream() throws IOException;
 	}
 	
-	private boolean discover(List<String> li, String path, StreamOpener opener) throws IOException {
+	private record Candidate(String name, StreamOpener opener) {}
+	
+	private String candidateName(String path) {
 		path = path.replace('\\', '/'); // fuck windows
 		if (path.endsWith(".class") && path.startsWith(binaryPkgPrefix)) {
 			String name = path.replace('/', '.').replace(".class", "");
 			// we want nothing to do with inner classes and the like
-			if (name.contains("$")) return false;
-			try {
-				ClassReader cr = new ClassReader(opener.openStream());
-				ClassNode cn = new ClassNode();
-				cr.accept(cn, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
-				if (shouldMixinBeSkipped(name, cn))
-					return true;
-				li.add(name.substring(binaryPkgPrefix.length()));
-			} catch (IOException e) {
-				Lib39Log.warn("Exception while trying to read {}", name, e);
-			}
+			if (name.contains("$")) return null;
+			return name;
+		}
+		return null;
+	}
+	
+	private void collect(List<Candidate> li, String path, StreamOpener opener) {
+		String name = candidateName(path);
+		if (name != null) li.add(new Candidate(name, opener));
+	}
+	
+	private List<AutoMixinIndex.Entry> scan(List<Candidate> candidates) {
+		// parsing dominates discovery and each class is independent; toList keeps encounter order
+		return candidates.parallelStream()
+				.map(AutoMixin::read)
+				.filter(Objects::nonNull)
+				.toList();
+	}
+	
+	private static AutoMixinIndex.Entry read(Candidate c) {
+		try (InputStream in = c.opener().openStream()) {
+			ClassReader cr = new ClassReader(in);
+			ClassNode cn = new ClassNode();
+			cr.accept(cn, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+			return new AutoMixinIndex.Entry(c.name(), cn);
+		} catch (IOException e) {
+			Lib39Log.warn("Exception while trying to read {}", c.name(), e);
+			return null;
 		}
-		return false;
 	}
 
 	@Override
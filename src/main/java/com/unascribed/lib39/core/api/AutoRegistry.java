@@ -76,13 +76,15 @@ public final class AutoRegistry {
 	 */
 	@SuppressWarnings("unchecked")
 	public <T, A extends Annotation> void eachRegisterableField(Class<?> holdingClass, Class<T> type, Class<A> anno, TriConsumer<Field, T, A> cb) {
-		for (Field f : holdingClass.getDeclaredFields()) {
-			if (type.isAssignableFrom(f.getType()) && Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers())) {
-				try {
-					f.setAccessible(true);
-					cb.accept(f, (T)f.get(null), anno == null ? null : f.getAnnotation(anno));
-				} catch (Exception e) {
-					throw new RuntimeException(e);
+		try (var s = StartupProfiler.begin("AutoRegistry", namespace)) {
+			for (Field f : holdingClass.getDeclaredFields()) {
+				if (type.isAssignableFrom(f.getType()) && Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers())) {
+					try {
+						f.setAccessible(true);
+						cb.accept(f, (T)f.get(null), anno == null ? null : f.getAnnotation(anno));
+					} catch (Exception e) {
+						throw new RuntimeException(e);
+					}
 				}
 			}
 		}
@@ -0,0 +1,220 @@
+package com.unascribed.lib39.core.api;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.stream.Collectors;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.gson.stream.JsonWriter;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+/**
+ * Records how long each part of Lib39 takes during launch, and how much it allocates, broken down
+ * by module and by the mod (or mixin package) it was working for.
+ * <p>
+ * Lib39 times AutoMixin discovery, AutoRegistry, AutoConfig registration, post-initializers and
+ * the heavier parts of its own initializers; mods can time their own phases with {@link #begin}.
+ * Once Lib39's post-initialization finishes, the slowest sections are logged and the full report
+ * is written to {@code logs/lib39-startup.json}. Set the {@code lib39.startupProfiler} system property to
+ * {@code false} to turn all of this off.
+ * <p>
+ * Nested sections are counted in full by every enclosing section. Allocations are those of the
+ * thread that opened the section, and are -1 if the JVM can't report them.
+ */
+public final class StartupProfiler {
+
+	private static final boolean ENABLED = !"false".equals(System.getProperty("lib39.startupProfiler"));
+	private static final com.sun.management.ThreadMXBean THREADS = findThreadBean();
+	private static final long START = System.nanoTime();
+
+	private static final Map<Key, Stats> stats = new ConcurrentHashMap<>();
+	private static volatile long finishedAt = -1;
+
+	private record Key(String module, String owner) {}
+
+	private static final class Stats {
+		final AtomicLong count = new AtomicLong();
+		final AtomicLong nanos = new AtomicLong();
+		final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+		final AtomicLong allocated = new AtomicLong();
+	}
+
+	/**
+	 * A timed section, to be closed when the work is done; intended for try-with-resources.
+	 */
+	public static final class Section implements AutoCloseable {
+		private static final Section NOOP = new Section(null, 0, 0);
+
+		private final Key key;
+		private final long start;
+		private final long allocStart;
+
+		private Section(Key key, long start, long allocStart) {
+			this.key = key;
+			this.start = start;
+			this.allocStart = allocStart;
+		}
+
+		@Override
+		public void close() {
+			if (key == null) return;
+			long elapsed = System.nanoTime()-start;
+			long alloc = allocStart == -1 ? -1 : allocatedBytes()-allocStart;
+			Stats s = stats.computeIfAbsent(key, k -> new Stats());
+			s.count.incrementAndGet();
+			s.nanos.addAndGet(elapsed);
+			s.maxNanos.accumulate(elapsed);
+			if (alloc >= 0 && s.allocated.get() >= 0) {
+				s.allocated.addAndGet(alloc);
+			} else {
+				s.allocated.set(-1);
+			}
+		}
+	}
+
+	/**
+	 * Start timing some work done by a module on behalf of the given owner, usually a mod ID.
+	 * Sections with the same module and owner are added together.
+	 */
+	public static Section begin(String module, String owner) {
+		if (!ENABLED) return Section.NOOP;
+		return new Section(new Key(module, owner), System.nanoTime(), allocatedBytes());
+	}
+
+	/**
+	 * Log a summary and write {@code logs/lib39-startup.json}. Called by Lib39 once its
+	 * post-initialization is done; later calls do nothing. Sections closed afterward are still
+	 * recorded and will show up in {@link #report()} and {@link #dump()}.
+	 */
+	public static synchronized void finish() {
+		if (!ENABLED || finishedAt != -1) return;
+		finishedAt = System.nanoTime();
+		// not a total, as nested sections would be counted twice
+		String slowest = rows().stream()
+				.limit(5)
+				.map(r -> r.key().module()+" for "+r.key().owner()+" ("+r.stats().nanos.get()/1_000_000+"ms)")
+				.collect(Collectors.joining(", "));
+		Lib39Log.info("Lib39 finished loading {}ms after it started; slowest were {}", (finishedAt-START)/1_000_000, slowest);
+		if (Lib39Log.isDebugEnabled()) {
+			for (String line : report()) {
+				Lib39Log.debug(line);
+			}
+		}
+		try {
+			dump();
+		} catch (IOException | RuntimeException e) {
+			Lib39Log.warn("Failed to write startup profile", e);
+		}
+	}
+
+	/**
+	 * @return a table of every section recorded, slowest first, one row per line
+	 */
+	public static List<String> report() {
+		List<String> out = Lists.newArrayList();
+		out.add(String.format(Locale.ROOT, "%-16s %-40s %6s %9s %9s %12s", "module", "owner", "count", "ms", "max ms", "alloc KiB"));
+		for (var r : rows()) {
+			Stats s = r.stats();
+			long alloc = s.allocated.get();
+			out.add(String.format(Locale.ROOT, "%-16s %-40s %6d %9.2f %9.2f %12s",
+					r.key().module(), r.key().owner(), s.count.get(), s.nanos.get()/1_000_000D, s.maxNanos.get()/1_000_000D,
+					alloc < 0 ? "?" : Long.toString(alloc/1024)));
+		}
+		return out;
+	}
+
+	/**
+	 * Write the report as JSON to {@code logs/lib39-startup.json}, replacing whatever was there.
+	 *
+	 * @return the file written
+	 */
+	public static Path dump() throws IOException {
+		Path file = FabricLoader.getInstance().getGameDir().resolve("logs").resolve("lib39-startup.json");
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+		var rows = rows();
+		Map<String, long[]> owners = Maps.newLinkedHashMap();
+		for (var r : rows) {
+			long[] sum = owners.computeIfAbsent(r.key().owner(), k -> new long[2]);
+			sum[0] += r.stats().nanos.get();
+			long alloc = r.stats().allocated.get();
+			sum[1] = sum[1] < 0 || alloc < 0 ? -1 : sum[1]+alloc;
+		}
+		Files.createDirectories(file.getParent());
+		try (Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8); JsonWriter jw = new JsonWriter(w)) {
+			jw.setIndent("\t");
+			jw.beginObject();
+			jw.name("finishedAtMillis").value(finishedAt == -1 ? -1 : (finishedAt-START)/1_000_000D);
+			jw.name("allocationsSupported").value(THREADS != null);
+			jw.name("sections").beginArray();
+			for (var r : rows) {
+				Stats s = r.stats();
+				jw.beginObject();
+				jw.name("module").value(r.key().module());
+				jw.name("owner").value(r.key().owner());
+				jw.name("count").value(s.count.get());
+				jw.name("millis").value(s.nanos.get()/1_000_000D);
+				jw.name("maxMillis").value(s.maxNanos.get()/1_000_000D);
+				jw.name("allocatedBytes").value(s.allocated.get());
+				jw.endObject();
+			}
+			jw.endArray();
+			jw.name("owners").beginObject();
+			for (var en : owners.entrySet()) {
+				jw.name(en.getKey()).beginObject();
+				jw.name("millis").value(en.getValue()[0]/1_000_000D);
+				jw.name("allocatedBytes").value(en.getValue()[1]);
+				jw.endObject();
+			}
+			jw.endObject();
+			jw.endObject();
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	private record Row(Key key, Stats stats) {}
+
+	private static List<Row> rows() {
+		List<Row> rows = Lists.newArrayList();
+		stats.forEach((k, v) -> rows.add(new Row(k, v)));
+		rows.sort(Comparator.comparingLong((Row r) -> r.stats().nanos.get()).reversed());
+		return rows;
+	}
+
+	private static long allocatedBytes() {
+		return THREADS == null ? -1 : THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	private static com.sun.management.ThreadMXBean findThreadBean() {
+		try {
+			ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+			if (bean instanceof com.sun.management.ThreadMXBean sun
+					&& sun.isThreadAllocatedMemorySupported() && sun.isThreadAllocatedMemoryEnabled()) {
+				return sun;
+			}
+		} catch (Throwable t) {
+			Lib39Log.debug("Allocation tracking unavailable", t);
+		}
+		return null;
+	}
+
+	private StartupProfiler() {}
+
+}
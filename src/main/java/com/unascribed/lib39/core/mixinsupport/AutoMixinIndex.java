@@ -0,0 +1,291 @@
+package com.unascribed.lib39.core.mixinsupport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipFile;
+
+import org.jetbrains.annotations.Nullable;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.tree.AnnotationNode;
+import org.objectweb.asm.tree.ClassNode;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+/**
+ * On-disk cache of the mixin classes AutoMixin found in a jar or directory, along with their class
+ * annotations, so later launches can evaluate them without reading any class files.
+ * <p>
+ * An index is valid while the source's path, size and modification time are unchanged, or failing
+ * that, while a fingerprint of the names, sizes and CRCs of the classes in the mixin package is.
+ * Only the annotations are cached, not whether they caused a mixin to be skipped, as that depends
+ * on the environment, loaded mods and config of each launch.
+ * <p>
+ * Internal; used by {@link com.unascribed.lib39.core.api.AutoMixin AutoMixin}.
+ */
+public final class AutoMixinIndex {
+
+	private static final int MAGIC = 0x4C33394D; // L39M
+	private static final int VERSION = 1;
+
+	/**
+	 * A mixin class and its class annotations.
+	 */
+	public record Entry(String name, ClassNode node) {}
+
+	/**
+	 * @return the entries last saved for the given package and source, or null if there are none
+	 * 		or they're out of date
+	 */
+	public static @Nullable List<Entry> load(String binaryPkgPrefix, Path source) {
+		Path file = indexFile(binaryPkgPrefix);
+		try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) return null;
+			if (!in.readUTF().equals(source.toAbsolutePath().toString())) return null;
+			long size = in.readLong();
+			long mtime = in.readLong();
+			long fingerprint = in.readLong();
+			var attr = Files.readAttributes(source, BasicFileAttributes.class);
+			boolean stampMatches = attr.isRegularFile() && attr.size() == size && attr.lastModifiedTime().toMillis() == mtime;
+			if (!stampMatches && fingerprint(binaryPkgPrefix, source) != fingerprint) return null;
+			int count = in.readInt();
+			List<Entry> out = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				ClassNode node = new ClassNode();
+				node.version = Opcodes.V17;
+				node.name = in.readUTF();
+				node.visibleAnnotations = readAnnotations(in);
+				node.invisibleAnnotations = readAnnotations(in);
+				out.add(new Entry(node.name.replace('/', '.'), node));
+			}
+			if (!stampMatches) {
+				// touched but not changed, e.g. recopied; refresh the stamp so next time is quick
+				save(binaryPkgPrefix, source, out);
+			}
+			return out;
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException | RuntimeException e) {
+			Lib39Log.debug("Ignoring unreadable AutoMixin index {}", file, e);
+			return null;
+		}
+	}
+
+	/**
+	 * Save the given entries as the index for the given package and source. Failures are logged
+	 * and otherwise ignored.
+	 */
+	public static void save(String binaryPkgPrefix, Path source, List<Entry> entries) {
+		Path file = indexFile(binaryPkgPrefix);
+		Path tmp = file.resolveSibling(file.getFileName()+"."+ProcessHandle.current().pid()+".tmp");
+		try {
+			var attr = Files.readAttributes(source, BasicFileAttributes.class);
+			long fingerprint = fingerprint(binaryPkgPrefix, source);
+			Files.createDirectories(file.getParent());
+			try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeUTF(source.toAbsolutePath().toString());
+				out.writeLong(attr.isRegularFile() ? attr.size() : -1);
+				out.writeLong(attr.isRegularFile() ? attr.lastModifiedTime().toMillis() : -1);
+				out.writeLong(fingerprint);
+				out.writeInt(entries.size());
+				for (Entry en : entries) {
+					out.writeUTF(en.node().name);
+					writeAnnotations(out, en.node().visibleAnnotations);
+					writeAnnotations(out, en.node().invisibleAnnotations);
+				}
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException | RuntimeException e) {
+			Lib39Log.debug("Failed to write AutoMixin index {}", file, e);
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException ignore) {}
+		}
+	}
+
+	private static Path indexFile(String binaryPkgPrefix) {
+		String name = binaryPkgPrefix.substring(0, binaryPkgPrefix.length()-1).replace('/', '.');
+		return FabricLoader.getInstance().getGameDir().resolve(".lib39").resolve("automixin").resolve(name+".idx");
+	}
+
+	/**
+	 * Hash the name, size and CRC (for a jar) or modification time (for a directory) of every class
+	 * in the mixin package. Jars only need their central directory read for this.
+	 */
+	private static long fingerprint(String binaryPkgPrefix, Path source) throws IOException {
+		Hasher h = Hashing.murmur3_128().newHasher();
+		if (Files.isDirectory(source)) {
+			Path pkgDir = source.resolve(binaryPkgPrefix);
+			if (Files.isDirectory(pkgDir)) {
+				List<String> lines = new ArrayList<>();
+				try (var stream = Files.walk(pkgDir)) {
+					for (Path p : (Iterable<Path>)stream::iterator) {
+						if (!p.toString().endsWith(".class")) continue;
+						var attr = Files.readAttributes(p, BasicFileAttributes.class);
+						lines.add(source.relativize(p).toString().replace('\\', '/')+":"+attr.size()+":"+attr.lastModifiedTime().toMillis());
+					}
+				}
+				// walk order isn't guaranteed
+				Collections.sort(lines);
+				for (String line : lines) h.putString(line, StandardCharsets.UTF_8);
+			}
+		} else {
+			try (ZipFile zip = new ZipFile(source.toFile())) {
+				for (var en : Collections.list(zip.entries())) {
+					String name = en.getName();
+					if (!name.startsWith(binaryPkgPrefix) || !name.endsWith(".class")) continue;
+					h.putString(name, StandardCharsets.UTF_8);
+					h.putLong(en.getSize());
+					h.putLong(en.getCrc());
+				}
+			}
+		}
+		return h.hash().asLong();
+	}
+
+	private static void writeAnnotations(DataOutputStream out, @Nullable List<AnnotationNode> annotations) throws IOException {
+		if (annotations == null) {
+			out.writeInt(-1);
+			return;
+		}
+		out.writeInt(annotations.size());
+		for (AnnotationNode an : annotations) {
+			writeAnnotation(out, an);
+		}
+	}
+
+	private static @Nullable List<AnnotationNode> readAnnotations(DataInputStream in) throws IOException {
+		int count = in.readInt();
+		if (count == -1) return null;
+		List<AnnotationNode> out = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			out.add(readAnnotation(in));
+		}
+		return out;
+	}
+
+	private static void writeAnnotation(DataOutputStream out, AnnotationNode an) throws IOException {
+		out.writeUTF(an.desc);
+		if (an.values == null) {
+			out.writeInt(0);
+			return;
+		}
+		out.writeInt(an.values.size()/2);
+		for (int i = 0; i < an.values.size(); i += 2) {
+			out.writeUTF((String)an.values.get(i));
+			writeValue(out, an.values.get(i+1));
+		}
+	}
+
+	private static AnnotationNode readAnnotation(DataInputStream in) throws IOException {
+		AnnotationNode an = new AnnotationNode(in.readUTF());
+		int count = in.readInt();
+		if (count > 0) {
+			an.values = new ArrayList<>(count*2);
+			for (int i = 0; i < count; i++) {
+				an.values.add(in.readUTF());
+				an.values.add(readValue(in));
+			}
+		}
+		return an;
+	}
+
+	// covers everything AnnotationNode can hold; ClassReader always turns arrays into Lists
+	private static void writeValue(DataOutputStream out, Object v) throws IOException {
+		if (v instanceof Byte b) {
+			out.writeByte('B');
+			out.writeByte(b);
+		} else if (v instanceof Boolean b) {
+			out.writeByte('Z');
+			out.writeBoolean(b);
+		} else if (v instanceof Character c) {
+			out.writeByte('C');
+			out.writeChar(c);
+		} else if (v instanceof Short s) {
+			out.writeByte('S');
+			out.writeShort(s);
+		} else if (v instanceof Integer i) {
+			out.writeByte('I');
+			out.writeInt(i);
+		} else if (v instanceof Long l) {
+			out.writeByte('J');
+			out.writeLong(l);
+		} else if (v instanceof Float f) {
+			out.writeByte('F');
+			out.writeFloat(f);
+		} else if (v instanceof Double d) {
+			out.writeByte('D');
+			out.writeDouble(d);
+		} else if (v instanceof String s) {
+			out.writeByte('s');
+			out.writeUTF(s);
+		} else if (v instanceof Type t) {
+			out.writeByte('c');
+			out.writeUTF(t.getDescriptor());
+		} else if (v instanceof String[] e && e.length == 2) {
+			out.writeByte('e');
+			out.writeUTF(e[0]);
+			out.writeUTF(e[1]);
+		} else if (v instanceof AnnotationNode an) {
+			out.writeByte('@');
+			writeAnnotation(out, an);
+		} else if (v instanceof List<?> li) {
+			out.writeByte('[');
+			out.writeInt(li.size());
+			for (Object o : li) {
+				writeValue(out, o);
+			}
+		} else {
+			throw new IOException("Don't know how to index annotation value "+v);
+		}
+	}
+
+	private static Object readValue(DataInputStream in) throws IOException {
+		int tag = in.readUnsignedByte();
+		return switch (tag) {
+			case 'B' -> in.readByte();
+			case 'Z' -> in.readBoolean();
+			case 'C' -> in.readChar();
+			case 'S' -> in.readShort();
+			case 'I' -> in.readInt();
+			case 'J' -> in.readLong();
+			case 'F' -> in.readFloat();
+			case 'D' -> in.readDouble();
+			case 's' -> in.readUTF();
+			case 'c' -> Type.getType(in.readUTF());
+			case 'e' -> new String[] { in.readUTF(), in.readUTF() };
+			case '@' -> readAnnotation(in);
+			case '[' -> {
+				int size = in.readInt();
+				List<Object> li = new ArrayList<>(size);
+				for (int i = 0; i < size; i++) {
+					li.add(readValue(in));
+				}
+				yield li;
+			}
+			default -> throw new IOException("Unknown annotation value tag "+tag);
+		};
+	}
+
+	private AutoMixinIndex() {}
+
+}
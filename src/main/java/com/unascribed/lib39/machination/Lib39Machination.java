@@ -2,6 +2,7 @@ package com.unascribed.lib39.machination;
 
 import com.unascribed.lib39.core.P39;
 import com.unascribed.lib39.core.api.AutoRegistry;
+import com.unascribed.lib39.core.api.StartupProfiler;
 import com.unascribed.lib39.machination.logic.SoakingHandler;
 import com.unascribed.lib39.machination.recipe.PistonSmashingRecipe;
 import com.unascribed.lib39.machination.recipe.SoakingRecipe;
@@ -29,11 +30,13 @@ public class Lib39Machination implements ModInitializer {
 	
 	@Override
 	public void onInitialize() {
-		autoreg.autoRegister(Registries.RECIPE_TYPE, RecipeTypes.class, RecipeType.class);
-		autoreg.autoRegister(Registries.RECIPE_SERIALIZER, RecipeSerializers.class, RecipeSerializer.class);
+		try (var s = StartupProfiler.begin("initializer", "lib39-machination")) {
+			autoreg.autoRegister(Registries.RECIPE_TYPE, RecipeTypes.class, RecipeType.class);
+			autoreg.autoRegister(Registries.RECIPE_SERIALIZER, RecipeSerializers.class, RecipeSerializer.class);
 		
-		ServerTickEvents.START_WORLD_TICK.register(SoakingHandler::startServerWorldTick);
-		ServerTickEvents.END_WORLD_TICK.register(SoakingHandler::endServerWorldTick);
+			ServerTickEvents.START_WORLD_TICK.register(SoakingHandler::startServerWorldTick);
+			ServerTickEvents.END_WORLD_TICK.register(SoakingHandler::endServerWorldTick);
+		}
 	}
 	
 	private static <T extends Recipe<?>> RecipeType<T> create(String id) {
@@ -3,6 +3,7 @@ package com.unascribed.lib39.mesh;
 import com.unascribed.lib39.mesh.api.BlockNetworkManager;
 
 import net.fabricmc.api.ModInitializer;
+import net.fabricmc.fabric.api.event.lifecycle.v1.ServerChunkEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerTickEvents;
 
 public class Lib39MeshInit implements ModInitializer {
@@ -12,6 +13,12 @@ public class Lib39MeshInit implements ModInitializer {
 		ServerTickEvents.START_WORLD_TICK.register((world) -> {
 			BlockNetworkManager.get(world).tick();
 		});
+		ServerChunkEvents.CHUNK_LOAD.register((world, chunk) -> {
+			BlockNetworkManager.get(world).onChunkLoaded(chunk.getPos());
+		});
+		ServerChunkEvents.CHUNK_UNLOAD.register((world, chunk) -> {
+			BlockNetworkManager.get(world).onChunkUnloaded(chunk.getPos());
+		});
 	}
 
 }
@@ -0,0 +1,315 @@
+package com.unascribed.lib39.mesh;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+import com.unascribed.lib39.mesh.api.BlockNetworkNode;
+
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.Iterators;
+import com.google.common.graph.AbstractGraph;
+import com.google.common.graph.ElementOrder;
+import com.google.common.graph.EndpointPair;
+import com.google.common.graph.MutableGraph;
+
+import it.unimi.dsi.fastutil.longs.Long2ByteMap;
+import it.unimi.dsi.fastutil.longs.Long2ByteOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * A MutableGraph of network nodes keyed by their packed position, storing edges as a 6-bit mask
+ * of which face-adjacent neighbors are connected. Only nodes that are directly adjacent in the
+ * world can be connected, and there can only be one node per position.
+ */
+public class PackedNodeGraph<N extends BlockNetworkNode> extends AbstractGraph<N> implements MutableGraph<N> {
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private final Long2ObjectMap<N> nodes = new Long2ObjectOpenHashMap<>();
+	private final Long2ByteMap masks = new Long2ByteOpenHashMap();
+
+	private final Set<N> nodesView = new AbstractSet<N>() {
+		@Override
+		public Iterator<N> iterator() {
+			Iterator<N> delegate = nodes.values().iterator();
+			return new Iterator<N>() {
+				private N last;
+
+				@Override
+				public boolean hasNext() {
+					return delegate.hasNext();
+				}
+
+				@Override
+				public N next() {
+					return last = delegate.next();
+				}
+
+				@Override
+				public void remove() {
+					if (last == null) throw new IllegalStateException();
+					long pos = last.getPos().asLong();
+					disconnect(pos);
+					delegate.remove();
+					masks.remove(pos);
+					last = null;
+				}
+			};
+		}
+
+		@Override
+		public boolean contains(Object o) {
+			return o instanceof BlockNetworkNode n && nodes.get(n.getPos().asLong()) == n;
+		}
+
+		@Override
+		public boolean remove(Object o) {
+			if (!contains(o)) return false;
+			@SuppressWarnings("unchecked") // contains ensures this is one of our nodes
+			N n = (N)o;
+			return removeNode(n);
+		}
+
+		@Override
+		public void clear() {
+			nodes.clear();
+			masks.clear();
+		}
+
+		@Override
+		public int size() {
+			return nodes.size();
+		}
+	};
+
+	private final Map<BlockPos, N> byPosView = new AbstractMap<BlockPos, N>() {
+		private final Set<Map.Entry<BlockPos, N>> entrySet = new AbstractSet<Map.Entry<BlockPos, N>>() {
+			@Override
+			public Iterator<Map.Entry<BlockPos, N>> iterator() {
+				return Iterators.transform(nodes.values().iterator(), n -> Map.entry(n.getPos(), n));
+			}
+
+			@Override
+			public int size() {
+				return nodes.size();
+			}
+		};
+
+		@Override
+		public N get(Object key) {
+			return key instanceof BlockPos bp ? nodes.get(bp.asLong()) : null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return key instanceof BlockPos bp && nodes.containsKey(bp.asLong());
+		}
+
+		@Override
+		public Set<Map.Entry<BlockPos, N>> entrySet() {
+			return entrySet;
+		}
+
+		@Override
+		public int size() {
+			return nodes.size();
+		}
+	};
+
+	public PackedNodeGraph() {
+		masks.defaultReturnValue((byte)0);
+	}
+
+	/**
+	 * @return a read-only live view of this graph's nodes keyed by their position
+	 */
+	public Map<BlockPos, N> byPos() {
+		return byPosView;
+	}
+
+	public N get(long pos) {
+		return nodes.get(pos);
+	}
+
+	public boolean contains(long pos) {
+		return nodes.containsKey(pos);
+	}
+
+	/**
+	 * @return the 6-bit mask of connected neighbors of the node at the given position, indexed by
+	 * 		{@link Direction#getId}
+	 */
+	public int getNeighborMask(long pos) {
+		return masks.get(pos) & 0xFF;
+	}
+
+	@Override
+	public Set<N> nodes() {
+		return nodesView;
+	}
+
+	@Override
+	public boolean isDirected() {
+		return false;
+	}
+
+	@Override
+	public boolean allowsSelfLoops() {
+		return false;
+	}
+
+	@Override
+	public ElementOrder<N> nodeOrder() {
+		return ElementOrder.unordered();
+	}
+
+	@Override
+	public Set<N> adjacentNodes(N node) {
+		long pos = checkMember(node);
+		return new AbstractSet<N>() {
+			@Override
+			public Iterator<N> iterator() {
+				return new AbstractIterator<N>() {
+					private int i = 0;
+
+					@Override
+					protected N computeNext() {
+						int mask = getNeighborMask(pos);
+						while (i < DIRECTIONS.length) {
+							Direction d = DIRECTIONS[i++];
+							if ((mask & (1 << d.getId())) != 0) {
+								return nodes.get(BlockPos.offset(pos, d));
+							}
+						}
+						return endOfData();
+					}
+				};
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				if (!(o instanceof BlockNetworkNode n)) return false;
+				Direction d = directionTo(pos, n.getPos().asLong());
+				return d != null && (getNeighborMask(pos) & (1 << d.getId())) != 0 && nodes.get(n.getPos().asLong()) == n;
+			}
+
+			@Override
+			public int size() {
+				return Integer.bitCount(getNeighborMask(pos));
+			}
+		};
+	}
+
+	@Override
+	public Set<N> predecessors(N node) {
+		return adjacentNodes(node);
+	}
+
+	@Override
+	public Set<N> successors(N node) {
+		return adjacentNodes(node);
+	}
+
+	@Override
+	public boolean addNode(N node) {
+		long pos = node.getPos().asLong();
+		N cur = nodes.get(pos);
+		if (cur == node) return false;
+		if (cur != null) removeNode(cur);
+		nodes.put(pos, node);
+		return true;
+	}
+
+	@Override
+	public boolean putEdge(N nodeU, N nodeV) {
+		long u = nodeU.getPos().asLong();
+		long v = nodeV.getPos().asLong();
+		Direction d = directionTo(u, v);
+		if (d == null) {
+			throw new IllegalArgumentException("Cannot connect "+nodeU+" and "+nodeV+" in a packed graph as they are not adjacent");
+		}
+		addNode(nodeU);
+		addNode(nodeV);
+		int mask = getNeighborMask(u);
+		if ((mask & (1 << d.getId())) != 0) return false;
+		masks.put(u, (byte)(mask | (1 << d.getId())));
+		masks.put(v, (byte)(getNeighborMask(v) | (1 << d.getOpposite().getId())));
+		return true;
+	}
+
+	@Override
+	public boolean putEdge(EndpointPair<N> endpoints) {
+		return putEdge(endpoints.nodeU(), endpoints.nodeV());
+	}
+
+	@Override
+	public boolean removeNode(N node) {
+		long pos = node.getPos().asLong();
+		if (nodes.get(pos) != node) return false;
+		disconnect(pos);
+		nodes.remove(pos);
+		masks.remove(pos);
+		return true;
+	}
+
+	@Override
+	public boolean removeEdge(N nodeU, N nodeV) {
+		if (!nodesView.contains(nodeU) || !nodesView.contains(nodeV)) return false;
+		long u = nodeU.getPos().asLong();
+		long v = nodeV.getPos().asLong();
+		Direction d = directionTo(u, v);
+		if (d == null) return false;
+		int mask = getNeighborMask(u);
+		if ((mask & (1 << d.getId())) == 0) return false;
+		setMask(u, mask & ~(1 << d.getId()));
+		setMask(v, getNeighborMask(v) & ~(1 << d.getOpposite().getId()));
+		return true;
+	}
+
+	@Override
+	public boolean removeEdge(EndpointPair<N> endpoints) {
+		return removeEdge(endpoints.nodeU(), endpoints.nodeV());
+	}
+
+	private void disconnect(long pos) {
+		int mask = getNeighborMask(pos);
+		for (Direction d : DIRECTIONS) {
+			if ((mask & (1 << d.getId())) != 0) {
+				long other = BlockPos.offset(pos, d);
+				setMask(other, getNeighborMask(other) & ~(1 << d.getOpposite().getId()));
+			}
+		}
+	}
+
+	private void setMask(long pos, int mask) {
+		if (mask == 0) {
+			masks.remove(pos);
+		} else {
+			masks.put(pos, (byte)mask);
+		}
+	}
+
+	private long checkMember(N node) {
+		long pos = node.getPos().asLong();
+		if (nodes.get(pos) != node) throw new IllegalArgumentException("Node "+node+" is not an element of this graph.");
+		return pos;
+	}
+
+	/**
+	 * @return the direction from {@code from} to {@code to}, or null if they are not adjacent
+	 */
+	public static Direction directionTo(long from, long to) {
+		int dx = BlockPos.unpackLongX(to)-BlockPos.unpackLongX(from);
+		int dy = BlockPos.unpackLongY(to)-BlockPos.unpackLongY(from);
+		int dz = BlockPos.unpackLongZ(to)-BlockPos.unpackLongZ(from);
+		if (Math.abs(dx)+Math.abs(dy)+Math.abs(dz) != 1) return null;
+		return Direction.fromVector(dx, dy, dz);
+	}
+
+}
@@ -1,11 +1,14 @@
 package com.unascribed.lib39.mesh.api;
 
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 
 import com.unascribed.lib39.core.Lib39Log;
+import com.unascribed.lib39.mesh.PackedNodeGraph;
 import com.unascribed.lib39.util.api.NBTUtils;
 
 import com.google.common.base.Ascii;
@@ -13,49 +16,69 @@ import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
-import com.google.common.collect.Sets;
 import com.google.common.graph.ElementOrder;
 import com.google.common.graph.GraphBuilder;
-import com.google.common.graph.Graphs;
 import com.google.common.graph.MutableGraph;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import net.fabricmc.fabric.api.util.NbtType;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.nbt.NbtIntArray;
 import net.minecraft.nbt.NbtList;
+import net.minecraft.nbt.NbtLongArray;
+import net.minecraft.nbt.NbtString;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
 
 public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNodeType> {
 
+	private static final Direction[] DIRECTIONS = Direction.values();
+
 	private final BlockNetworkManager owner;
 	private final BlockNetworkType<N, T> type;
 	private final UUID id;
-	private final MutableGraph<N> members = GraphBuilder.undirected()
-			.allowsSelfLoops(true)
-			.nodeOrder(ElementOrder.unordered())
-			.build();
-	
-	private final Map<BlockPos, N> membersByPos = Maps.newHashMap();
+	private final boolean packed;
+	private final PackedNodeGraph<N> packedMembers;
+	private final MutableGraph<N> members;
+	private final Map<BlockPos, N> membersByPos;
 	private final Multimap<BlockNetworkNodeType, N> membersByType = HashMultimap.create();
+	
+	private volatile boolean dormant;
 
 	
 	protected BlockNetwork(BlockNetworkManager owner, BlockNetworkType<N, T> type, UUID id) {
 		this.owner = owner;
 		this.type = type;
 		this.id = id;
+		this.packed = type.usesPackedStorage();
+		if (packed) {
+			this.packedMembers = new PackedNodeGraph<>();
+			this.members = packedMembers;
+			this.membersByPos = packedMembers.byPos();
+		} else {
+			this.packedMembers = null;
+			this.members = GraphBuilder.undirected()
+					.allowsSelfLoops(true)
+					.nodeOrder(ElementOrder.unordered())
+					.build();
+			this.membersByPos = Maps.newHashMap();
+		}
 	}
 
 	/**
 	 * <b>Dangerous.</b> Use sparingly.
 	 */
 	public void removeNodeDirectly(N n) {
-		members.removeNode(n);
-		membersByPos.remove(n.getPos(), n);
+		if (members.removeNode(n)) owner.storage.onNodeRemoved(this, n.getPos());
+		if (!packed) membersByPos.remove(n.getPos(), n);
 		membersByType.remove(n.getType(), n);
-		owner.networksByPos.remove(n.getPos(), this);
+		owner.removeNetworkAt(type, n.getPos().asLong(), this);
 	}
 	
 	/**
@@ -66,49 +89,24 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 			removeNodeDirectly(membersByPos.get(n.getPos()));
 		}
 		members.addNode(n);
-		membersByPos.put(n.getPos(), n);
+		owner.storage.onNodeAdded(this, n.getPos());
+		if (!packed) membersByPos.put(n.getPos(), n);
 		membersByType.put(n.getType(), n);
-		owner.networksByPos.put(n.getPos(), type, this);
+		owner.putNetworkAt(type, n.getPos().asLong(), this);
 	}
 	
 	public void removeNodeAt(BlockPos pos) {
 		Lib39Log.trace("Removing {} from network {}", pos, id);
 		if (membersByPos.containsKey(pos)) {
 			N node = membersByPos.get(pos);
-			Set<N> neighbors = Sets.newHashSet(members.adjacentNodes(node));
+			List<N> neighbors = Lists.newArrayList(members.adjacentNodes(node));
+			neighbors.remove(node);
 			removeNodeDirectly(node);
 			if (neighbors.size() > 1) {
-				for (N a : neighbors) {
-					if (!members.nodes().contains(a)) continue;
-					for (N b : neighbors) {
-						if (!members.nodes().contains(b)) continue;
-						if (a == b) continue;
-						if (!isReachable(a, b)) {
-							BlockNetwork<N, T> other = type.construct(owner, UUID.randomUUID());
-							Lib39Log.debug("Splitting network {} of size {} off into {}", id, size(), other.id);
-							Set<N> reachable = Graphs.reachableNodes(members, b);
-							for (int p = 0; p < 3; p++) {
-								for (N n : reachable) {
-									if (p == 0) {
-										other.addNodeDirectly(n);
-									} else if (p == 1) {
-										for (N n2 : members.adjacentNodes(n)) {
-											other.members.putEdge(n, n2);
-										}
-									} else if (p == 2) {
-										removeNodeDirectly(n);
-									}
-								}
-							}
-							other.update();
-							Lib39Log.debug("Network {} is now of size {}, and {} is of size {}", id, size(), other.id, other.size());
-							owner.addNetwork(other);
-						}
-					}
-				}
+				splitIfDisconnected(neighbors);
 			}
 			update();
-			owner.markDirty();
+			owner.markDirty(this);
 			if (isEmpty()) {
 				Lib39Log.debug("Destroying empty network {}", id);
 				owner.removeNetwork(this);
@@ -116,6 +114,104 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 		}
 	}
 	
+	/**
+	 * Runs a breadth-first search from each of the given nodes in lockstep. Searches that meet
+	 * are merged; a search that runs out of frontier before meeting the others has found a piece
+	 * that is no longer connected, and is split off into a new network. As every search advances
+	 * at the same rate, this costs roughly the size of the smaller pieces rather than the whole
+	 * network, and stops as soon as only one unfinished search is left.
+	 */
+	private void splitIfDisconnected(List<N> origins) {
+		int count = origins.size();
+		int[] parent = new int[count];
+		boolean[] done = new boolean[count];
+		List<ArrayDeque<N>> frontiers = Lists.newArrayListWithCapacity(count);
+		List<List<N>> visitedLists = Lists.newArrayListWithCapacity(count);
+		Map<N, Integer> visitedBy = Maps.newHashMap();
+		for (int i = 0; i < count; i++) {
+			N n = origins.get(i);
+			parent[i] = i;
+			ArrayDeque<N> frontier = new ArrayDeque<>();
+			List<N> visited = Lists.newArrayList();
+			Integer prev = visitedBy.putIfAbsent(n, i);
+			if (prev == null) {
+				frontier.add(n);
+				visited.add(n);
+			}
+			frontiers.add(frontier);
+			visitedLists.add(visited);
+		}
+		int active = 0;
+		for (int i = 0; i < count; i++) {
+			if (!visitedLists.get(i).isEmpty()) {
+				active++;
+			} else {
+				parent[i] = visitedBy.get(origins.get(i));
+				done[i] = true;
+			}
+		}
+		while (active > 1) {
+			for (int i = 0; i < count && active > 1; i++) {
+				if (done[i] || parent[i] != i) continue;
+				ArrayDeque<N> frontier = frontiers.get(i);
+				N n = frontier.poll();
+				if (n == null) {
+					split(visitedLists.get(i));
+					done[i] = true;
+					active--;
+					continue;
+				}
+				for (N adj : members.adjacentNodes(n)) {
+					Integer seenBy = visitedBy.get(adj);
+					if (seenBy == null) {
+						visitedBy.put(adj, i);
+						visitedLists.get(i).add(adj);
+						frontier.add(adj);
+					} else {
+						int other = find(parent, seenBy);
+						if (other != i) {
+							parent[other] = i;
+							frontier.addAll(frontiers.get(other));
+							visitedLists.get(i).addAll(visitedLists.get(other));
+							frontiers.set(other, null);
+							visitedLists.set(other, null);
+							active--;
+						}
+					}
+				}
+			}
+		}
+	}
+	
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+	
+	private void split(List<N> piece) {
+		BlockNetwork<N, T> other = type.construct(owner, UUID.randomUUID());
+		Lib39Log.debug("Splitting network {} of size {} off into {}", id, size(), other.id);
+		for (int p = 0; p < 3; p++) {
+			for (N n : piece) {
+				if (p == 0) {
+					other.addNodeDirectly(n);
+				} else if (p == 1) {
+					for (N n2 : members.adjacentNodes(n)) {
+						other.members.putEdge(n, n2);
+					}
+				} else if (p == 2) {
+					removeNodeDirectly(n);
+				}
+			}
+		}
+		other.update();
+		Lib39Log.debug("Network {} is now of size {}, and {} is of size {}", id, size(), other.id, other.size());
+		owner.addNetwork(other);
+	}
+	
 	public void addNode(N node) {
 		N cur = membersByPos.get(node.getPos());
 		if (cur != null && cur.getType() == node.getType()) return;
@@ -131,7 +227,7 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 				members.putEdge(node, n);
 			} else {
 				@SuppressWarnings("unchecked") // the type argument ensures the generic matches
-				BlockNetwork<N, T> other = (BlockNetwork<N, T>)owner.networksByPos.get(neighbor, type);
+				BlockNetwork<N, T> other = (BlockNetwork<N, T>)owner.getNetworkAt(type, neighbor.asLong());
 				if (other != null) {
 					N originator = other.membersByPos.get(neighbor);
 					if (originator != null) {
@@ -155,18 +251,25 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 			}
 		}
 		update();
-		owner.markDirty();
+		owner.markDirty(this);
 	}
 	
 	public void clear() {
-		for (BlockPos bp : membersByPos.keySet()) {
-			owner.networksByPos.row(bp).remove(type, this);
+		clearDirectly();
+		update();
+		owner.markDirty(this);
+	}
+	
+	private void clearDirectly() {
+		for (N n : members.nodes()) {
+			owner.removeNetworkAt(type, n.getPos().asLong(), this);
+			owner.storage.onNodeRemoved(this, n.getPos());
+		}
+		for (N n : Lists.newArrayList(members.nodes())) {
+			members.removeNode(n);
 		}
-		members.nodes().clear();
-		membersByPos.clear();
+		if (!packed) membersByPos.clear();
 		membersByType.clear();
-		update();
-		owner.markDirty();
 	}
 
 	public void tick() {
@@ -174,9 +277,22 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 	}
 	
 	public void update() {
+		dormant = false;
 		type.update(this);
 	}
 	
+	/**
+	 * A dormant network is skipped when ticking until it is next updated, i.e. until a node is
+	 * added or removed.
+	 */
+	public void setDormant(boolean dormant) {
+		this.dormant = dormant;
+	}
+	
+	public boolean isDormant() {
+		return dormant;
+	}
+	
 	public BlockNetworkManager getOwner() {
 		return owner;
 	}
@@ -193,10 +309,6 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 		return id;
 	}
 	
-	private boolean isReachable(N from, N to) {
-		return Graphs.reachableNodes(members, from).contains(to);
-	}
-
 	public int size() {
 		return members.nodes().size();
 	}
@@ -209,6 +321,10 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 		return members;
 	}
 	
+	/**
+	 * If this network's type {@link BlockNetworkType#usesPackedStorage uses packed storage}, the
+	 * returned map is a read-only view.
+	 */
 	public Map<BlockPos, N> getMembersByPos() {
 		return membersByPos;
 	}
@@ -218,23 +334,120 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 	}
 
 	public void onAdded() {
-		for (BlockPos bp : membersByPos.keySet()) {
-			owner.networksByPos.put(bp, type, this);
+		for (N n : members.nodes()) {
+			owner.putNetworkAt(type, n.getPos().asLong(), this);
 		}
 		update();
 	}
 
 	public void onRemoved() {
-		for (BlockPos bp : membersByPos.keySet()) {
-			owner.networksByPos.row(bp).remove(type, this);
+		for (N n : members.nodes()) {
+			owner.removeNetworkAt(type, n.getPos().asLong(), this);
 		}
 	}
 	
+	private N getNodeAt(long pos) {
+		return packed ? packedMembers.get(pos) : membersByPos.get(BlockPos.fromLong(pos));
+	}
+	
 	public void readNbt(NbtCompound compound) {
+		if (compound.contains("Positions", NbtType.LONG_ARRAY)) {
+			readPackedNbt(compound);
+		} else {
+			readLegacyNbt(compound);
+		}
+	}
+	
+	private void readPackedNbt(NbtCompound compound) {
+		clearDirectly();
+		NbtList paletteTag = compound.getList("Palette", NbtType.STRING);
+		List<T> palette = Lists.newArrayListWithCapacity(paletteTag.size());
+		for (int i = 0; i < paletteTag.size(); i++) {
+			String typeStr = Ascii.toUpperCase(paletteTag.getString(i));
+			T nodeType = null;
+			for (T nt : type.getNodeTypes()) {
+				if (nt.name().equals(typeStr)) {
+					nodeType = nt;
+					break;
+				}
+			}
+			if (nodeType == null) {
+				Lib39Log.warn("Unknown node type {} found in network {} during deserialization. Discarding nodes of that type!", typeStr, id);
+			}
+			palette.add(nodeType);
+		}
+		long[] positions = compound.getLongArray("Positions");
+		int[] nodeInfo = compound.getIntArray("Nodes");
+		if (nodeInfo.length != positions.length) {
+			Lib39Log.warn("Network {} has {} positions but {} nodes. Discarding!", id, positions.length, nodeInfo.length);
+			return;
+		}
+		NbtCompound data = compound.getCompound("Data");
+		List<N> nodes = Lists.newArrayListWithCapacity(positions.length);
+		long pos = 0;
+		for (int i = 0; i < positions.length; i++) {
+			pos += positions[i];
+			int paletteIdx = nodeInfo[i] >>> 6;
+			T nodeType = paletteIdx < palette.size() ? palette.get(paletteIdx) : null;
+			if (nodeType == null) {
+				nodes.add(null);
+				continue;
+			}
+			N n = type.deserializeNode(BlockPos.fromLong(pos), nodeType, data.getCompound(Integer.toString(i)));
+			nodes.add(n);
+			addNodeDirectly(n);
+		}
+		for (int i = 0; i < nodes.size(); i++) {
+			N n = nodes.get(i);
+			if (n == null) continue;
+			int mask = nodeInfo[i] & 0b111111;
+			if (mask == 0) continue;
+			long nPos = n.getPos().asLong();
+			for (Direction d : DIRECTIONS) {
+				if ((mask & (1 << d.getId())) != 0) {
+					N neighbor = getNodeAt(BlockPos.offset(nPos, d));
+					if (neighbor != null) members.putEdge(n, neighbor);
+				}
+			}
+		}
+		int[] links = compound.getIntArray("Links");
+		int dropped = 0;
+		for (int i = 0; i+1 < links.length; i += 2) {
+			int a = links[i];
+			int b = links[i+1];
+			if (a < 0 || b < 0 || a >= nodes.size() || b >= nodes.size()) continue;
+			N na = nodes.get(a);
+			N nb = nodes.get(b);
+			if (na != null && nb != null && !putLoadedEdge(na, nb)) dropped++;
+		}
+		warnDroppedLinks(dropped);
+	}
+	
+	/**
+	 * Connect two nodes read from saved data. A packed network can only connect adjacent nodes,
+	 * and the data may have been saved before its type switched to packed storage, so any other
+	 * connection is skipped rather than failing the load.
+	 *
+	 * @return false if the connection was skipped
+	 */
+	private boolean putLoadedEdge(N a, N b) {
+		if (packed && a.getPos().getManhattanDistance(b.getPos()) != 1) return false;
+		members.putEdge(a, b);
+		return true;
+	}
+	
+	private void warnDroppedLinks(int dropped) {
+		if (dropped > 0) {
+			Lib39Log.warn("Network {} has {} connection{} between non-adjacent nodes, which its packed storage can't hold. Discarding them!",
+					id, dropped, dropped == 1 ? "" : "s");
+		}
+	}
+	
+	private void readLegacyNbt(NbtCompound compound) {
 		NbtList li = compound.getList("Nodes", NbtType.COMPOUND);
 		List<N> nodes = Lists.newArrayList();
 		List<Map.Entry<N, int[]>> conns = Lists.newArrayList();
-		clear();
+		clearDirectly();
 		for (int i = 0; i < li.size(); i++) {
 			NbtCompound en = li.getCompound(i);
 			BlockPos pos = NBTUtils.listToBlockPos(en.getList("Pos", NbtType.INT));
@@ -255,37 +468,92 @@ public class BlockNetwork<N extends BlockNetworkNode, T extends BlockNetworkNode
 			conns.add(Maps.immutableEntry(n, en.getIntArray("Conn")));
 			addNodeDirectly(n);
 		}
+		int dropped = 0;
 		for (Map.Entry<N, int[]> en : conns) {
 			N n = en.getKey();
 			int[] conn = en.getValue();
 			for (int c : conn) {
 				N cn = nodes.get(c);
-				members.putEdge(n, cn);
+				if (!putLoadedEdge(n, cn)) dropped++;
 			}
 		}
+		warnDroppedLinks(dropped);
 	}
 	
+	/**
+	 * Writes this network in the packed format. Positions are sorted and delta-encoded, node types
+	 * are written as indices into a palette, and connections between adjacent nodes are written
+	 * as a 6-bit neighbor mask alongside the type index. Any other connections are written as
+	 * pairs of node indices.
+	 */
 	public void writeNbt(NbtCompound compound) {
 		Identifier typeId = BlockNetworkManager.getId(type);
 		if (typeId == null) {
 			Lib39Log.warn("Unregistered network type {} encountered while attempting to save network {}. Discarding!", type, id);
 			return;
 		}
-		List<N> nodes = Lists.newArrayList(members.nodes());
-		NbtList li = new NbtList();
-		for (int i = 0; i < nodes.size(); i++) {
-			N n = nodes.get(i);
-			NbtCompound en = new NbtCompound();
-			en.put("Pos", NBTUtils.blockPosToList(n.getPos()));
-			en.putString("Type", Ascii.toLowerCase(n.getType().name()));
-			IntArrayList conn = new IntArrayList();
-			for (N ne : members.adjacentNodes(n)) {
-				conn.add(nodes.indexOf(ne));
+		long[] positions = new long[size()];
+		int idx = 0;
+		for (N n : members.nodes()) {
+			positions[idx++] = n.getPos().asLong();
+		}
+		Arrays.sort(positions);
+		Long2IntMap indices = packed ? null : new Long2IntOpenHashMap(positions.length);
+		if (indices != null) {
+			for (int i = 0; i < positions.length; i++) {
+				indices.put(positions[i], i);
+			}
+		}
+		Reference2IntMap<BlockNetworkNodeType> paletteIndices = new Reference2IntOpenHashMap<>();
+		paletteIndices.defaultReturnValue(-1);
+		NbtList palette = new NbtList();
+		int[] nodeInfo = new int[positions.length];
+		IntArrayList links = new IntArrayList();
+		NbtCompound data = new NbtCompound();
+		long last = 0;
+		for (int i = 0; i < positions.length; i++) {
+			long pos = positions[i];
+			positions[i] = pos-last;
+			last = pos;
+			N n = getNodeAt(pos);
+			int paletteIdx = paletteIndices.getInt(n.getType());
+			if (paletteIdx == -1) {
+				paletteIdx = palette.size();
+				paletteIndices.put(n.getType(), paletteIdx);
+				palette.add(NbtString.of(Ascii.toLowerCase(n.getType().name())));
+			}
+			int mask;
+			if (packed) {
+				mask = packedMembers.getNeighborMask(pos);
+			} else {
+				mask = 0;
+				for (N ne : members.adjacentNodes(n)) {
+					long nePos = ne.getPos().asLong();
+					Direction d = PackedNodeGraph.directionTo(pos, nePos);
+					if (d != null) {
+						mask |= 1 << d.getId();
+					} else {
+						int j = indices.get(nePos);
+						// only write each non-adjacent link once
+						if (j >= i) {
+							links.add(i);
+							links.add(j);
+						}
+					}
+				}
+			}
+			nodeInfo[i] = (paletteIdx << 6) | mask;
+			NbtCompound nodeData = new NbtCompound();
+			n.serializeNbt(nodeData);
+			if (!nodeData.isEmpty()) {
+				data.put(Integer.toString(i), nodeData);
 			}
-			en.put("Conn", new NbtIntArray(conn.toIntArray()));
-			li.add(en);
 		}
-		compound.put("Nodes", li);
+		compound.put("Positions", new NbtLongArray(positions));
+		compound.put("Nodes", new NbtIntArray(nodeInfo));
+		compound.put("Palette", palette);
+		if (!links.isEmpty()) compound.put("Links", new NbtIntArray(links.toIntArray()));
+		if (!data.isEmpty()) compound.put("Data", data);
 		compound.putString("Type", typeId.toString());
 	}
 	
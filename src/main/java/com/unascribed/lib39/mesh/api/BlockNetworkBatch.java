@@ -0,0 +1,278 @@
+package com.unascribed.lib39.mesh.api;
+
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.LongLinkedOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+
+/**
+ * Collects introductions and destructions made while a {@link BlockNetworkManager} is batching,
+ * and applies them all at once on commit. Connected components are resolved with a single
+ * union-find pass; networks that only gain nodes are treated as one element each, while
+ * networks that lose nodes are broken down into their individual nodes as they may have split.
+ */
+final class BlockNetworkBatch {
+
+	private static final Direction[] DIRECTIONS = Direction.values();
+
+	private static final class Pending {
+		final Long2ObjectMap<BlockNetworkNodeType> introductions = new Long2ObjectLinkedOpenHashMap<>();
+		final LongSet destructions = new LongLinkedOpenHashSet();
+	}
+
+	private final BlockNetworkManager owner;
+	private final Map<BlockNetworkType<?, ?>, Pending> pending = new Reference2ObjectLinkedOpenHashMap<>();
+
+	BlockNetworkBatch(BlockNetworkManager owner) {
+		this.owner = owner;
+	}
+
+	void introduce(BlockNetworkType<?, ?> type, BlockPos pos, BlockNetworkNodeType nodeType) {
+		pending.computeIfAbsent(type, k -> new Pending()).introductions.put(pos.asLong(), nodeType);
+	}
+
+	void destroy(BlockNetworkType<?, ?> type, BlockPos pos) {
+		Pending p = pending.computeIfAbsent(type, k -> new Pending());
+		long l = pos.asLong();
+		p.introductions.remove(l);
+		p.destructions.add(l);
+	}
+
+	void commit() {
+		for (Map.Entry<BlockNetworkType<?, ?>, Pending> en : pending.entrySet()) {
+			commit(en.getKey(), en.getValue());
+		}
+		pending.clear();
+	}
+
+	@SuppressWarnings("unchecked") // the type argument ensures the generic matches
+	private <N extends BlockNetworkNode, T extends BlockNetworkNodeType> void commit(BlockNetworkType<N, T> type, Pending p) {
+		Set<BlockNetwork<N, T>> dissolved = Sets.newLinkedHashSet();
+		for (long l : p.destructions) {
+			BlockNetwork<N, T> net = (BlockNetwork<N, T>)owner.getNetworkAt(type, l);
+			if (net == null) continue;
+			N n = net.getMembersByPos().get(BlockPos.fromLong(l));
+			if (n != null) {
+				net.removeNodeDirectly(n);
+				dissolved.add(net);
+			}
+		}
+		List<N> introduced = Lists.newArrayListWithCapacity(p.introductions.size());
+		for (Long2ObjectMap.Entry<BlockNetworkNodeType> en : p.introductions.long2ObjectEntrySet()) {
+			long l = en.getLongKey();
+			BlockPos pos = BlockPos.fromLong(l);
+			BlockNetwork<N, T> net = (BlockNetwork<N, T>)owner.getNetworkAt(type, l);
+			if (net != null) {
+				N cur = net.getMembersByPos().get(pos);
+				if (cur != null) {
+					if (cur.getType() == en.getValue()) continue;
+					net.removeNodeDirectly(cur);
+					dissolved.add(net);
+				}
+			}
+			introduced.add(type.createNode(pos, (T)en.getValue()));
+		}
+
+		// union-find elements are whole networks that only gained nodes, then individual nodes
+		List<BlockNetwork<N, T>> blobs = Lists.newArrayList();
+		Reference2IntMap<BlockNetwork<N, T>> blobIndices = new Reference2IntOpenHashMap<>();
+		blobIndices.defaultReturnValue(-1);
+		for (N n : introduced) {
+			long l = n.getPos().asLong();
+			for (Direction d : DIRECTIONS) {
+				BlockNetwork<N, T> net = (BlockNetwork<N, T>)owner.getNetworkAt(type, BlockPos.offset(l, d));
+				if (net != null && !dissolved.contains(net) && !blobIndices.containsKey(net)) {
+					blobIndices.put(net, blobs.size());
+					blobs.add(net);
+				}
+			}
+		}
+		List<N> nodes = Lists.newArrayList();
+		List<BlockNetwork<N, T>> nodeOrigins = Lists.newArrayList();
+		Long2IntMap nodeIndices = new Long2IntOpenHashMap();
+		nodeIndices.defaultReturnValue(-1);
+		for (BlockNetwork<N, T> net : dissolved) {
+			for (N n : net.getMembers().nodes()) {
+				nodeIndices.put(n.getPos().asLong(), blobs.size()+nodes.size());
+				nodes.add(n);
+				nodeOrigins.add(net);
+			}
+		}
+		for (N n : introduced) {
+			nodeIndices.put(n.getPos().asLong(), blobs.size()+nodes.size());
+			nodes.add(n);
+			nodeOrigins.add(null);
+		}
+		int[] parent = new int[blobs.size()+nodes.size()];
+		for (int i = 0; i < parent.length; i++) parent[i] = i;
+		for (int i = 0; i < nodes.size(); i++) {
+			N n = nodes.get(i);
+			int idx = blobs.size()+i;
+			BlockNetwork<N, T> origin = nodeOrigins.get(i);
+			if (origin != null) {
+				for (N adj : origin.getMembers().adjacentNodes(n)) {
+					union(parent, idx, nodeIndices.get(adj.getPos().asLong()));
+				}
+			} else {
+				long l = n.getPos().asLong();
+				for (Direction d : DIRECTIONS) {
+					long nl = BlockPos.offset(l, d);
+					int other = nodeIndices.get(nl);
+					if (other == -1) {
+						BlockNetwork<?, ?> net = owner.getNetworkAt(type, nl);
+						if (net != null) other = blobIndices.getInt(net);
+					}
+					if (other != -1) union(parent, idx, other);
+				}
+			}
+		}
+
+		// keep the largest existing networks, so the fewest nodes move. a network that was split
+		// can only be kept by one of its pieces, so it goes to whichever holds most of its members
+		Map<BlockNetwork<N, T>, Int2IntMap> candidates = new Reference2ObjectOpenHashMap<>();
+		for (int i = 0; i < parent.length; i++) {
+			BlockNetwork<N, T> candidate = i < blobs.size() ? blobs.get(i) : nodeOrigins.get(i-blobs.size());
+			if (candidate == null) continue;
+			int members = i < blobs.size() ? candidate.size() : 1;
+			candidates.computeIfAbsent(candidate, k -> new Int2IntOpenHashMap()).mergeInt(find(parent, i), members, Integer::sum);
+		}
+		List<BlockNetwork<N, T>> bySize = Lists.newArrayList(candidates.keySet());
+		bySize.sort(Comparator.comparingInt((BlockNetwork<N, T> net) -> net.size()).reversed());
+		BlockNetwork<N, T>[] targets = new BlockNetwork[parent.length];
+		for (BlockNetwork<N, T> net : bySize) {
+			int best = -1;
+			int bestMembers = 0;
+			for (Int2IntMap.Entry en : candidates.get(net).int2IntEntrySet()) {
+				if (targets[en.getIntKey()] == null && en.getIntValue() > bestMembers) {
+					best = en.getIntKey();
+					bestMembers = en.getIntValue();
+				}
+			}
+			if (best != -1) targets[best] = net;
+		}
+		Set<BlockNetwork<N, T>> changed = Sets.newLinkedHashSet();
+		Set<BlockNetwork<N, T>> created = Sets.newLinkedHashSet();
+		Set<BlockNetwork<N, T>> emptied = Sets.newLinkedHashSet();
+		for (int i = 0; i < parent.length; i++) {
+			int root = find(parent, i);
+			if (targets[root] == null) {
+				BlockNetwork<N, T> net = type.construct(owner, UUID.randomUUID());
+				Lib39Log.debug("Creating new network {} of type {} for batch", net.getId(), BlockNetworkManager.getId(type));
+				targets[root] = net;
+				created.add(net);
+			}
+		}
+		// add everything to its new network before copying edges, so edges never point outside
+		IntArrayList moved = new IntArrayList();
+		for (int i = 0; i < parent.length; i++) {
+			BlockNetwork<N, T> target = targets[find(parent, i)];
+			if (i < blobs.size()) {
+				BlockNetwork<N, T> blob = blobs.get(i);
+				if (blob == target) continue;
+				Lib39Log.debug("Joining network {} of size {} into network {} of size {}", blob.getId(), blob.size(), target.getId(), target.size());
+				for (N n : blob.getMembers().nodes()) {
+					target.addNodeDirectly(n);
+				}
+				moved.add(i);
+				emptied.add(blob);
+			} else {
+				BlockNetwork<N, T> origin = nodeOrigins.get(i-blobs.size());
+				if (origin == target) continue;
+				target.addNodeDirectly(nodes.get(i-blobs.size()));
+				moved.add(i);
+				if (origin != null) changed.add(origin);
+			}
+			if (!created.contains(target)) changed.add(target);
+		}
+		for (int i : moved) {
+			BlockNetwork<N, T> target = targets[find(parent, i)];
+			if (i < blobs.size()) {
+				BlockNetwork<N, T> blob = blobs.get(i);
+				for (N n : blob.getMembers().nodes()) {
+					for (N adj : blob.getMembers().adjacentNodes(n)) {
+						target.getMembers().putEdge(n, adj);
+					}
+				}
+			} else {
+				N n = nodes.get(i-blobs.size());
+				BlockNetwork<N, T> origin = nodeOrigins.get(i-blobs.size());
+				if (origin != null) {
+					for (N adj : origin.getMembers().adjacentNodes(n)) {
+						target.getMembers().putEdge(n, adj);
+					}
+				}
+			}
+		}
+		for (int i : moved) {
+			if (i < blobs.size()) continue;
+			N n = nodes.get(i-blobs.size());
+			BlockNetwork<N, T> origin = nodeOrigins.get(i-blobs.size());
+			if (origin != null) origin.removeNodeDirectly(n);
+		}
+		for (int i = blobs.size(); i < parent.length; i++) {
+			if (nodeOrigins.get(i-blobs.size()) != null) continue;
+			N n = nodes.get(i-blobs.size());
+			BlockNetwork<N, T> target = targets[find(parent, i)];
+			long l = n.getPos().asLong();
+			for (Direction d : DIRECTIONS) {
+				N adj = target.getMembersByPos().get(BlockPos.fromLong(BlockPos.offset(l, d)));
+				if (adj != null) target.getMembers().putEdge(n, adj);
+			}
+		}
+
+		changed.addAll(dissolved);
+		changed.removeAll(emptied);
+		for (BlockNetwork<N, T> net : changed) {
+			if (net.isEmpty()) {
+				Lib39Log.debug("Destroying empty network {}", net.getId());
+				owner.removeNetwork(net);
+			} else {
+				net.update();
+				owner.markDirty(net);
+			}
+		}
+		for (BlockNetwork<N, T> net : emptied) {
+			owner.removeNetwork(net);
+		}
+		for (BlockNetwork<N, T> net : created) {
+			owner.addNetwork(net);
+		}
+	}
+
+	private static void union(int[] parent, int a, int b) {
+		int ra = find(parent, a);
+		int rb = find(parent, b);
+		if (ra != rb) parent[rb] = ra;
+	}
+
+	private static int find(int[] parent, int i) {
+		while (parent[i] != i) {
+			parent[i] = parent[parent[i]];
+			i = parent[i];
+		}
+		return i;
+	}
+
+}
@@ -2,25 +2,37 @@ package com.unascribed.lib39.mesh.api;
 
 import java.util.AbstractSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.unascribed.lib39.core.Lib39Log;
 
 import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.BiMap;
-import com.google.common.collect.HashBasedTable;
 import com.google.common.collect.HashBiMap;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Table;
 
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2ObjectOpenHashMap;
+import net.fabricmc.fabric.api.util.NbtType;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.Identifier;
 import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.world.PersistentState;
 
@@ -36,9 +48,25 @@ public class BlockNetworkManager extends PersistentState {
 		return networkTypes.inverse().get(type);
 	}
 	
+	public static BlockNetworkType<?, ?> getType(Identifier id) {
+		return networkTypes.get(id);
+	}
+	
+	/**
+	 * Version 1 wrote a compound per node; version 2 writes each network as packed arrays. Networks
+	 * in either format are accepted by {@link BlockNetwork#readNbt}. Version 3 moves the networks
+	 * out into per-region files, leaving only an index of which chunks they touch.
+	 */
+	static final int FORMAT_VERSION = 3;
+	
 	protected final ServerWorld world;
+	final BlockNetworkStorage storage = new BlockNetworkStorage(this);
 	private final Map<UUID, BlockNetwork<?, ?>> networks = Maps.newHashMap();
-	protected final Table<BlockPos, BlockNetworkType<?, ?>, BlockNetwork<?, ?>> networksByPos = HashBasedTable.create();
+	private final Map<BlockNetworkType<?, ?>, List<BlockNetwork<?, ?>>> networksByType = new Reference2ObjectOpenHashMap<>();
+	private final Reference2IntMap<BlockNetworkType<?, ?>> tickCursors = new Reference2IntOpenHashMap<>();
+	private BlockNetworkBatch batch;
+	private int batchDepth;
+	private final Map<BlockNetworkType<?, ?>, Long2ObjectMap<BlockNetwork<?, ?>>> networksByPos = new Reference2ObjectOpenHashMap<>();
 
 	public BlockNetworkManager(ServerWorld world) {
 		this.world = world;
@@ -54,6 +82,12 @@ public class BlockNetworkManager extends PersistentState {
 
 	public static BlockNetworkManager readNbt(ServerWorld world, NbtCompound tag) {
 		BlockNetworkManager ret = new BlockNetworkManager(world);
+		if (tag.contains("Index", NbtType.COMPOUND)) {
+			ret.storage.readRegions(tag);
+			ret.storage.readIndex(tag.getCompound("Index"));
+			ret.storage.loadInitial();
+			return ret;
+		}
 		NbtCompound networks = tag.getCompound("Networks");
 		for (String k : networks.getKeys()) {
 			NbtCompound nbt = networks.getCompound(k);
@@ -68,64 +102,244 @@ public class BlockNetworkManager extends PersistentState {
 			fn.readNbt(nbt);
 			ret.addNetworkDirectly(fn);
 		}
+		// migrate everything out into region files on the next save
+		ret.markDirty();
 		return ret;
 	}
 
 	@Override
 	public NbtCompound writeNbt(NbtCompound nbt) {
-		NbtCompound networks = new NbtCompound();
-		for (BlockNetwork<?, ?> net : this.networks.values()) {
-			NbtCompound en = new NbtCompound();
-			net.writeNbt(en);
-			networks.put(net.getId().toString(), en);
-		}
-		nbt.put("Networks", networks);
+		storage.flush();
+		nbt.put("Index", storage.writeIndex());
+		storage.writeRegions(nbt);
+		nbt.putInt("Version", FORMAT_VERSION);
 		return nbt;
 	}
 	
+	/**
+	 * Marks every loaded network as needing to be saved. Prefer {@link #markDirty(BlockNetwork)}
+	 * when you know which network changed.
+	 */
+	@Override
+	public void markDirty() {
+		storage.markAllDirty();
+		super.markDirty();
+	}
+	
+	public void markDirty(BlockNetwork<?, ?> network) {
+		storage.markDirty(network);
+		super.markDirty();
+	}
+	
+	public void onChunkLoaded(ChunkPos pos) {
+		storage.ensureLoaded(pos.toLong());
+	}
+	
+	public void onChunkUnloaded(ChunkPos pos) {
+		storage.onChunkUnloaded(pos.toLong());
+	}
+	
+	private void ensureLoadedAround(BlockPos pos) {
+		int cx = pos.getX() >> 4;
+		int cz = pos.getZ() >> 4;
+		storage.ensureLoaded(ChunkPos.toLong(cx, cz));
+		int ncx = (pos.getX()+((pos.getX() & 15) == 0 ? -1 : 1)) >> 4;
+		if (ncx != cx) storage.ensureLoaded(ChunkPos.toLong(ncx, cz));
+		int ncz = (pos.getZ()+((pos.getZ() & 15) == 0 ? -1 : 1)) >> 4;
+		if (ncz != cz) storage.ensureLoaded(ChunkPos.toLong(cx, ncz));
+	}
+	
+	public BlockNetwork<?, ?> getNetwork(UUID id) {
+		return networks.get(id);
+	}
+	
 	public void tick() {
-		for (BlockNetwork<?, ?> fn : networks.values()) {
-			fn.tick();
+		// copied, as ticks may split, merge or remove networks, or create ones of a new type
+		for (BlockNetworkType<?, ?> type : Lists.newArrayList(networksByType.keySet())) {
+			List<BlockNetwork<?, ?>> list = Lists.newArrayList(networksByType.get(type));
+			int size = list.size();
+			if (size == 0) continue;
+			long budget = type.getTickBudgetNanos();
+			long deadline = budget > 0 ? System.nanoTime()+budget : Long.MAX_VALUE;
+			int start = tickCursors.getInt(type) % size;
+			int ticked;
+			if (type.isThreadSafe()) {
+				ticked = TickPool.INSTANCE.invoke(new ParallelTick(list, start, deadline));
+			} else {
+				ticked = 0;
+				while (ticked < size) {
+					if (ticked > 0 && System.nanoTime() > deadline) break;
+					BlockNetwork<?, ?> network = list.get((start+ticked)%size);
+					// may have been merged away or removed by an earlier tick this round
+					if (networks.get(network.getId()) == network) tickIfAwake(network);
+					ticked++;
+				}
+			}
+			tickCursors.put(type, (start+ticked)%size);
+		}
+	}
+	
+	private static void tickIfAwake(BlockNetwork<?, ?> network) {
+		if (!network.isDormant()) network.tick();
+	}
+	
+	private static final class ParallelTick extends RecursiveTask<Integer> {
+		private final List<BlockNetwork<?, ?>> list;
+		private final int start;
+		private final long deadline;
+		private final AtomicInteger claimed = new AtomicInteger();
+		
+		public ParallelTick(List<BlockNetwork<?, ?>> list, int start, long deadline) {
+			this.list = list;
+			this.start = start;
+			this.deadline = deadline;
+		}
+		
+		@Override
+		protected Integer compute() {
+			int size = list.size();
+			int workers = Math.min(size, TickPool.INSTANCE.getParallelism());
+			List<ForkJoinTask<?>> tasks = Lists.newArrayListWithCapacity(workers);
+			for (int i = 0; i < workers; i++) {
+				tasks.add(ForkJoinTask.adapt(this::work));
+			}
+			ForkJoinTask.invokeAll(tasks);
+			return Math.min(claimed.get(), size);
+		}
+		
+		private void work() {
+			int size = list.size();
+			while (true) {
+				// always let the first network through so that progress is made
+				if (claimed.get() > 0 && System.nanoTime() > deadline) return;
+				int i = claimed.getAndIncrement();
+				if (i >= size) return;
+				tickIfAwake(list.get((start+i)%size));
+			}
 		}
 	}
 	
+	private static final class TickPool {
+		static final ForkJoinPool INSTANCE = new ForkJoinPool(Math.max(1, Runtime.getRuntime().availableProcessors()-1), pool -> {
+			ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			t.setName("Lib39 Mesh tick thread #"+t.getPoolIndex());
+			return t;
+		}, null, false);
+	}
+	
 	@SuppressWarnings("unchecked")
 	public <N extends BlockNetworkNode, T extends BlockNetworkNodeType> Optional<BlockNetwork<N, T>> getNetworkAt(BlockNetworkType<N, T> type, BlockPos pos) {
-		return Optional.ofNullable((BlockNetwork<N, T>)networksByPos.get(pos, type));
+		BlockNetwork<?, ?> net = getNetworkAt(type, pos.asLong());
+		if (net == null) {
+			storage.ensureLoaded(ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4));
+			net = getNetworkAt(type, pos.asLong());
+		}
+		return Optional.ofNullable((BlockNetwork<N, T>)net);
+	}
+	
+	/**
+	 * Look up the network of the given type at a {@link BlockPos#asLong packed} position, without
+	 * loading anything.
+	 * <p>
+	 * Together with {@link #putNetworkAt} and {@link #removeNetworkAt}, this replaces the
+	 * {@code networksByPos} Table subclasses could previously access directly, as positions are
+	 * now stored packed and per network type. Subclasses that used the Table must move to these.
+	 */
+	protected BlockNetwork<?, ?> getNetworkAt(BlockNetworkType<?, ?> type, long pos) {
+		Long2ObjectMap<BlockNetwork<?, ?>> map = networksByPos.get(type);
+		return map == null ? null : map.get(pos);
+	}
+	
+	protected void putNetworkAt(BlockNetworkType<?, ?> type, long pos, BlockNetwork<?, ?> network) {
+		networksByPos.computeIfAbsent(type, k -> new Long2ObjectOpenHashMap<>()).put(pos, network);
+	}
+	
+	protected void removeNetworkAt(BlockNetworkType<?, ?> type, long pos, BlockNetwork<?, ?> network) {
+		Long2ObjectMap<BlockNetwork<?, ?>> map = networksByPos.get(type);
+		if (map != null) map.remove(pos, network);
 	}
 
 	public void addNetwork(BlockNetwork<?, ?> network) {
 		addNetworkDirectly(network);
-		markDirty();
+		markDirty(network);
 	}
 	
-	private void addNetworkDirectly(BlockNetwork<?, ?> network) {
+	void addNetworkDirectly(BlockNetwork<?, ?> network) {
 		if (network.getOwner() != this) throw new IllegalArgumentException("Network does not belong to this world");
-		networks.put(network.getId(), network);
+		if (networks.put(network.getId(), network) == null) {
+			networksByType.computeIfAbsent(network.getType(), k -> Lists.newArrayList()).add(network);
+		}
+		storage.onNetworkAdded(network);
 		network.onAdded();
 	}
 
 	public void removeNetwork(BlockNetwork<?, ?> network) {
 		removeNetworkDirectly(network);
-		markDirty();
+		storage.onNetworkRemoved(network);
+		super.markDirty();
+	}
+	
+	/**
+	 * Remove a network from memory without forgetting about it.
+	 */
+	void unloadNetwork(BlockNetwork<?, ?> network) {
+		removeNetworkDirectly(network);
 	}
 
 	private void removeNetworkDirectly(BlockNetwork<?, ?> network) {
 		if (network.getOwner() != this) throw new IllegalArgumentException("Network does not belong to this world");
-		networks.remove(network.getId(), network);
+		if (networks.remove(network.getId(), network)) {
+			List<BlockNetwork<?, ?>> list = networksByType.get(network.getType());
+			if (list != null) list.remove(network);
+		}
 		network.onRemoved();
 	}
 
+	/**
+	 * Start collecting introductions and destructions instead of applying them immediately. When
+	 * the matching {@link #commitBatch} is called, all of them are applied at once and each
+	 * resulting network is only updated once. This is much faster than individual calls when
+	 * placing many blocks at once, such as when placing structures. Batches may be nested; only
+	 * the outermost commit applies anything.
+	 * <p>
+	 * Networks are not updated to reflect the pending changes until the batch is committed.
+	 */
+	public void beginBatch() {
+		if (batchDepth++ == 0) {
+			batch = new BlockNetworkBatch(this);
+		}
+	}
+	
+	public void commitBatch() {
+		if (batchDepth <= 0) throw new IllegalStateException("Not in a batch");
+		if (--batchDepth == 0) {
+			BlockNetworkBatch b = batch;
+			batch = null;
+			b.commit();
+		}
+	}
+	
+	public boolean isBatching() {
+		return batchDepth > 0;
+	}
+	
 	@SuppressWarnings("unchecked")
 	public <N extends BlockNetworkNode, T extends BlockNetworkNodeType> void introduce(BlockNetworkType<N, T> networkType, BlockPos pos, T nodeType) {
+		ensureLoadedAround(pos);
+		if (batch != null) {
+			batch.introduce(networkType, pos, nodeType);
+			return;
+		}
 		N n = networkType.createNode(pos, nodeType);
-		if (networksByPos.contains(pos, networkType)) {
-			((BlockNetwork<N, T>)networksByPos.get(pos, networkType)).addNode(n);
+		BlockNetwork<N, T> existing = (BlockNetwork<N, T>)getNetworkAt(networkType, pos.asLong());
+		if (existing != null) {
+			existing.addNode(n);
 			return;
 		}
 		for (BlockPos neighbor : neighbors(pos)) {
-			if (networksByPos.contains(neighbor, networkType)) {
-				((BlockNetwork<N, T>)networksByPos.get(neighbor, networkType)).addNode(n);
+			BlockNetwork<N, T> adjacent = (BlockNetwork<N, T>)getNetworkAt(networkType, neighbor.asLong());
+			if (adjacent != null) {
+				adjacent.addNode(n);
 				return;
 			}
 		}
@@ -136,8 +350,14 @@ public class BlockNetworkManager extends PersistentState {
 	}
 
 	public void destroy(BlockNetworkType<?, ?> type, BlockPos pos) {
-		if (networksByPos.contains(pos, type)) {
-			networksByPos.get(pos, type).removeNodeAt(pos);
+		ensureLoadedAround(pos);
+		if (batch != null) {
+			batch.destroy(type, pos);
+			return;
+		}
+		BlockNetwork<?, ?> network = getNetworkAt(type, pos.asLong());
+		if (network != null) {
+			network.removeNodeAt(pos);
 		}
 	}
 
@@ -0,0 +1,461 @@
+package com.unascribed.lib39.mesh.api;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2LongMap;
+import it.unimi.dsi.fastutil.longs.Long2LongOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import net.fabricmc.fabric.api.util.NbtType;
+import net.minecraft.nbt.NbtCompound;
+import net.minecraft.nbt.NbtIo;
+import net.minecraft.nbt.NbtLongArray;
+import net.minecraft.util.Identifier;
+import net.minecraft.util.WorldSavePath;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.dimension.DimensionType;
+
+/**
+ * Keeps track of which chunks every network in a world touches, and stores the networks
+ * themselves in one file per region. Every network is assigned to the region it was first
+ * added in. Regions are only read from disk when a network in them is needed, are only
+ * rewritten when a network in them changed, and are dropped from memory once none of their
+ * networks are loaded.
+ * <p>
+ * Regions are only written when the world is saved, just before the index. Each save has a
+ * generation number, which the index records for every region file; the copy of a region file
+ * being replaced is kept beside it, so if the game stops before the index is saved, the copy the
+ * index on disk refers to is put back the next time the region is read.
+ */
+final class BlockNetworkStorage {
+
+	private static final class IndexEntry {
+		final BlockNetworkType<?, ?> type;
+		long region = Long.MIN_VALUE;
+		final Long2IntMap chunks = new Long2IntOpenHashMap();
+
+		IndexEntry(BlockNetworkType<?, ?> type) {
+			this.type = type;
+		}
+	}
+
+	private static final class Shard {
+		final Map<UUID, NbtCompound> stored = Maps.newHashMap();
+		final Set<UUID> live = Sets.newHashSet();
+		boolean dirty;
+		/**
+		 * The region file exists but couldn't be read. Its networks are left in the index and the
+		 * file is never written over, so they come back the next time the world is loaded if the
+		 * failure was transient or the file is repaired.
+		 */
+		boolean unreadable;
+	}
+
+	private final BlockNetworkManager owner;
+	private final Map<UUID, IndexEntry> index = Maps.newHashMap();
+	private final Long2ObjectMap<Set<UUID>> networksByChunk = new Long2ObjectOpenHashMap<>();
+	private final Long2ObjectMap<Shard> shards = new Long2ObjectOpenHashMap<>();
+	private final Long2LongMap regionGenerations = new Long2LongOpenHashMap();
+	private long generation;
+
+	BlockNetworkStorage(BlockNetworkManager owner) {
+		this.owner = owner;
+	}
+
+	void readIndex(NbtCompound tag) {
+		for (String k : tag.getKeys()) {
+			NbtCompound en = tag.getCompound(k);
+			Identifier typeId = Identifier.tryParse(en.getString("Type"));
+			UUID id = UUID.fromString(k);
+			BlockNetworkType<?, ?> type = typeId == null ? null : BlockNetworkManager.getType(typeId);
+			if (type == null) {
+				Lib39Log.warn("Encountered unknown network type id {} while loading network {}. Discarding!", typeId, id);
+				continue;
+			}
+			IndexEntry ie = new IndexEntry(type);
+			ie.region = en.getLong("Region");
+			index.put(id, ie);
+			for (long chunk : en.getLongArray("Chunks")) {
+				ie.chunks.put(chunk, 0);
+				networksByChunk.computeIfAbsent(chunk, k2 -> Sets.newHashSet()).add(id);
+			}
+		}
+	}
+
+	void readRegions(NbtCompound tag) {
+		generation = tag.getLong("Generation");
+		long[] regions = tag.getLongArray("Regions");
+		long[] generations = tag.getLongArray("RegionGenerations");
+		for (int i = 0; i < Math.min(regions.length, generations.length); i++) {
+			regionGenerations.put(regions[i], generations[i]);
+		}
+	}
+
+	void writeRegions(NbtCompound tag) {
+		tag.putLong("Generation", generation);
+		tag.put("Regions", new NbtLongArray(regionGenerations.keySet().toLongArray()));
+		tag.put("RegionGenerations", new NbtLongArray(regionGenerations.values().toLongArray()));
+	}
+
+	NbtCompound writeIndex() {
+		NbtCompound tag = new NbtCompound();
+		for (Map.Entry<UUID, IndexEntry> en : index.entrySet()) {
+			IndexEntry ie = en.getValue();
+			Identifier typeId = BlockNetworkManager.getId(ie.type);
+			if (typeId == null || ie.region == Long.MIN_VALUE) continue;
+			NbtCompound nbt = new NbtCompound();
+			nbt.putString("Type", typeId.toString());
+			nbt.putLong("Region", ie.region);
+			nbt.put("Chunks", new NbtLongArray(ie.chunks.keySet().toLongArray()));
+			tag.put(en.getKey().toString(), nbt);
+		}
+		return tag;
+	}
+
+	/**
+	 * Load every network that should always be loaded, and every lazily-loaded network that
+	 * touches a chunk that is already loaded.
+	 */
+	void loadInitial() {
+		for (Map.Entry<UUID, IndexEntry> en : Lists.newArrayList(index.entrySet())) {
+			IndexEntry ie = en.getValue();
+			if (!ie.type.isLazilyLoaded() || anyChunkLoaded(ie, Long.MIN_VALUE)) {
+				load(en.getKey());
+			}
+		}
+	}
+
+	void onNodeAdded(BlockNetwork<?, ?> network, BlockPos pos) {
+		IndexEntry ie = index.computeIfAbsent(network.getId(), k -> new IndexEntry(network.getType()));
+		long chunk = ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4);
+		if (ie.chunks.put(chunk, ie.chunks.get(chunk)+1) == 0) {
+			networksByChunk.computeIfAbsent(chunk, k -> Sets.newHashSet()).add(network.getId());
+		}
+	}
+
+	void onNodeRemoved(BlockNetwork<?, ?> network, BlockPos pos) {
+		IndexEntry ie = index.get(network.getId());
+		if (ie == null) return;
+		long chunk = ChunkPos.toLong(pos.getX() >> 4, pos.getZ() >> 4);
+		int count = ie.chunks.get(chunk)-1;
+		if (count <= 0) {
+			ie.chunks.remove(chunk);
+			unindex(chunk, network.getId());
+		} else {
+			ie.chunks.put(chunk, count);
+		}
+	}
+
+	void onNetworkAdded(BlockNetwork<?, ?> network) {
+		IndexEntry ie = index.computeIfAbsent(network.getId(), k -> new IndexEntry(network.getType()));
+		if (ie.region == Long.MIN_VALUE) {
+			ie.region = pickRegion(ie);
+		}
+		getShard(ie.region).live.add(network.getId());
+	}
+
+	void onNetworkRemoved(BlockNetwork<?, ?> network) {
+		IndexEntry ie = index.remove(network.getId());
+		if (ie == null) return;
+		for (LongIterator iter = ie.chunks.keySet().iterator(); iter.hasNext();) {
+			unindex(iter.nextLong(), network.getId());
+		}
+		if (ie.region != Long.MIN_VALUE) {
+			Shard s = getShard(ie.region);
+			s.live.remove(network.getId());
+			s.stored.remove(network.getId());
+			s.dirty = true;
+			dropIfUnused(ie.region, s);
+		}
+	}
+
+	void markDirty(BlockNetwork<?, ?> network) {
+		IndexEntry ie = index.get(network.getId());
+		if (ie != null && ie.region != Long.MIN_VALUE) {
+			getShard(ie.region).dirty = true;
+		}
+	}
+
+	void markAllDirty() {
+		for (Shard s : shards.values()) {
+			if (!s.live.isEmpty()) s.dirty = true;
+		}
+	}
+
+	/**
+	 * Make sure every network touching the given chunk is loaded.
+	 */
+	void ensureLoaded(long chunk) {
+		Set<UUID> ids = networksByChunk.get(chunk);
+		if (ids == null) return;
+		for (UUID id : Lists.newArrayList(ids)) {
+			if (owner.getNetwork(id) == null) load(id);
+		}
+	}
+
+	void onChunkUnloaded(long chunk) {
+		Set<UUID> ids = networksByChunk.get(chunk);
+		if (ids == null) return;
+		for (UUID id : Lists.newArrayList(ids)) {
+			IndexEntry ie = index.get(id);
+			if (ie != null && ie.type.isLazilyLoaded() && !anyChunkLoaded(ie, chunk)) {
+				unload(id);
+			}
+		}
+	}
+
+	/**
+	 * Unload lazily-loaded networks that were loaded to resolve an edit, but whose chunks have
+	 * all since been unloaded, and write every region that changed as a new generation. The index
+	 * must be saved right after.
+	 */
+	void flush() {
+		for (Map.Entry<UUID, IndexEntry> en : Lists.newArrayList(index.entrySet())) {
+			IndexEntry ie = en.getValue();
+			if (ie.type.isLazilyLoaded() && owner.getNetwork(en.getKey()) != null && !anyChunkLoaded(ie, Long.MIN_VALUE)) {
+				unload(en.getKey());
+			}
+		}
+		generation++;
+		for (var iter = shards.long2ObjectEntrySet().iterator(); iter.hasNext();) {
+			var en = iter.next();
+			Shard s = en.getValue();
+			if (s.dirty) write(en.getLongKey(), s);
+			if (s.live.isEmpty() && !s.dirty) iter.remove();
+		}
+	}
+
+	private void load(UUID id) {
+		IndexEntry ie = index.get(id);
+		if (ie == null || ie.region == Long.MIN_VALUE) return;
+		Shard s = getShard(ie.region);
+		NbtCompound nbt = s.stored.remove(id);
+		if (nbt == null) {
+			if (s.unreadable) {
+				Lib39Log.warn("Can't load network {} as region file {} couldn't be read", id, getRegionFile(ie.region));
+				return;
+			}
+			Lib39Log.warn("Network {} is missing from region file {}. Discarding!", id, getRegionFile(ie.region));
+			index.remove(id);
+			for (LongIterator iter = ie.chunks.keySet().iterator(); iter.hasNext();) {
+				unindex(iter.nextLong(), id);
+			}
+			return;
+		}
+		// the chunk counts are only known once the nodes are read back
+		for (LongIterator iter = ie.chunks.keySet().iterator(); iter.hasNext();) {
+			unindex(iter.nextLong(), id);
+		}
+		ie.chunks.clear();
+		BlockNetwork<?, ?> net = ie.type.construct(owner, id);
+		net.readNbt(nbt);
+		owner.addNetworkDirectly(net);
+	}
+
+	private void unload(UUID id) {
+		BlockNetwork<?, ?> net = owner.getNetwork(id);
+		IndexEntry ie = index.get(id);
+		if (net == null || ie == null) return;
+		Shard s = getShard(ie.region);
+		NbtCompound nbt = new NbtCompound();
+		net.writeNbt(nbt);
+		s.stored.put(id, nbt);
+		s.live.remove(id);
+		owner.unloadNetwork(net);
+		dropIfUnused(ie.region, s);
+	}
+
+	private void unindex(long chunk, UUID id) {
+		Set<UUID> ids = networksByChunk.get(chunk);
+		if (ids != null && ids.remove(id) && ids.isEmpty()) {
+			networksByChunk.remove(chunk);
+		}
+	}
+
+	private boolean anyChunkLoaded(IndexEntry ie, long except) {
+		for (LongIterator iter = ie.chunks.keySet().iterator(); iter.hasNext();) {
+			long chunk = iter.nextLong();
+			if (chunk != except && owner.world.getChunkManager().isChunkLoaded(ChunkPos.getPackedX(chunk), ChunkPos.getPackedZ(chunk))) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private long pickRegion(IndexEntry ie) {
+		if (ie.chunks.isEmpty()) return ChunkPos.toLong(0, 0);
+		long chunk = ie.chunks.keySet().iterator().nextLong();
+		return ChunkPos.toLong(ChunkPos.getPackedX(chunk) >> 5, ChunkPos.getPackedZ(chunk) >> 5);
+	}
+
+	private Shard getShard(long region) {
+		Shard s = shards.get(region);
+		if (s == null) {
+			s = new Shard();
+			File f = getRegionFile(region);
+			if (f.exists() || getPreviousRegionFile(region).exists()) {
+				try {
+					NbtCompound tag = readCommitted(region);
+					NbtCompound networks = tag == null ? new NbtCompound() : tag.getCompound("Networks");
+					for (String k : networks.getKeys()) {
+						UUID id = UUID.fromString(k);
+						IndexEntry ie = index.get(id);
+						if (ie == null || ie.region != region) {
+							// removed, or never saved to the index; it'll be dropped from the file
+							Lib39Log.debug("Ignoring unindexed network {} in region file {}", id, f);
+							s.dirty = true;
+							continue;
+						}
+						s.stored.put(id, networks.getCompound(k));
+					}
+				} catch (IOException | RuntimeException e) {
+					Lib39Log.error("Failed to read network region file {}", f, e);
+					s.unreadable = true;
+					s.stored.clear();
+					try {
+						Files.copy(f.toPath(), f.toPath().resolveSibling(f.getName()+".broken"), StandardCopyOption.REPLACE_EXISTING);
+					} catch (IOException e2) {
+						Lib39Log.warn("Failed to back up broken network region file {}", f, e2);
+					}
+				}
+			}
+			shards.put(region, s);
+		}
+		return s;
+	}
+
+	/**
+	 * Find the copy of a region file that the index on disk was saved with: the file itself, or the
+	 * one it replaced if the game stopped between writing it and saving the index. An unsaved file
+	 * is replaced by that copy, so it can't be mistaken for a saved one later.
+	 *
+	 * @return the region's contents, or null if it had none when the index was saved
+	 */
+	private @Nullable NbtCompound readCommitted(long region) throws IOException {
+		File f = getRegionFile(region);
+		File prev = getPreviousRegionFile(region);
+		if (f.exists()) {
+			NbtCompound tag = NbtIo.readCompressed(f);
+			if (isCommitted(region, tag)) return tag;
+		}
+		if (prev.exists()) {
+			NbtCompound tag = NbtIo.readCompressed(prev);
+			if (isCommitted(region, tag)) {
+				Lib39Log.warn("Network region file {} was written after the world was last saved; rolling it back", f);
+				moveReplacing(prev, f);
+				return tag;
+			}
+		}
+		if (f.exists()) {
+			Lib39Log.warn("Network region file {} was written after the world was last saved, and had no earlier copy; discarding it", f);
+			Files.delete(f.toPath());
+		}
+		return null;
+	}
+
+	private boolean isCommitted(long region, NbtCompound tag) {
+		if (!tag.contains("Generation", NbtType.LONG)) {
+			// written before generations were tracked; nothing to check it against
+			return !regionGenerations.containsKey(region);
+		}
+		return regionGenerations.containsKey(region) && regionGenerations.get(region) == tag.getLong("Generation");
+	}
+
+	private void dropIfUnused(long region, Shard s) {
+		// a changed region stays until the next save, so it's only written along with the index
+		if (!s.live.isEmpty() || s.dirty) return;
+		shards.remove(region);
+	}
+
+	private void write(long region, Shard s) {
+		if (s.unreadable) {
+			Lib39Log.warn("Not writing network region file {} as it couldn't be read; changes to networks in it will be lost", getRegionFile(region));
+			s.dirty = false;
+			return;
+		}
+		NbtCompound networks = new NbtCompound();
+		for (Map.Entry<UUID, NbtCompound> en : s.stored.entrySet()) {
+			networks.put(en.getKey().toString(), en.getValue());
+		}
+		List<UUID> missing = Lists.newArrayList();
+		for (UUID id : s.live) {
+			BlockNetwork<?, ?> net = owner.getNetwork(id);
+			if (net == null) {
+				missing.add(id);
+				continue;
+			}
+			NbtCompound en = new NbtCompound();
+			net.writeNbt(en);
+			networks.put(id.toString(), en);
+		}
+		s.live.removeAll(missing);
+		File f = getRegionFile(region);
+		File prev = getPreviousRegionFile(region);
+		try {
+			if (networks.isEmpty()) {
+				// kept as the previous copy rather than deleted, in case the index isn't saved
+				if (f.exists()) moveReplacing(f, prev);
+				regionGenerations.remove(region);
+			} else {
+				NbtCompound tag = new NbtCompound();
+				tag.put("Networks", networks);
+				tag.putInt("Version", BlockNetworkManager.FORMAT_VERSION);
+				tag.putLong("Generation", generation);
+				f.getParentFile().mkdirs();
+				// a crash mid-write must not leave a truncated region behind
+				File tmp = new File(f.getPath()+".tmp");
+				NbtIo.writeCompressed(tag, tmp);
+				if (f.exists()) {
+					moveReplacing(f, prev);
+				} else {
+					Files.deleteIfExists(prev.toPath());
+				}
+				moveReplacing(tmp, f);
+				regionGenerations.put(region, generation);
+			}
+			s.dirty = false;
+		} catch (IOException e) {
+			Lib39Log.error("Failed to write network region file {}", f, e);
+		}
+	}
+
+	private static void moveReplacing(File from, File to) throws IOException {
+		try {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private File getPreviousRegionFile(long region) {
+		File f = getRegionFile(region);
+		return new File(f.getPath()+".old");
+	}
+
+	private File getRegionFile(long region) {
+		Path root = DimensionType.getSaveDirectory(owner.world.getRegistryKey(), owner.world.getServer().getSavePath(WorldSavePath.ROOT));
+		return root.resolve("data").resolve("lib39_mesh").resolve("r."+ChunkPos.getPackedX(region)+"."+ChunkPos.getPackedZ(region)+".dat").toFile();
+	}
+
+}
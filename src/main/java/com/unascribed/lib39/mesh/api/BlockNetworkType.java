@@ -29,6 +29,9 @@ public interface BlockNetworkType<N extends BlockNetworkNode, T extends BlockNet
 	/**
 	 * Called every tick. Note that the blocks in your network may not be loaded; if you interact
 	 * with the world, make sure to check isChunkLoaded first.
+	 * <p>
+	 * If the network has nothing to do until it changes, call {@link BlockNetwork#setDormant} to
+	 * stop it from being ticked until the next update.
 	 */
 	default void tick(BlockNetwork<N, T> network) {}
 	/**
@@ -40,5 +43,34 @@ public interface BlockNetworkType<N extends BlockNetworkNode, T extends BlockNet
 	 * Return an array of every valid NodeType for this network type.
 	 */
 	T[] getNodeTypes();
+	
+	/**
+	 * If true, networks of this type will store their nodes keyed by packed position with a
+	 * neighbor bitmask per node instead of a general-purpose graph, which uses much less memory
+	 * for large networks. In exchange, only nodes that are directly adjacent can be connected,
+	 * and {@link BlockNetwork#getMembersByPos} becomes read-only.
+	 */
+	default boolean usesPackedStorage() { return false; }
+	
+	/**
+	 * If true, networks of this type may be ticked in parallel with each other on a worker pool
+	 * instead of one after another on the server thread. Only return true if your
+	 * {@link #tick} does not touch anything shared between networks, including the world.
+	 */
+	default boolean isThreadSafe() { return false; }
+	
+	/**
+	 * Return the maximum amount of time in nanoseconds that ticking networks of this type should
+	 * take each tick, or a non-positive value for no limit. When the budget runs out, the
+	 * remaining networks are skipped and ticking resumes with them on the next tick. At least
+	 * one network is always ticked.
+	 */
+	default long getTickBudgetNanos() { return 0; }
+	
+	/**
+	 * If true, networks of this type are only kept in memory while at least one chunk they touch
+	 * is loaded, and will not be ticked otherwise. By default, networks are always loaded.
+	 */
+	default boolean isLazilyLoaded() { return false; }
 
 }
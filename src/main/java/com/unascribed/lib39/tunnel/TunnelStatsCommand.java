@@ -0,0 +1,48 @@
+package com.unascribed.lib39.tunnel;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import com.mojang.brigadier.CommandDispatcher;
+import com.unascribed.lib39.tunnel.api.TunnelStats;
+
+import net.minecraft.server.command.CommandManager;
+import net.minecraft.server.command.ServerCommandSource;
+import net.minecraft.text.Text;
+
+/**
+ * {@code /lib39tunnel stats [reset|dump]}, for finding out which Messages are using the most
+ * bandwidth and handler time.
+ */
+public class TunnelStatsCommand {
+
+	public static void register(CommandDispatcher<ServerCommandSource> dispatcher) {
+		dispatcher.register(CommandManager.literal("lib39tunnel")
+				.requires(src -> src.hasPermissionLevel(2))
+				.then(CommandManager.literal("stats")
+					.executes(ctx -> {
+						for (String line : TunnelStats.report()) {
+							ctx.getSource().sendFeedback(() -> Text.literal(line), false);
+						}
+						return 1;
+					})
+					.then(CommandManager.literal("reset")
+						.executes(ctx -> {
+							TunnelStats.resetAll();
+							ctx.getSource().sendFeedback(() -> Text.literal("Tunnel stats reset"), true);
+							return 1;
+						}))
+					.then(CommandManager.literal("dump")
+						.executes(ctx -> {
+							try {
+								Path file = TunnelStats.dump();
+								ctx.getSource().sendFeedback(() -> Text.literal("Tunnel stats written to "+file), false);
+								return 1;
+							} catch (IOException e) {
+								ctx.getSource().sendError(Text.literal("Failed to write Tunnel stats: "+e.getMessage()));
+								return 0;
+							}
+						}))));
+	}
+
+}
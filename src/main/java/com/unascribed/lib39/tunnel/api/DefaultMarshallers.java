@@ -1,5 +1,8 @@
 package com.unascribed.lib39.tunnel.api;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.RecordComponent;
@@ -13,6 +16,19 @@ import com.google.common.collect.Maps;
 import com.google.common.primitives.Ints;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.bytes.ByteList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.floats.FloatList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortList;
 import net.minecraft.item.ItemStack;
 import net.minecraft.nbt.NbtCompound;
 import net.minecraft.network.PacketByteBuf;
@@ -22,7 +38,8 @@ import net.minecraft.util.math.BlockPos;
 /**
  * A set of default marshallers for common data types.
  * <p>
- * Any marshaller can be used for lists by putting "-list" after its name.
+ * Any marshaller can be used for lists by putting "-list" after its name. Primitive arrays and
+ * fastutil primitive lists are picked automatically from a field's type, and don't box.
  */
 public final class DefaultMarshallers {
 	
@@ -119,6 +136,70 @@ public final class DefaultMarshallers {
 	 */
 	public static final Marshaller<? extends Number> VARINT = new VarIntMarshaller();
 	
+	/**
+	 * Protobuf variable sized long. Not efficient for negative numbers.
+	 * <p>
+	 * Aliases: varlong
+	 */
+	public static final Marshaller<? extends Number> VARLONG = weld(Number::longValue, PacketByteBuf::writeVarLong, PacketByteBuf::readVarLong);
+	
+	
+	/**
+	 * Bit-packed boolean array.
+	 * <p>
+	 * Aliases: boolean-array, bool-array
+	 */
+	public static final Marshaller<boolean[]> BOOLEAN_ARRAY = PrimitiveArrayMarshaller.BOOLEANS;
+	/**
+	 * Byte array.
+	 * <p>
+	 * Aliases: byte-array, i8-array
+	 */
+	public static final Marshaller<byte[]> BYTE_ARRAY = PrimitiveArrayMarshaller.BYTES;
+	/**
+	 * Array of signed 16-bit integers.
+	 * <p>
+	 * Aliases: short-array, i16-array
+	 */
+	public static final Marshaller<short[]> SHORT_ARRAY = PrimitiveArrayMarshaller.SHORTS;
+	/**
+	 * Array of signed 32-bit integers.
+	 * <p>
+	 * Aliases: int-array, i32-array
+	 */
+	public static final Marshaller<int[]> INT_ARRAY = PrimitiveArrayMarshaller.INTS;
+	/**
+	 * Array of signed 64-bit integers.
+	 * <p>
+	 * Aliases: long-array, i64-array
+	 */
+	public static final Marshaller<long[]> LONG_ARRAY = PrimitiveArrayMarshaller.LONGS;
+	/**
+	 * Array of 32-bit floating point numbers.
+	 * <p>
+	 * Aliases: float-array, f32-array
+	 */
+	public static final Marshaller<float[]> FLOAT_ARRAY = PrimitiveArrayMarshaller.FLOATS;
+	/**
+	 * Array of 64-bit floating point numbers.
+	 * <p>
+	 * Aliases: double-array, f64-array
+	 */
+	public static final Marshaller<double[]> DOUBLE_ARRAY = PrimitiveArrayMarshaller.DOUBLES;
+	/**
+	 * Array of protobuf variable sized integers.
+	 * <p>
+	 * Aliases: varint-array
+	 */
+	public static final Marshaller<int[]> VARINT_ARRAY = PrimitiveArrayMarshaller.VARINTS;
+	/**
+	 * Delta and variable length encoded long array, for sorted arrays of packed BlockPos and the
+	 * like. Never chosen automatically.
+	 * <p>
+	 * Aliases: delta-long-array, sorted-long-array
+	 */
+	public static final Marshaller<long[]> DELTA_LONG_ARRAY = PrimitiveArrayMarshaller.DELTA_LONGS;
+	
 	
 	/**
 	 * Compound NBT tag.
@@ -183,6 +264,17 @@ public final class DefaultMarshallers {
 		put(DOUBLE, "f64", "double");
 		
 		put(VARINT, "varint");
+		put(VARLONG, "varlong");
+		
+		put(BOOLEAN_ARRAY, "boolean-array", "bool-array");
+		put(BYTE_ARRAY, "byte-array", "i8-array");
+		put(SHORT_ARRAY, "short-array", "i16-array");
+		put(INT_ARRAY, "int-array", "i32-array");
+		put(LONG_ARRAY, "long-array", "i64-array");
+		put(FLOAT_ARRAY, "float-array", "f32-array");
+		put(DOUBLE_ARRAY, "double-array", "f64-array");
+		put(VARINT_ARRAY, "varint-array");
+		put(DELTA_LONG_ARRAY, "delta-long-array", "sorted-long-array");
 		
 		put(NBT, "nbt");
 		
@@ -301,12 +393,23 @@ public final class DefaultMarshallers {
 		
 	}
 	
+	/**
+	 * Writes the components of a record in the same format as the fields of a Message: booleans
+	 * and the presence of optional components are packed into a leading bitfield, and everything
+	 * else follows in order. Ints and longs can be made variable length by annotating the
+	 * component with {@code @MarshalledAs("varint")} or {@code @MarshalledAs("varlong")}.
+	 */
 	private static class RecordMarshaller<T extends Record> implements Marshaller<T> {
 		// supporting recursive records requires caching marshallers to break the loop
 		private static final Map<Class<? extends Record>, RecordMarshaller<?>> MARSHALLERS = new HashMap<>();
 		
+		// stands in for an optional component that's present until its value is read
+		private static final Object PRESENT = new Object();
+		
 		private final List<? extends WireField<?>> fields;
-		private final Constructor<T> constructor;
+		private final int flagCount;
+		// the canonical constructor, taking its arguments as an Object[]
+		private final MethodHandle constructor;
 		
 		private RecordMarshaller(Class<T> clazz) {
 			MARSHALLERS.put(clazz, this);
@@ -316,50 +419,80 @@ public final class DefaultMarshallers {
 					.map(RecordMarshaller::backingField)
 					.map(f -> new WireField<>(f, false))
 					.toList();
+			int flags = 0;
+			for (WireField<?> wf : fields) {
+				if (MessageCodecs.isFlag(wf)) flags++;
+			}
+			flagCount = flags;
 			// from Class::getRecordComponents javadoc
 			try {
-				constructor = clazz.getDeclaredConstructor(
+				Constructor<T> cons = clazz.getDeclaredConstructor(
 						Arrays.stream(recComponents)
 							.map(RecordComponent::getType)
 							.toArray(Class[]::new)
 				);
+				cons.setAccessible(true);
+				constructor = MethodHandles.lookup().unreflectConstructor(cons)
+						.asSpreader(Object[].class, recComponents.length)
+						.asType(MethodType.methodType(Object.class, Object[].class));
 			} catch(NoSuchMethodException e) {
 				MARSHALLERS.remove(clazz);
 				throw new IllegalStateException("'Record' class missing canonical constructor", e);
+			} catch(IllegalAccessException e) {
+				MARSHALLERS.remove(clazz);
+				throw new IllegalStateException("'Record' class canonical constructor is inaccessible", e);
 			}
 		}
 		
-		// TODO: bit packing for record marshallers
-		
+		@SuppressWarnings("unchecked")
 		public T unmarshal(PacketByteBuf in) {
 			Object[] args = new Object[fields.size()];
-			for(int i = 0; i < fields.size(); i++) {
+			int bits = 0;
+			int flag = 0;
+			for (int i = 0; i < fields.size(); i++) {
 				WireField<?> field = fields.get(i);
-				if (field.isOptional() && in.readBoolean()) {
-					args[i] = null;
-				} else if (field.getType() == boolean.class) {
-					args[i] = in.readBoolean();
+				if (!MessageCodecs.isFlag(field)) continue;
+				if ((flag & 7) == 0) bits = in.readUnsignedByte();
+				boolean b = (bits & (1 << (flag & 7))) != 0;
+				flag++;
+				if (field.getType() == boolean.class) {
+					args[i] = b;
 				} else {
+					args[i] = b ? PRESENT : null;
+				}
+			}
+			for (int i = 0; i < fields.size(); i++) {
+				WireField<?> field = fields.get(i);
+				if (field.getType() == boolean.class) continue;
+				if (!field.isOptional() || args[i] == PRESENT) {
 					args[i] = field.getMarshaller().unmarshal(in);
 				}
 			}
 			try {
-				return constructor.newInstance(args);
-			} catch(Exception e) {
+				Object o = constructor.invokeExact(args);
+				return (T)o;
+			} catch(Throwable e) {
 				throw new RuntimeException("Could not unmarshall record class", e);
 			}
 		}
 		
 		public void marshal(PacketByteBuf out, T t) {
-			for (WireField<?> field : fields) {
-				if (field.isOptional()) {
-					out.writeBoolean(field.get(t) == null);
-				}
-				if (field.getType() == boolean.class) {
-					if (field.get(t) == Boolean.TRUE) {
-						out.writeBoolean(true);
+			if (flagCount > 0) {
+				int bits = 0;
+				int flag = 0;
+				for (WireField<?> field : fields) {
+					if (!MessageCodecs.isFlag(field)) continue;
+					boolean b = field.getType() == boolean.class ? (Boolean)field.get(t) : field.get(t) != null;
+					if (b) bits |= 1 << (flag & 7);
+					flag++;
+					if ((flag & 7) == 0 || flag == flagCount) {
+						out.writeByte(bits);
+						bits = 0;
 					}
-				} else {
+				}
+			}
+			for (WireField<?> field : fields) {
+				if (field.getType() != boolean.class) {
 					field.marshal(t, out);
 				}
 			}
@@ -388,14 +521,18 @@ public final class DefaultMarshallers {
 		public ByteBuf unmarshal(PacketByteBuf in) {
 			int length = in.readVarInt();
 			
-			return in.readBytes(length);
+			// the payload may be pooled, and the handler won't know to release what it's given
+			ByteBuf buf = Unpooled.buffer(length);
+			in.readBytes(buf, length);
+			return buf;
 		}
 		
 		@Override
 		public void marshal(PacketByteBuf out, ByteBuf t) {
 			if (t != null) {
+				// leave the reader index alone, so the same Message can be written more than once
 				out.writeVarInt(t.readableBytes());
-				out.writeBytes(t.readBytes(t.readableBytes()));
+				out.writeBytes(t, t.readerIndex(), t.readableBytes());
 			} else {
 				out.writeVarInt(0);
 			}
@@ -458,7 +595,7 @@ public final class DefaultMarshallers {
 			// lists of lists!
 			Marshaller<T> m = getByName(name);
 			if (m != null) {
-				return new ListMarshaller(m);
+				return (Marshaller<T>) listOf(m);
 			} else {
 				return null;
 			}
@@ -502,8 +639,27 @@ public final class DefaultMarshallers {
 		}
 	}
 
+	/**
+	 * @return a marshaller for lists of whatever the given marshaller handles, using a bulk
+	 * 		implementation where one exists
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public static <T> Marshaller<List<T>> listOf(Marshaller<T> m) {
+		if (m == BLOCKPOS) {
+			return (Marshaller) PrimitiveArrayMarshaller.BLOCKPOS_LIST;
+		}
+		return new ListMarshaller<>(m);
+	}
+
 	@SuppressWarnings({ "unchecked", "rawtypes" })
 	public static <T> Marshaller<T> getByType(Class<T> type) {
+		if (type.isArray() && type.getComponentType().isPrimitive()) {
+			return (Marshaller<T>) getPrimitiveArray(type.getComponentType());
+		}
+		Marshaller<?> list = getFastutilList(type);
+		if (list != null) {
+			return (Marshaller<T>) list;
+		}
 		if (char.class.isAssignableFrom(type) || Character.class.isAssignableFrom(type)) {
 			return (Marshaller<T>) CHAR;
 		} else if (float.class.isAssignableFrom(type) || Float.class.isAssignableFrom(type)) {
@@ -532,5 +688,43 @@ public final class DefaultMarshallers {
 		return null;
 	}
 	
+	private static Marshaller<?> getPrimitiveArray(Class<?> component) {
+		if (component == boolean.class) {
+			return BOOLEAN_ARRAY;
+		} else if (component == byte.class) {
+			return BYTE_ARRAY;
+		} else if (component == short.class) {
+			return SHORT_ARRAY;
+		} else if (component == int.class) {
+			return INT_ARRAY;
+		} else if (component == long.class) {
+			return LONG_ARRAY;
+		} else if (component == float.class) {
+			return FLOAT_ARRAY;
+		} else if (component == double.class) {
+			return DOUBLE_ARRAY;
+		}
+		return null;
+	}
+	
+	// only matches types that an array list of the right kind can be assigned to, e.g. IntList
+	// and IntArrayList but not IntCollection
+	private static Marshaller<?> getFastutilList(Class<?> type) {
+		if (IntList.class.isAssignableFrom(type) && type.isAssignableFrom(IntArrayList.class)) {
+			return PrimitiveArrayMarshaller.INT_LIST;
+		} else if (LongList.class.isAssignableFrom(type) && type.isAssignableFrom(LongArrayList.class)) {
+			return PrimitiveArrayMarshaller.LONG_LIST;
+		} else if (ByteList.class.isAssignableFrom(type) && type.isAssignableFrom(ByteArrayList.class)) {
+			return PrimitiveArrayMarshaller.BYTE_LIST;
+		} else if (ShortList.class.isAssignableFrom(type) && type.isAssignableFrom(ShortArrayList.class)) {
+			return PrimitiveArrayMarshaller.SHORT_LIST;
+		} else if (FloatList.class.isAssignableFrom(type) && type.isAssignableFrom(FloatArrayList.class)) {
+			return PrimitiveArrayMarshaller.FLOAT_LIST;
+		} else if (DoubleList.class.isAssignableFrom(type) && type.isAssignableFrom(DoubleArrayList.class)) {
+			return PrimitiveArrayMarshaller.DOUBLE_LIST;
+		}
+		return null;
+	}
+	
 	private DefaultMarshallers() {}
 }
@@ -0,0 +1,242 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.unascribed.lib39.tunnel.api.exception.BadMessageException;
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import it.unimi.dsi.fastutil.ints.Int2ObjectMap;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.fabricmc.api.EnvType;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.server.network.ServerPlayerEntity;
+
+/**
+ * The codec for {@link com.unascribed.lib39.tunnel.api.annotation.type.DeltaSynced @DeltaSynced}
+ * Messages. Each field is written on its own, so the bytes of every field can be compared
+ * against what was last sent to the same player; only the fields whose bytes differ are sent,
+ * along with a mask saying which ones they are.
+ * <p>
+ * Every payload starts with a mode byte. A tracked full send assigns a baseline id, which later
+ * deltas refer to; the receiving side keeps the last Message it got for each id and fills in the
+ * fields a delta leaves out from it. As packets are delivered in order, the last payload sent is
+ * the one the other side will have applied by the time the next one arrives.
+ * <p>
+ * Forgetting a key frees its id for the next full send to reuse, which replaces whatever the
+ * receiving side still holds for it; so the receiving side never keeps more Messages than the
+ * sending side has baselines.
+ */
+final class DeltaMessageCodec implements MessageCodec {
+
+	private static final int UNTRACKED = 0;
+	private static final int FULL = 1;
+	private static final int DELTA = 2;
+
+	private static final class Baseline {
+		final int id;
+		byte[] data;
+		int[] ends;
+
+		Baseline(int id) {
+			this.id = id;
+		}
+	}
+
+	private static final class PlayerBaselines {
+		final Map<Object, Baseline> byKey = Maps.newHashMap();
+		final IntArrayList freeIds = new IntArrayList();
+		int nextId;
+
+		int allocateId() {
+			return freeIds.isEmpty() ? nextId++ : freeIds.popInt();
+		}
+
+		void forget(Object key) {
+			Baseline b = byKey.remove(key);
+			if (b != null) freeIds.push(b.id);
+		}
+	}
+
+	private final List<WireField<?>> fields;
+	private final int maskBytes;
+
+	// weak, so a player's baselines go away once they've left. entities are equal by entity id,
+	// which respawning keeps, so the new player object carries on from the old one's baselines
+	// until the old one is collected; from then on, sends start over in full with reused ids,
+	// which replace what the client has
+	private final Map<ServerPlayerEntity, PlayerBaselines> sent = new WeakHashMap<>();
+	private final Int2ObjectMap<Message> received = new Int2ObjectOpenHashMap<>();
+
+	DeltaMessageCodec(List<WireField<?>> fields) {
+		this.fields = fields;
+		this.maskBytes = (fields.size()+7)/8;
+	}
+
+	@Override
+	public void encode(Message m, ByteBuf out) {
+		out.writeByte(UNTRACKED);
+		PacketByteBuf pbb = (PacketByteBuf)out;
+		for (WireField<?> wf : fields) {
+			writeField(m, wf, pbb);
+		}
+	}
+
+	/**
+	 * Write the given Message for the given player, sending only the fields that differ from what
+	 * was last sent to them with the same state key.
+	 */
+	void encode(Message m, ByteBuf out, ServerPlayerEntity player) {
+		ByteBuf scratch = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		try {
+			PacketByteBuf pbb = new PacketByteBuf(scratch);
+			int[] ends = new int[fields.size()];
+			for (int i = 0; i < fields.size(); i++) {
+				writeField(m, fields.get(i), pbb);
+				ends[i] = scratch.writerIndex();
+			}
+			byte[] data = new byte[scratch.readableBytes()];
+			scratch.getBytes(0, data);
+			// sends are expected to come from the server thread; this only keeps the baselines
+			// themselves consistent
+			synchronized (sent) {
+				PlayerBaselines pb = sent.computeIfAbsent(player, p -> new PlayerBaselines());
+				Object key = m.getStateKey();
+				Baseline b = pb.byKey.get(key);
+				PacketByteBuf o = (PacketByteBuf)out;
+				if (b == null) {
+					b = new Baseline(pb.allocateId());
+					pb.byKey.put(key, b);
+					o.writeByte(FULL);
+					o.writeVarInt(b.id);
+					o.writeBytes(data);
+				} else {
+					o.writeByte(DELTA);
+					o.writeVarInt(b.id);
+					int maskStart = o.writerIndex();
+					o.writeZero(maskBytes);
+					for (int i = 0; i < fields.size(); i++) {
+						int start = i == 0 ? 0 : ends[i-1];
+						int oldStart = i == 0 ? 0 : b.ends[i-1];
+						if (!Arrays.equals(data, start, ends[i], b.data, oldStart, b.ends[i])) {
+							int idx = maskStart+(i>>3);
+							o.setByte(idx, o.getByte(idx) | (1 << (i&7)));
+							o.writeBytes(data, start, ends[i]-start);
+						}
+					}
+				}
+				b.data = data;
+				b.ends = ends;
+			}
+		} finally {
+			scratch.release();
+		}
+	}
+
+	/**
+	 * Drop what was last sent to every player with the given state key, so the next send for it
+	 * is in full.
+	 */
+	void forget(Object stateKey) {
+		synchronized (sent) {
+			for (PlayerBaselines pb : sent.values()) {
+				pb.forget(stateKey);
+			}
+		}
+	}
+
+	/**
+	 * Drop what was last sent to the given player with the given state key, so the next send to
+	 * them for it is in full.
+	 */
+	void forget(ServerPlayerEntity player, Object stateKey) {
+		synchronized (sent) {
+			PlayerBaselines pb = sent.get(player);
+			if (pb != null) pb.forget(stateKey);
+		}
+	}
+
+	/**
+	 * Drop every Message received, as the connection they came from is gone.
+	 */
+	void clearReceived() {
+		synchronized (received) {
+			received.clear();
+		}
+	}
+
+	@Override
+	public void decode(Message m, ByteBuf in) {
+		PacketByteBuf pbb = (PacketByteBuf)in;
+		int mode = in.readUnsignedByte();
+		// baselines are only kept on the client; the server has nothing to keep them apart by
+		// sender, nor any reason to trust how many a client asks for
+		if (mode != UNTRACKED && m.getEnv() != EnvType.CLIENT) {
+			throw new BadMessageException("Received a tracked "+m.getClass().getName()+" outside the client");
+		}
+		if (mode == DELTA) {
+			int id = pbb.readVarInt();
+			Message base;
+			synchronized (received) {
+				base = received.get(id);
+			}
+			if (base == null) throw new BadMessageException("Received a delta for "+m.getClass().getName()+" with no baseline");
+			byte[] mask = new byte[maskBytes];
+			in.readBytes(mask);
+			for (int i = 0; i < fields.size(); i++) {
+				WireField<?> wf = fields.get(i);
+				if ((mask[i>>3] & (1 << (i&7))) != 0) {
+					readField(m, wf, pbb);
+				} else {
+					copyField(base, m, wf);
+				}
+			}
+			synchronized (received) {
+				received.put(id, m);
+			}
+		} else {
+			int id = mode == FULL ? pbb.readVarInt() : -1;
+			for (WireField<?> wf : fields) {
+				readField(m, wf, pbb);
+			}
+			if (mode == FULL) {
+				synchronized (received) {
+					received.put(id, m);
+				}
+			}
+		}
+	}
+
+	private static void writeField(Message m, WireField<?> wf, PacketByteBuf out) {
+		if (wf.getType() == Boolean.TYPE) {
+			out.writeBoolean((Boolean)wf.get(m));
+		} else if (wf.isOptional()) {
+			boolean present = wf.get(m) != null;
+			out.writeBoolean(present);
+			if (present) wf.marshal(m, out);
+		} else {
+			wf.marshal(m, out);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void readField(Message m, WireField<?> wf, PacketByteBuf in) {
+		if (wf.getType() == Boolean.TYPE) {
+			((WireField<Boolean>)wf).set(m, in.readBoolean());
+		} else if (!wf.isOptional() || in.readBoolean()) {
+			wf.unmarshal(m, in);
+		} else {
+			wf.set(m, null);
+		}
+	}
+
+	private static <T> void copyField(Message from, Message to, WireField<T> wf) {
+		wf.set(to, wf.get(from));
+	}
+
+}
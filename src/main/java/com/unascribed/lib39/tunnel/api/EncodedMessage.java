@@ -0,0 +1,144 @@
+package com.unascribed.lib39.tunnel.api;
+
+import com.unascribed.lib39.tunnel.api.exception.WrongSideException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayNetworkHandler;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.PlayerEntity;
+import net.minecraft.network.packet.c2s.play.CustomPayloadC2SPacket;
+import net.minecraft.network.packet.s2c.play.CustomPayloadS2CPacket;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
+
+/**
+ * A Message that has already been written out, from {@link Message#encode()}. Sending it any
+ * number of times shares the same bytes rather than encoding the Message again for each
+ * recipient.
+ * <p>
+ * The encoded bytes are copied out of the pooled encoding buffer once, which is released
+ * immediately. {@link #close() Closing} this is optional, and only guards against it being sent
+ * again by mistake; packets that were already sent are unaffected.
+ */
+public final class EncodedMessage implements AutoCloseable {
+
+	private final NetworkContext ctx;
+	private final Class<? extends Message> clazz;
+	private final EnvType env;
+	private final Object coalescingKey;
+	private final byte[] bytes;
+	private volatile boolean closed;
+
+	EncodedMessage(NetworkContext ctx, Message m, Object coalescingKey, ByteBuf buf) {
+		this.ctx = ctx;
+		this.clazz = m.getClass();
+		this.env = m.getEnv();
+		this.coalescingKey = coalescingKey;
+		try {
+			this.bytes = ByteBufUtil.getBytes(buf);
+		} finally {
+			buf.release();
+		}
+	}
+
+	/**
+	 * For use on the server-side. Sends this Message to every player that can
+	 * see the given entity.
+	 */
+	public void sendToAllWatching(Entity e) {
+		if (env == EnvType.SERVER) wrongSide();
+		if (e.getWorld() instanceof ServerWorld) {
+			if (ctx.isBatching()) {
+				ctx.enqueueWatching(e, coalescingKey, newBuffer());
+				return;
+			}
+			ServerWorld srv = (ServerWorld) e.getWorld();
+			srv.getChunkManager().sendToNearbyPlayers(e, toClientboundVanillaPacket());
+		}
+	}
+
+	/**
+	 * For use on the server-side. Sends this Message to the given player.
+	 */
+	public void sendTo(PlayerEntity player) {
+		if (env == EnvType.SERVER) wrongSide();
+		if (player instanceof ServerPlayerEntity) {
+			if (ctx.isBatching()) {
+				ctx.enqueue((ServerPlayerEntity) player, coalescingKey, newBuffer());
+				return;
+			}
+			((ServerPlayerEntity) player).networkHandler.sendPacket(toClientboundVanillaPacket());
+		}
+	}
+
+	/**
+	 * For use on the server-side. Sends this Message to each of the given players.
+	 */
+	public void sendToAll(Iterable<? extends PlayerEntity> players) {
+		for (PlayerEntity player : players) {
+			sendTo(player);
+		}
+	}
+
+	/**
+	 * For use on the <i>client</i>-side. This is the only valid method for use
+	 * on the client side.
+	 */
+	@Environment(EnvType.CLIENT)
+	public void sendToServer() {
+		if (env == EnvType.CLIENT) wrongSide();
+		ClientPlayNetworkHandler conn = MinecraftClient.getInstance().getNetworkHandler();
+		if (conn == null) throw new IllegalStateException("Cannot send a message while not connected");
+		if (ctx.isBatching()) {
+			ctx.enqueueToServer(coalescingKey, newBuffer());
+			return;
+		}
+		conn.sendPacket(toServerboundVanillaPacket());
+	}
+
+	/**
+	 * @return a new packet carrying a reference to the encoded bytes
+	 */
+	public CustomPayloadC2SPacket toServerboundVanillaPacket() {
+		return new CustomPayloadC2SPacket(ctx.channel, newPayload());
+	}
+
+	/**
+	 * @return a new packet carrying a reference to the encoded bytes
+	 */
+	public CustomPayloadS2CPacket toClientboundVanillaPacket() {
+		return new CustomPayloadS2CPacket(ctx.channel, newPayload());
+	}
+
+	private TunnelPayload newPayload() {
+		checkOpen();
+		return TunnelPayload.wrap(bytes);
+	}
+
+	private ByteBuf newBuffer() {
+		checkOpen();
+		return Unpooled.wrappedBuffer(bytes);
+	}
+
+	private void checkOpen() {
+		if (closed) throw new IllegalStateException("EncodedMessage for "+clazz.getName()+" has been closed");
+	}
+
+	/**
+	 * Mark this EncodedMessage as done with. It can't be sent afterward.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+	}
+
+	private void wrongSide() {
+		throw new WrongSideException(clazz + " cannot be sent from side " + env);
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+/**
+ * Main-thread handlers waiting for the start of the next tick. Draining is bounded, so a flood
+ * of Messages is spread over several ticks instead of stalling one.
+ */
+final class HandlerQueue {
+
+	private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+
+	void add(Runnable handler) {
+		queue.add(handler);
+	}
+
+	/**
+	 * Run queued handlers in order until the queue is empty or either limit is reached. At least
+	 * one handler is always run, so the queue can't stall entirely.
+	 */
+	void drain(int maxHandlers, long maxNanos) {
+		long start = System.nanoTime();
+		int count = 0;
+		Runnable r;
+		while ((r = queue.poll()) != null) {
+			try {
+				r.run();
+			} catch (Throwable t) {
+				Lib39Log.error("Exception thrown while handling a message", t);
+			}
+			count++;
+			if (count >= maxHandlers || System.nanoTime()-start >= maxNanos) break;
+		}
+	}
+
+}
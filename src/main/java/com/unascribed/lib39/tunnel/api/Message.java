@@ -4,12 +4,15 @@ import java.util.Map;
 
 import com.unascribed.lib39.core.Lib39Log;
 import com.unascribed.lib39.tunnel.api.annotation.type.Asynchronous;
+import com.unascribed.lib39.tunnel.api.annotation.type.Coalesced;
+import com.unascribed.lib39.tunnel.api.annotation.type.DeltaSynced;
 import com.unascribed.lib39.tunnel.api.annotation.type.ReceivedOn;
 import com.unascribed.lib39.tunnel.api.annotation.type.ValidForSpectators;
 import com.unascribed.lib39.tunnel.api.exception.BadMessageException;
 import com.unascribed.lib39.tunnel.api.exception.WrongSideException;
 import com.google.common.collect.Maps;
 
+import io.netty.buffer.ByteBuf;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
 import net.minecraft.client.MinecraftClient;
@@ -26,12 +29,15 @@ public abstract class Message {
 		public final boolean async;
 		public final EnvType env;
 		public final boolean validForSpectators;
-		public ClassInfo(boolean async, EnvType env, boolean validForSpectators) {
+		public final boolean coalesced;
+		public ClassInfo(boolean async, EnvType env, boolean validForSpectators, boolean coalesced) {
 			this.async = async;
 			this.env = env;
 			this.validForSpectators = validForSpectators;
+			this.coalesced = coalesced;
 		}
 	}
+	private record CoalescingKey(Class<?> clazz, Object key) {}
 	private static final Map<Class<?>, ClassInfo> classInfo = Maps.newHashMap();
 	
 	
@@ -40,46 +46,78 @@ public abstract class Message {
 	private transient final EnvType env;
 	private transient final boolean async;
 	private transient final boolean validForSpectators;
+	private transient final boolean coalesced;
+	
+	private transient long receivedAt;
 	
 	public Message(NetworkContext ctx) {
 		this.ctx = ctx;
 		
 		ClassInfo ci = classInfo.get(getClass());
 		if (ci == null) {
-			if (this instanceof C2SMessage) {
-				env = EnvType.SERVER;
-			} else if (this instanceof S2CMessage) {
-				env = EnvType.CLIENT;
-			} else {
-				ReceivedOn ro = getClass().getDeclaredAnnotation(ReceivedOn.class);
-				if (ro == null) {
-					throw new BadMessageException("Must specify @ReceivedOn for an old-style Message");
-				} else {
-					env = ro.value();
-				}
-			}
+			env = envOf(getClass());
 			
 			async = getClass().getDeclaredAnnotation(Asynchronous.class) != null;
 			validForSpectators = getClass().getDeclaredAnnotation(ValidForSpectators.class) != null;
-			classInfo.put(getClass(), new ClassInfo(async, env, validForSpectators));
+			coalesced = getClass().getDeclaredAnnotation(Coalesced.class) != null;
+			classInfo.put(getClass(), new ClassInfo(async, env, validForSpectators, coalesced));
 		} else {
 			async = ci.async;
 			env = ci.env;
 			validForSpectators = ci.validForSpectators;
+			coalesced = ci.coalesced;
 		}
 		
 	}
 	
+	/**
+	 * @return the environment Messages of the given class are received on
+	 */
+	static EnvType envOf(Class<? extends Message> clazz) {
+		if (C2SMessage.class.isAssignableFrom(clazz)) {
+			return EnvType.SERVER;
+		} else if (S2CMessage.class.isAssignableFrom(clazz)) {
+			return EnvType.CLIENT;
+		} else {
+			ReceivedOn ro = clazz.getDeclaredAnnotation(ReceivedOn.class);
+			if (ro == null) {
+				throw new BadMessageException("Must specify @ReceivedOn for an old-style Message");
+			} else {
+				return ro.value();
+			}
+		}
+	}
+	
+	void markReceived(long nanos) {
+		receivedAt = nanos;
+	}
+	
+	private void runHandler(PlayerEntity player) {
+		long start = System.nanoTime();
+		try {
+			handle(player);
+		} finally {
+			ctx.getStats(getClass()).recordHandled(start-receivedAt, System.nanoTime()-start);
+		}
+	}
+	
 	@Environment(EnvType.CLIENT)
 	void doHandleClient() {
+		ctx.getStats(getClass()).recordQueued();
 		if (async) {
-			handle(MinecraftClient.getInstance().player);
+			ctx.runAsync(new Runnable() {
+				@Override
+				@Environment(EnvType.CLIENT)
+				public void run() {
+					runHandler(MinecraftClient.getInstance().player);
+				}
+			});
 		} else {
-			MinecraftClient.getInstance().execute(new Runnable() {
+			ctx.runOnClientThread(new Runnable() {
 				@Override
 				@Environment(EnvType.CLIENT)
 				public void run() {
-					handle(MinecraftClient.getInstance().player);
+					runHandler(MinecraftClient.getInstance().player);
 				}
 			});
 		}
@@ -91,10 +129,11 @@ public abstract class Message {
 			Lib39Log.warn("Spectator {} sent {}, which is not valid for spectators. Ignoring.", sender.getEntityName(), getClass().getName());
 			return;
 		}
+		ctx.getStats(getClass()).recordQueued();
 		if (async) {
-			handle(sender);
+			ctx.runAsync(() -> runHandler(sender));
 		} else {
-			((ServerWorld)sender.getWorld()).getServer().execute(() -> handle(sender));
+			ctx.runOnServerThread(((ServerWorld)sender.getWorld()).getServer(), () -> runHandler(sender));
 		}
 	}
 	
@@ -110,6 +149,32 @@ public abstract class Message {
 		return env;
 	}
 	
+	/**
+	 * For {@link Coalesced @Coalesced} and {@link DeltaSynced @DeltaSynced} Messages, returns a
+	 * value identifying what this Message is an update for, such as the position of the block it
+	 * describes. A batched Message replaces any earlier one of the same class with an equal key,
+	 * and a delta-synced Message is compared against the last one with an equal key sent to the
+	 * same player. By default, all Messages of the same class share a key.
+	 */
+	protected Object getStateKey() {
+		return null;
+	}
+	
+	/**
+	 * @return the key this Message is coalesced by in a batch, or null if it isn't coalesced
+	 */
+	Object coalescingKey() {
+		return coalesced ? new CoalescingKey(getClass(), getStateKey()) : null;
+	}
+	
+	/**
+	 * Encode this Message once, so it can be sent to many players without being written out
+	 * again for each of them. Closing the result is optional.
+	 */
+	public EncodedMessage encode() {
+		return new EncodedMessage(ctx, this, coalescingKey(), ctx.encode(this));
+	}
+	
 	/**
 	 * For use on the server-side. Sends this Message to every player that can
 	 * see the given entity.
@@ -117,6 +182,10 @@ public abstract class Message {
 	public void sendToAllWatching(Entity e) {
 		if (env == EnvType.SERVER) wrongSide();
 		if (e.getWorld() instanceof ServerWorld) {
+			if (ctx.isBatching()) {
+				ctx.enqueueWatching(e, coalescingKey(), ctx.encode(this));
+				return;
+			}
 			ServerWorld srv = (ServerWorld) e.getWorld();
 			CustomPayloadS2CPacket packet = toClientboundVanillaPacket();
 			srv.getChunkManager().sendToNearbyPlayers(e, packet);
@@ -129,7 +198,14 @@ public abstract class Message {
 	public void sendTo(PlayerEntity player) {
 		if (env == EnvType.SERVER) wrongSide();
 		if (player instanceof ServerPlayerEntity) {
-			((ServerPlayerEntity) player).networkHandler.sendPacket(toClientboundVanillaPacket());
+			ServerPlayerEntity spe = (ServerPlayerEntity) player;
+			// encoded for this player specifically, so delta-synced Messages can be tracked
+			ByteBuf payload = ctx.encode(this, spe);
+			if (ctx.isBatching()) {
+				ctx.enqueue(spe, coalescingKey(), payload);
+			} else {
+				spe.networkHandler.sendPacket(new CustomPayloadS2CPacket(ctx.channel, TunnelPayload.copyOf(payload)));
+			}
 		}
 	}
 	
@@ -142,6 +218,10 @@ public abstract class Message {
 		if (env == EnvType.CLIENT) wrongSide();
 		ClientPlayNetworkHandler conn = MinecraftClient.getInstance().getNetworkHandler();
 		if (conn == null) throw new IllegalStateException("Cannot send a message while not connected");
+		if (ctx.isBatching()) {
+			ctx.enqueueToServer(coalescingKey(), ctx.encode(this));
+			return;
+		}
 		conn.sendPacket(toServerboundVanillaPacket());
 	}
 	
@@ -0,0 +1,97 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketByteBuf;
+
+/**
+ * Encoded messages waiting to be sent to one recipient at the end of the tick. Coalesced
+ * messages replace any earlier one with the same key; everything else is kept in send order.
+ */
+final class MessageBatch {
+
+	/**
+	 * The packet id that marks a payload as a bundle of several payloads, each prefixed by its
+	 * length. Never assigned to a Message class.
+	 */
+	static final int BUNDLE_ID = 255;
+
+	// id byte plus the longest possible VarInt count
+	private static final int BUNDLE_HEADER = 6;
+	private static final int MAX_VARINT = 5;
+
+	private final Map<Object, ByteBuf> pending = Maps.newLinkedHashMap();
+
+	/**
+	 * @param key the message's coalescing key, or null if it isn't coalesced
+	 * @param buf an encoded message; the batch takes ownership of it
+	 */
+	void add(@Nullable Object key, ByteBuf buf) {
+		if (key == null) {
+			pending.put(new Object(), buf);
+		} else {
+			// remove first, so the newest copy goes out in the position it was sent in
+			ByteBuf old = pending.remove(key);
+			if (old != null) old.release();
+			pending.put(key, buf);
+		}
+	}
+
+	boolean isEmpty() {
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Pack everything queued into as few payloads as possible, each no larger than the limit
+	 * where that can be helped, and empty the batch. A lone message is sent as-is.
+	 */
+	void drain(int limit, Consumer<PacketByteBuf> out) {
+		List<ByteBuf> group = Lists.newArrayList();
+		int groupBytes = 0;
+		for (ByteBuf buf : pending.values()) {
+			int size = MAX_VARINT+buf.readableBytes();
+			if (!group.isEmpty() && BUNDLE_HEADER+groupBytes+size > limit) {
+				out.accept(bundle(group, groupBytes));
+				group.clear();
+				groupBytes = 0;
+			}
+			group.add(buf);
+			groupBytes += size;
+		}
+		if (!group.isEmpty()) {
+			out.accept(bundle(group, groupBytes));
+		}
+		pending.clear();
+	}
+
+	void discard() {
+		for (ByteBuf buf : pending.values()) {
+			buf.release();
+		}
+		pending.clear();
+	}
+
+	private static PacketByteBuf bundle(List<ByteBuf> group, int groupBytes) {
+		if (group.size() == 1) {
+			return TunnelPayload.copyOf(group.get(0));
+		}
+		PacketByteBuf out = TunnelPayload.allocate(BUNDLE_HEADER+groupBytes);
+		out.writeByte(BUNDLE_ID);
+		out.writeVarInt(group.size());
+		for (ByteBuf buf : group) {
+			out.writeVarInt(buf.readableBytes());
+			out.writeBytes(buf, buf.readerIndex(), buf.readableBytes());
+			buf.release();
+		}
+		return out;
+	}
+
+}
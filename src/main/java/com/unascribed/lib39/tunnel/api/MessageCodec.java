@@ -0,0 +1,13 @@
+package com.unascribed.lib39.tunnel.api;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writes and reads the wire fields of one Message class. The buffers passed are always
+ * PacketByteBufs; they're typed as ByteBuf so that generated codecs don't need to refer to
+ * Minecraft classes, which are named differently at runtime.
+ */
+interface MessageCodec {
+	void encode(Message m, ByteBuf out);
+	void decode(Message m, ByteBuf in);
+}
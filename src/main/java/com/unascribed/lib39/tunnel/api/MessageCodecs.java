@@ -0,0 +1,301 @@
+package com.unascribed.lib39.tunnel.api;
+
+import static org.objectweb.asm.Opcodes.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.ConstantDynamic;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+import com.google.common.collect.Maps;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketByteBuf;
+
+/**
+ * Generates a hidden class per Message class that reads and writes its wire fields directly,
+ * without boxing booleans or going through a field set per packet.
+ * <p>
+ * Field accessors and marshallers are passed to the generated class as class data, so the JIT
+ * sees them as constants. The generated code never refers to Minecraft classes by name, since the
+ * names differ at runtime; anything that needs a PacketByteBuf goes through a helper in this
+ * class.
+ */
+final class MessageCodecs {
+
+	private static final String MESSAGE = Type.getInternalName(Message.class);
+	private static final String BYTEBUF = "io/netty/buffer/ByteBuf";
+	private static final String SELF = Type.getInternalName(MessageCodecs.class);
+	private static final String METHOD_HANDLE = "java/lang/invoke/MethodHandle";
+	private static final String MARSHALLER = Type.getInternalName(Marshaller.class);
+	private static final String CODEC_DESC = "(L"+MESSAGE+";L"+BYTEBUF+";)V";
+	private static final Handle CLASS_DATA_AT = new Handle(H_INVOKESTATIC, "java/lang/invoke/MethodHandles", "classDataAt",
+			"(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/Class;I)Ljava/lang/Object;", false);
+
+	/**
+	 * A field type and marshaller pair that can be read and written without boxing.
+	 */
+	private record Direct(Class<?> type, String writer, String reader) {}
+
+	private static final Map<Marshaller<?>, Direct> DIRECT = Maps.newIdentityHashMap();
+
+	static {
+		DIRECT.put(DefaultMarshallers.INT8, new Direct(int.class, "writeInt8", "readInt8"));
+		DIRECT.put(DefaultMarshallers.UINT8, new Direct(int.class, "writeInt8", "readUInt8"));
+		DIRECT.put(DefaultMarshallers.INT16, new Direct(int.class, "writeInt16", "readInt16"));
+		DIRECT.put(DefaultMarshallers.UINT16, new Direct(int.class, "writeInt16", "readUInt16"));
+		DIRECT.put(DefaultMarshallers.INT24, new Direct(int.class, "writeInt24", "readInt24"));
+		DIRECT.put(DefaultMarshallers.UINT24, new Direct(int.class, "writeInt24", "readUInt24"));
+		DIRECT.put(DefaultMarshallers.INT32, new Direct(int.class, "writeInt32", "readInt32"));
+		DIRECT.put(DefaultMarshallers.VARINT, new Direct(int.class, "writeVarInt", "readVarInt"));
+		DIRECT.put(DefaultMarshallers.INT64, new Direct(long.class, "writeInt64", "readInt64"));
+		DIRECT.put(DefaultMarshallers.VARLONG, new Direct(long.class, "writeVarLong", "readVarLong"));
+		DIRECT.put(DefaultMarshallers.FLOAT, new Direct(float.class, "writeFloat", "readFloat"));
+		DIRECT.put(DefaultMarshallers.DOUBLE, new Direct(double.class, "writeDouble", "readDouble"));
+	}
+
+	static boolean isFlag(WireField<?> wf) {
+		return wf.getType() == Boolean.TYPE || wf.isOptional();
+	}
+
+	/**
+	 * Create the fastest codec available for the given message class, falling back to the
+	 * reflective codec if generation fails.
+	 */
+	static MessageCodec create(Class<? extends Message> clazz, List<WireField<?>> fields) {
+		try {
+			return generate(clazz, fields);
+		} catch (Throwable t) {
+			Lib39Log.warn("Failed to generate a codec for {}, falling back to reflection", clazz.getName(), t);
+			return new ReflectiveMessageCodec(fields);
+		}
+	}
+
+	private static MessageCodec generate(Class<? extends Message> clazz, List<WireField<?>> fields) throws Throwable {
+		List<Object> classData = new ArrayList<>();
+		String name = SELF.substring(0, SELF.lastIndexOf('/')+1)+"GeneratedMessageCodec";
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES | ClassWriter.COMPUTE_MAXS) {
+			@Override
+			protected String getCommonSuperClass(String type1, String type2) {
+				return "java/lang/Object";
+			}
+		};
+		cw.visit(V17, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, "java/lang/Object", new String[] { Type.getInternalName(MessageCodec.class) });
+
+		MethodVisitor ctor = cw.visitMethod(ACC_PUBLIC, "<init>", "()V", null, null);
+		ctor.visitCode();
+		ctor.visitVarInsn(ALOAD, 0);
+		ctor.visitMethodInsn(INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+		ctor.visitInsn(RETURN);
+		ctor.visitMaxs(0, 0);
+		ctor.visitEnd();
+
+		int flagCount = 0;
+		for (WireField<?> wf : fields) {
+			if (isFlag(wf)) flagCount++;
+		}
+
+		// encode(Message m, ByteBuf out); local 3 is the bitfield accumulator, 4 a scratch value
+		MethodVisitor enc = cw.visitMethod(ACC_PUBLIC, "encode", CODEC_DESC, null, null);
+		enc.visitCode();
+		int flag = 0;
+		for (WireField<?> wf : fields) {
+			if (!isFlag(wf)) continue;
+			if ((flag & 7) == 0) {
+				enc.visitInsn(ICONST_0);
+				enc.visitVarInsn(ISTORE, 3);
+			}
+			boolean bool = wf.getType() == Boolean.TYPE;
+			loadConstant(enc, classData, getter(wf, bool ? boolean.class : Object.class), METHOD_HANDLE);
+			enc.visitVarInsn(ALOAD, 1);
+			enc.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", "(L"+MESSAGE+";)"+(bool ? "Z" : "Ljava/lang/Object;"), false);
+			Label skip = new Label();
+			enc.visitJumpInsn(bool ? IFEQ : IFNULL, skip);
+			enc.visitVarInsn(ILOAD, 3);
+			enc.visitLdcInsn(1 << (flag & 7));
+			enc.visitInsn(IOR);
+			enc.visitVarInsn(ISTORE, 3);
+			enc.visitLabel(skip);
+			flag++;
+			if ((flag & 7) == 0 || flag == flagCount) {
+				enc.visitVarInsn(ALOAD, 2);
+				enc.visitVarInsn(ILOAD, 3);
+				enc.visitMethodInsn(INVOKEVIRTUAL, BYTEBUF, "writeByte", "(I)L"+BYTEBUF+";", false);
+				enc.visitInsn(POP);
+			}
+		}
+		for (WireField<?> wf : fields) {
+			if (wf.getType() == Boolean.TYPE) continue;
+			Direct direct = direct(wf);
+			if (direct != null) {
+				String d = Type.getDescriptor(direct.type());
+				enc.visitVarInsn(ALOAD, 2);
+				loadConstant(enc, classData, getter(wf, direct.type()), METHOD_HANDLE);
+				enc.visitVarInsn(ALOAD, 1);
+				enc.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", "(L"+MESSAGE+";)"+d, false);
+				enc.visitMethodInsn(INVOKESTATIC, SELF, direct.writer(), "(L"+BYTEBUF+";"+d+")V", false);
+				continue;
+			}
+			loadConstant(enc, classData, getter(wf, Object.class), METHOD_HANDLE);
+			enc.visitVarInsn(ALOAD, 1);
+			enc.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", "(L"+MESSAGE+";)Ljava/lang/Object;", false);
+			enc.visitVarInsn(ASTORE, 4);
+			Label next = new Label();
+			if (wf.isOptional()) {
+				enc.visitVarInsn(ALOAD, 4);
+				enc.visitJumpInsn(IFNULL, next);
+			} else {
+				enc.visitVarInsn(ALOAD, 4);
+				enc.visitLdcInsn(wf.describe());
+				enc.visitMethodInsn(INVOKESTATIC, SELF, "checkNotNull", "(Ljava/lang/Object;Ljava/lang/String;)V", false);
+			}
+			loadConstant(enc, classData, wf.getMarshaller(), MARSHALLER);
+			enc.visitVarInsn(ALOAD, 2);
+			enc.visitVarInsn(ALOAD, 4);
+			enc.visitMethodInsn(INVOKESTATIC, SELF, "marshal", "(L"+MARSHALLER+";L"+BYTEBUF+";Ljava/lang/Object;)V", false);
+			enc.visitLabel(next);
+		}
+		enc.visitInsn(RETURN);
+		enc.visitMaxs(0, 0);
+		enc.visitEnd();
+
+		// decode(Message m, ByteBuf in); local 3 is the current bitfield byte, 4+ are presence flags
+		MethodVisitor dec = cw.visitMethod(ACC_PUBLIC, "decode", CODEC_DESC, null, null);
+		dec.visitCode();
+		int[] presenceLocal = new int[fields.size()];
+		int nextLocal = 4;
+		flag = 0;
+		for (int i = 0; i < fields.size(); i++) {
+			WireField<?> wf = fields.get(i);
+			if (!isFlag(wf)) continue;
+			if ((flag & 7) == 0) {
+				dec.visitVarInsn(ALOAD, 2);
+				dec.visitMethodInsn(INVOKEVIRTUAL, BYTEBUF, "readUnsignedByte", "()S", false);
+				dec.visitVarInsn(ISTORE, 3);
+			}
+			boolean bool = wf.getType() == Boolean.TYPE;
+			if (bool) {
+				loadConstant(dec, classData, setter(wf, boolean.class), METHOD_HANDLE);
+				dec.visitVarInsn(ALOAD, 1);
+			}
+			dec.visitVarInsn(ILOAD, 3);
+			dec.visitLdcInsn(flag & 7);
+			dec.visitInsn(ISHR);
+			dec.visitInsn(ICONST_1);
+			dec.visitInsn(IAND);
+			if (bool) {
+				dec.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", "(L"+MESSAGE+";Z)V", false);
+			} else {
+				presenceLocal[i] = nextLocal;
+				dec.visitVarInsn(ISTORE, nextLocal++);
+			}
+			flag++;
+		}
+		for (int i = 0; i < fields.size(); i++) {
+			WireField<?> wf = fields.get(i);
+			if (wf.getType() == Boolean.TYPE) continue;
+			Label next = new Label();
+			if (wf.isOptional()) {
+				dec.visitVarInsn(ILOAD, presenceLocal[i]);
+				dec.visitJumpInsn(IFEQ, next);
+			}
+			Direct direct = direct(wf);
+			if (direct != null) {
+				String d = Type.getDescriptor(direct.type());
+				loadConstant(dec, classData, setter(wf, direct.type()), METHOD_HANDLE);
+				dec.visitVarInsn(ALOAD, 1);
+				dec.visitVarInsn(ALOAD, 2);
+				dec.visitMethodInsn(INVOKESTATIC, SELF, direct.reader(), "(L"+BYTEBUF+";)"+d, false);
+				dec.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", "(L"+MESSAGE+";"+d+")V", false);
+			} else {
+				loadConstant(dec, classData, setter(wf, Object.class), METHOD_HANDLE);
+				dec.visitVarInsn(ALOAD, 1);
+				loadConstant(dec, classData, wf.getMarshaller(), MARSHALLER);
+				dec.visitVarInsn(ALOAD, 2);
+				dec.visitMethodInsn(INVOKESTATIC, SELF, "unmarshal", "(L"+MARSHALLER+";L"+BYTEBUF+";)Ljava/lang/Object;", false);
+				dec.visitMethodInsn(INVOKEVIRTUAL, METHOD_HANDLE, "invokeExact", "(L"+MESSAGE+";Ljava/lang/Object;)V", false);
+			}
+			dec.visitLabel(next);
+		}
+		dec.visitInsn(RETURN);
+		dec.visitMaxs(0, 0);
+		dec.visitEnd();
+
+		cw.visitEnd();
+		MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClassWithClassData(cw.toByteArray(), classData, true);
+		MessageCodec codec = (MessageCodec)lookup.findConstructor(lookup.lookupClass(), MethodType.methodType(void.class)).invoke();
+		Lib39Log.debug("Generated codec for {} with {} fields", clazz.getName(), fields.size());
+		return codec;
+	}
+
+	private static Direct direct(WireField<?> wf) {
+		Direct d = DIRECT.get(wf.getMarshaller());
+		return d != null && d.type() == wf.getType() ? d : null;
+	}
+
+	private static MethodHandle getter(WireField<?> wf, Class<?> type) {
+		return wf.getGetter().asType(MethodType.methodType(type, Message.class));
+	}
+
+	private static MethodHandle setter(WireField<?> wf, Class<?> type) {
+		if (wf.getSetter() == null) throw new IllegalArgumentException("Field "+wf.describe()+" is not settable");
+		return wf.getSetter().asType(MethodType.methodType(void.class, Message.class, type));
+	}
+
+	private static void loadConstant(MethodVisitor mv, List<Object> classData, Object value, String type) {
+		int idx = classData.size();
+		classData.add(value);
+		mv.visitLdcInsn(new ConstantDynamic("_", "L"+type+";", CLASS_DATA_AT, idx));
+	}
+
+	// helpers called from generated code
+
+	static void checkNotNull(Object value, String desc) {
+		if (value == null) throw WireField.nullField(desc);
+	}
+
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	static void marshal(Marshaller m, ByteBuf out, Object value) {
+		m.marshal((PacketByteBuf)out, value);
+	}
+
+	static Object unmarshal(Marshaller<?> m, ByteBuf in) {
+		return m.unmarshal((PacketByteBuf)in);
+	}
+
+	static void writeInt8(ByteBuf out, int v) { out.writeByte(v); }
+	static int readInt8(ByteBuf in) { return in.readByte(); }
+	static int readUInt8(ByteBuf in) { return in.readUnsignedByte(); }
+	static void writeInt16(ByteBuf out, int v) { out.writeShort(v); }
+	static int readInt16(ByteBuf in) { return in.readShort(); }
+	static int readUInt16(ByteBuf in) { return in.readUnsignedShort(); }
+	static void writeInt24(ByteBuf out, int v) { out.writeMedium(v); }
+	static int readInt24(ByteBuf in) { return in.readMedium(); }
+	static int readUInt24(ByteBuf in) { return in.readUnsignedMedium(); }
+	static void writeInt32(ByteBuf out, int v) { out.writeInt(v); }
+	static int readInt32(ByteBuf in) { return in.readInt(); }
+	static void writeVarInt(ByteBuf out, int v) { ((PacketByteBuf)out).writeVarInt(v); }
+	static int readVarInt(ByteBuf in) { return ((PacketByteBuf)in).readVarInt(); }
+	static void writeVarLong(ByteBuf out, long v) { ((PacketByteBuf)out).writeVarLong(v); }
+	static long readVarLong(ByteBuf in) { return ((PacketByteBuf)in).readVarLong(); }
+	static void writeInt64(ByteBuf out, long v) { out.writeLong(v); }
+	static long readInt64(ByteBuf in) { return in.readLong(); }
+	static void writeFloat(ByteBuf out, float v) { out.writeFloat(v); }
+	static float readFloat(ByteBuf in) { return in.readFloat(); }
+	static void writeDouble(ByteBuf out, double v) { out.writeDouble(v); }
+	static double readDouble(ByteBuf in) { return in.readDouble(); }
+
+	private MessageCodecs() {}
+
+}
@@ -0,0 +1,144 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters for one Message class on one NetworkContext. Counts are cumulative since
+ * registration or the last {@link #reset()}; all times are in nanoseconds.
+ * <p>
+ * "Sent" counts each time the Message is encoded, so a Message encoded once and sent to many
+ * players is only counted once.
+ */
+public final class MessageStats {
+
+	private final Class<? extends Message> messageClass;
+
+	private final LongAdder sent = new LongAdder();
+	private final LongAdder sentBytes = new LongAdder();
+	private final LongAdder encodeNanos = new LongAdder();
+	private final LongAdder received = new LongAdder();
+	private final LongAdder receivedBytes = new LongAdder();
+	private final LongAdder receivedDecompressedBytes = new LongAdder();
+	private final LongAdder decodeNanos = new LongAdder();
+	private final LongAdder handled = new LongAdder();
+	private final LongAdder handlerNanos = new LongAdder();
+	private final LongAdder handlerLatencyNanos = new LongAdder();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger peakQueued = new AtomicInteger();
+
+	MessageStats(Class<? extends Message> messageClass) {
+		this.messageClass = messageClass;
+	}
+
+	void recordSent(int bytes, long nanos) {
+		sent.increment();
+		sentBytes.add(bytes);
+		encodeNanos.add(nanos);
+	}
+
+	void recordReceived(int bytes, int decompressedBytes, long nanos) {
+		received.increment();
+		receivedBytes.add(bytes);
+		receivedDecompressedBytes.add(decompressedBytes);
+		decodeNanos.add(nanos);
+	}
+
+	void recordQueued() {
+		int depth = queued.incrementAndGet();
+		peakQueued.accumulateAndGet(depth, Math::max);
+	}
+
+	void recordHandled(long latencyNanos, long nanos) {
+		queued.decrementAndGet();
+		handled.increment();
+		handlerLatencyNanos.add(latencyNanos);
+		handlerNanos.add(nanos);
+	}
+
+	public Class<? extends Message> getMessageClass() {
+		return messageClass;
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	/**
+	 * @return the size of the encoded payloads, after compression
+	 */
+	public long getSentBytes() {
+		return sentBytes.sum();
+	}
+
+	public long getEncodeNanos() {
+		return encodeNanos.sum();
+	}
+
+	public long getReceived() {
+		return received.sum();
+	}
+
+	/**
+	 * @return the size of the received payloads as they arrived, before decompression, so it can
+	 * 		be compared with {@link #getSentBytes()}
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes.sum();
+	}
+
+	/**
+	 * @return the size of the received payloads after decompression
+	 */
+	public long getReceivedDecompressedBytes() {
+		return receivedDecompressedBytes.sum();
+	}
+
+	public long getDecodeNanos() {
+		return decodeNanos.sum();
+	}
+
+	public long getHandled() {
+		return handled.sum();
+	}
+
+	/**
+	 * @return the time spent inside {@link Message#handle}
+	 */
+	public long getHandlerNanos() {
+		return handlerNanos.sum();
+	}
+
+	/**
+	 * @return the time between Messages being decoded and their handlers starting
+	 */
+	public long getHandlerLatencyNanos() {
+		return handlerLatencyNanos.sum();
+	}
+
+	/**
+	 * @return how many received Messages are currently waiting for their handler to run
+	 */
+	public int getQueued() {
+		return queued.get();
+	}
+
+	public int getPeakQueued() {
+		return peakQueued.get();
+	}
+
+	public void reset() {
+		sent.reset();
+		sentBytes.reset();
+		encodeNanos.reset();
+		received.reset();
+		receivedBytes.reset();
+		receivedDecompressedBytes.reset();
+		decodeNanos.reset();
+		handled.reset();
+		handlerNanos.reset();
+		handlerLatencyNanos.reset();
+		peakQueued.set(queued.get());
+	}
+
+}
@@ -6,51 +6,90 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
+import org.jetbrains.annotations.Nullable;
+
 import com.unascribed.lib39.core.Lib39Log;
 import com.unascribed.lib39.core.P39;
-import com.unascribed.lib39.tunnel.api.annotation.field.Optional;
+import com.unascribed.lib39.tunnel.api.annotation.type.Asynchronous;
+import com.unascribed.lib39.tunnel.api.annotation.type.Coalesced;
+import com.unascribed.lib39.tunnel.api.annotation.type.Compressed;
+import com.unascribed.lib39.tunnel.api.annotation.type.DeltaSynced;
 import com.unascribed.lib39.tunnel.api.exception.BadMessageException;
 import com.unascribed.lib39.tunnel.api.exception.WrongSideException;
 import com.google.common.collect.BiMap;
 import com.google.common.collect.HashBiMap;
-import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
-import com.google.common.collect.Multiset;
-import com.google.common.collect.Sets;
 
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import net.fabricmc.api.EnvType;
 import net.fabricmc.api.Environment;
+import net.minecraft.client.MinecraftClient;
 import net.minecraft.client.network.ClientPlayNetworkHandler;
+import net.minecraft.entity.Entity;
 import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.packet.c2s.play.CustomPayloadC2SPacket;
 import net.minecraft.network.packet.s2c.play.CustomPayloadS2CPacket;
+import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayNetworkHandler;
+import net.minecraft.server.network.ServerPlayerEntity;
+import net.minecraft.server.world.ServerWorld;
 import net.minecraft.text.Text;
 import net.minecraft.util.Identifier;
 
 public final class NetworkContext {
 	public static final List<NetworkContext> contexts = new ArrayList<>();
 	
+	// vanilla's limits for custom payloads in each direction
+	private static final int MAX_S2C_PAYLOAD = 1048576;
+	private static final int MAX_C2S_PAYLOAD = 32767;
+	// and how much may be decompressed from one received payload in total, so a bad one can't
+	// make us allocate arbitrary amounts of memory
+	private static final int MAX_S2C_DECOMPRESSED = 16*1024*1024;
+	private static final int MAX_C2S_DECOMPRESSED = 1024*1024;
+	
 	protected static final Map<Class<? extends Message>, MethodHandle> instanciators = Maps.newHashMap();
 	
 	protected final BiMap<Class<? extends Message>, Integer> packetIds = HashBiMap.create();
 	protected final Map<Class<? extends Message>, List<WireField<?>>> marshallers = Maps.newHashMap();
-	protected final Multiset<Class<? extends Message>> booleanCount = HashMultiset.create();
-	protected final Multiset<Class<? extends Message>> optionalCount = HashMultiset.create();
+	protected final Map<Class<? extends Message>, MessageCodec> codecs = Maps.newHashMap();
+	protected final Map<Class<? extends Message>, SizeHint> sizeHints = Maps.newHashMap();
+	protected final Object2IntMap<Class<? extends Message>> compressionThresholds = new Object2IntOpenHashMap<>();
+	protected final Map<Class<? extends Message>, MessageStats> stats = Maps.newLinkedHashMap();
 	
 	protected final Identifier channel;
 	
 	private int nextPacketId = 0;
 	
+	private volatile boolean batching = false;
+	private volatile int compressionThreshold = -1;
+	private volatile byte[] compressionDictionary = null;
+	
+	private volatile Executor asyncExecutor = Runnable::run;
+	private volatile int mainThreadBudget = -1;
+	private volatile long mainThreadBudgetNanos;
+	private final HandlerQueue serverHandlers = new HandlerQueue();
+	private final HandlerQueue clientHandlers = new HandlerQueue();
+	private final Map<ServerPlayerEntity, MessageBatch> playerBatches = Maps.newLinkedHashMap();
+	private final Map<Entity, MessageBatch> watcherBatches = Maps.newLinkedHashMap();
+	private final MessageBatch serverBatch = new MessageBatch();
+	
 	private NetworkContext(Identifier channel) {
 		this.channel = channel;
+		compressionThresholds.defaultReturnValue(-1);
+		TunnelStats.startDumperIfConfigured();
 		contexts.add(this);
 	}
 	
@@ -58,18 +97,15 @@ public final class NetworkContext {
 		if (packetIds.containsKey(clazz)) {
 			return this;
 		}
+		if (nextPacketId >= PayloadCompression.COMPRESSED_ID) {
+			throw new BadMessageException("Too many messages registered on "+channel);
+		}
 		packetIds.put(clazz, nextPacketId++);
 		List<WireField<?>> fields = Lists.newArrayList();
 		Class<?> cursor = clazz;
 		while (cursor != null && cursor != Object.class) {
 			for (Field f : cursor.getDeclaredFields()) {
 				if (!Modifier.isTransient(f.getModifiers()) && !Modifier.isStatic(f.getModifiers())) {
-					if (f.getType() == Boolean.TYPE) {
-						booleanCount.add(clazz);
-					}
-					if (f.getAnnotation(Optional.class) != null) {
-						optionalCount.add(clazz);
-					}
 					WireField<?> wf = new WireField<>(f, true);
 					fields.add(wf);
 				}
@@ -77,9 +113,186 @@ public final class NetworkContext {
 			cursor = cursor.getSuperclass();
 		}
 		marshallers.put(clazz, fields);
+		if (clazz.isAnnotationPresent(DeltaSynced.class)) {
+			if (clazz.isAnnotationPresent(Coalesced.class)) {
+				throw new BadMessageException(clazz + " cannot be both @DeltaSynced and @Coalesced");
+			}
+			if (Message.envOf(clazz) != EnvType.CLIENT) {
+				throw new BadMessageException(clazz + " cannot be @DeltaSynced, as only Messages received on the client can be");
+			}
+			codecs.put(clazz, new DeltaMessageCodec(fields));
+		} else {
+			codecs.put(clazz, MessageCodecs.create(clazz, fields));
+		}
+		sizeHints.put(clazz, new SizeHint());
+		stats.put(clazz, new MessageStats(clazz));
+		Compressed compressed = clazz.getAnnotation(Compressed.class);
+		if (compressed != null) {
+			compressionThresholds.put(clazz, Math.max(0, compressed.threshold()));
+		}
+		return this;
+	}
+	
+	/**
+	 * Enable batching for this context. Rather than being sent right away, Messages sent to the
+	 * same recipient during a tick are queued and sent together as one packet at the end of the
+	 * tick, and {@link Coalesced @Coalesced} Messages only send their latest copy.
+	 * <p>
+	 * Ordering is kept for each of {@link Message#sendTo}, {@link Message#sendToAllWatching}
+	 * (per entity) and {@link Message#sendToServer}, but not between them.
+	 */
+	public NetworkContext enableBatching() {
+		batching = true;
+		return this;
+	}
+	
+	public boolean isBatching() {
+		return batching;
+	}
+	
+	/**
+	 * Compress every Message on this context that encodes to at least the given number of bytes.
+	 * Messages annotated {@link Compressed @Compressed} use their own threshold instead.
+	 */
+	public NetworkContext enableCompression(int threshold) {
+		compressionThreshold = Math.max(0, threshold);
+		return this;
+	}
+	
+	/**
+	 * Prime compression on this context with the given bytes, such as an example of the NBT your
+	 * Messages usually carry. Helps a lot with small payloads that share a shape. Must be set to
+	 * the same bytes on both sides, before anything compressed is sent.
+	 */
+	public NetworkContext setCompressionDictionary(byte[] dictionary) {
+		compressionDictionary = dictionary.clone();
 		return this;
 	}
 	
+	/**
+	 * Run the handlers of {@link Asynchronous @Asynchronous} Messages on the given executor
+	 * rather than on the network thread they were received on. Useful for handlers that do
+	 * heavy work, which would otherwise hold up every other packet on the connection.
+	 */
+	public NetworkContext setAsyncExecutor(Executor executor) {
+		asyncExecutor = executor;
+		return this;
+	}
+	
+	/**
+	 * Run the handlers of {@link Asynchronous @Asynchronous} Messages on a pool of the given
+	 * number of daemon threads, shared by both sides.
+	 */
+	public NetworkContext useAsyncWorkers(int threads) {
+		AtomicInteger count = new AtomicInteger();
+		return setAsyncExecutor(Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "Lib39 Tunnel handler #"+count.getAndIncrement()+" ("+channel+")");
+			t.setDaemon(true);
+			return t;
+		}));
+	}
+	
+	/**
+	 * Rather than handing each main-thread handler to the game's task queue as it arrives, queue
+	 * them and run them in one go at the start of each tick, stopping once the given number have
+	 * run or the given time has passed. Whatever's left over runs in the next tick.
+	 */
+	public NetworkContext setMainThreadBudget(int maxHandlers, int maxMillis) {
+		mainThreadBudgetNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, maxMillis));
+		mainThreadBudget = Math.max(1, maxHandlers);
+		return this;
+	}
+	
+	void runAsync(Runnable handler) {
+		asyncExecutor.execute(handler);
+	}
+	
+	void runOnServerThread(MinecraftServer server, Runnable handler) {
+		if (mainThreadBudget > 0) {
+			serverHandlers.add(handler);
+		} else {
+			server.execute(handler);
+		}
+	}
+	
+	@Environment(EnvType.CLIENT)
+	void runOnClientThread(Runnable handler) {
+		if (mainThreadBudget > 0) {
+			clientHandlers.add(handler);
+		} else {
+			MinecraftClient.getInstance().execute(handler);
+		}
+	}
+	
+	/**
+	 * Run main-thread handlers queued on the server, within each context's budget. Called at the
+	 * start of each server tick.
+	 */
+	public static void runServerHandlers() {
+		for (NetworkContext ctx : contexts) {
+			if (ctx.mainThreadBudget > 0) ctx.serverHandlers.drain(ctx.mainThreadBudget, ctx.mainThreadBudgetNanos);
+		}
+	}
+	
+	/**
+	 * Run main-thread handlers queued on the client, within each context's budget. Called at the
+	 * start of each client tick.
+	 */
+	@Environment(EnvType.CLIENT)
+	public static void runClientHandlers() {
+		for (NetworkContext ctx : contexts) {
+			if (ctx.mainThreadBudget > 0) ctx.clientHandlers.drain(ctx.mainThreadBudget, ctx.mainThreadBudgetNanos);
+		}
+	}
+	
+	/**
+	 * Forget what was last sent to each player for the given {@link DeltaSynced @DeltaSynced}
+	 * Message class and state key, so the next one sent is sent in full. Call this when the state
+	 * a key describes goes away, such as when its chunk or block entity is unloaded; otherwise
+	 * the baselines for it are kept for as long as the player is.
+	 */
+	public void forgetDeltaState(Class<? extends Message> clazz, Object stateKey) {
+		if (codecs.get(clazz) instanceof DeltaMessageCodec dmc) {
+			dmc.forget(stateKey);
+		}
+	}
+	
+	/**
+	 * Forget what was last sent to the given player for the given {@link DeltaSynced @DeltaSynced}
+	 * Message class and state key, such as when a chunk stops being watched by them.
+	 */
+	public void forgetDeltaState(ServerPlayerEntity player, Class<? extends Message> clazz, Object stateKey) {
+		if (codecs.get(clazz) instanceof DeltaMessageCodec dmc) {
+			dmc.forget(player, stateKey);
+		}
+	}
+	
+	/**
+	 * Drop the delta-synced Messages received from the server. Called when the client
+	 * disconnects.
+	 */
+	@Environment(EnvType.CLIENT)
+	public static void clearClientDeltaState() {
+		for (NetworkContext ctx : contexts) {
+			for (MessageCodec codec : ctx.codecs.values()) {
+				if (codec instanceof DeltaMessageCodec dmc) dmc.clearReceived();
+			}
+		}
+	}
+	
+	/**
+	 * @return traffic counters for every Message class registered on this context
+	 */
+	public Map<Class<? extends Message>, MessageStats> getStats() {
+		return Collections.unmodifiableMap(stats);
+	}
+	
+	/**
+	 * @return traffic counters for the given Message class, or null if it isn't registered
+	 */
+	public MessageStats getStats(Class<? extends Message> clazz) {
+		return stats.get(clazz);
+	}
 	
 	public Identifier getChannel() {
 		return channel;
@@ -88,42 +301,59 @@ public final class NetworkContext {
 	
 	
 	protected PacketByteBuf getPayloadFrom(Message m) {
-		if (!packetIds.containsKey(m.getClass())) throw new BadMessageException(m.getClass() + " is not registered");
-		PacketByteBuf payload = new PacketByteBuf(Unpooled.buffer());
-		payload.writeByte(packetIds.get(m.getClass()));
-		int bools = booleanCount.count(m.getClass()) + optionalCount.count(m.getClass());
-		if (bools > 0) {
-			List<Boolean> li = Lists.newArrayListWithCapacity(bools);
-			for (WireField<?> wf : marshallers.get(m.getClass())) {
-				if (wf.getType() == Boolean.TYPE) {
-					li.add((Boolean) wf.get(m));
-				} else if (wf.isOptional()) {
-					li.add(wf.get(m) != null);
-				}
+		return TunnelPayload.copyOf(encode(m));
+	}
+	
+	/**
+	 * @return a pooled buffer holding the packet id and fields of the given Message, which the
+	 * 		caller is responsible for releasing
+	 */
+	ByteBuf encode(Message m) {
+		return encode(m, null);
+	}
+	
+	/**
+	 * @param recipient the player the result will be sent to, if it's only going to one player;
+	 * 		allows delta-synced Messages to send only what changed
+	 */
+	ByteBuf encode(Message m, @Nullable ServerPlayerEntity recipient) {
+		Class<? extends Message> clazz = m.getClass();
+		Integer id = packetIds.get(clazz);
+		if (id == null) throw new BadMessageException(clazz + " is not registered");
+		long start = System.nanoTime();
+		SizeHint hint = sizeHints.get(clazz);
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.heapBuffer(hint.get());
+		try {
+			buf.writeByte(id);
+			MessageCodec codec = codecs.get(clazz);
+			if (recipient != null && codec instanceof DeltaMessageCodec) {
+				((DeltaMessageCodec)codec).encode(m, new PacketByteBuf(buf), recipient);
+			} else {
+				codec.encode(m, new PacketByteBuf(buf));
 			}
-			for (int i = 0; i < (bools + 7) / 8; i++) {
-				int by = 0;
-				for (int j = i * 8; j < Math.min(li.size(), i + 8); j++) {
-					if (li.get(j)) {
-						by |= (1 << j);
-					}
-				}
-				payload.writeByte(by);
+		} catch (Throwable t) {
+			buf.release();
+			throw t;
+		}
+		hint.update(buf.writerIndex());
+		int threshold = compressionThresholds.getInt(clazz);
+		if (threshold < 0) threshold = compressionThreshold;
+		if (threshold >= 0 && buf.readableBytes() >= threshold) {
+			ByteBuf compressed = PayloadCompression.compress(buf, compressionDictionary);
+			if (compressed != null) {
+				buf.release();
+				buf = compressed;
 			}
 		}
-		marshallers.get(m.getClass()).stream()
-		                             .filter((it) -> it.getType() != Boolean.TYPE)
-		                             .forEach((it) -> it.marshal(m, payload));
-		return payload;
+		stats.get(clazz).recordSent(buf.readableBytes(), System.nanoTime()-start);
+		return buf;
 	}
 
 
 	public boolean handleCustomPacket(ServerPlayNetworkHandler handler, CustomPayloadC2SPacket pkt) {
 		if (pkt.getChannel().equals(channel)) {
 			try {
-				PacketByteBuf payload = pkt.getData();
-				Message m = readPacket(EnvType.SERVER, payload);
-				m.doHandleServer(handler.player);
+				readPayload(EnvType.SERVER, view(pkt.getData()), m -> m.doHandleServer(handler.player));
 			} catch (Throwable t) {
 				Lib39Log.warn("Exception thrown during packet handling, kicking player", t);
 				handler.disconnect(Text.literal("Internal server error"));
@@ -136,17 +366,133 @@ public final class NetworkContext {
 	@Environment(EnvType.CLIENT)
 	public boolean handleCustomPacket(ClientPlayNetworkHandler handler, CustomPayloadS2CPacket pkt) {
 		if (pkt.getChannel().equals(channel)) {
-			PacketByteBuf payload = pkt.getData();
-			Message m = readPacket(EnvType.CLIENT, payload);
-			m.doHandleClient();
+			readPayload(EnvType.CLIENT, view(pkt.getData()), Message::doHandleClient);
 			return true;
 		}
 		return false;
 	}
 	
 	
-	@SuppressWarnings("unchecked")
-	private Message readPacket(EnvType env, PacketByteBuf payload) {
+	synchronized void enqueue(ServerPlayerEntity player, Object coalescingKey, ByteBuf buf) {
+		playerBatches.computeIfAbsent(player, p -> new MessageBatch()).add(coalescingKey, buf);
+	}
+	
+	synchronized void enqueueWatching(Entity e, Object coalescingKey, ByteBuf buf) {
+		watcherBatches.computeIfAbsent(e, p -> new MessageBatch()).add(coalescingKey, buf);
+	}
+	
+	synchronized void enqueueToServer(Object coalescingKey, ByteBuf buf) {
+		serverBatch.add(coalescingKey, buf);
+	}
+	
+	private synchronized void flushClientbound() {
+		if (playerBatches.isEmpty() && watcherBatches.isEmpty()) return;
+		for (Map.Entry<ServerPlayerEntity, MessageBatch> en : playerBatches.entrySet()) {
+			ServerPlayerEntity player = en.getKey();
+			en.getValue().drain(MAX_S2C_PAYLOAD, payload -> player.networkHandler.sendPacket(new CustomPayloadS2CPacket(channel, payload)));
+		}
+		playerBatches.clear();
+		for (Map.Entry<Entity, MessageBatch> en : watcherBatches.entrySet()) {
+			Entity e = en.getKey();
+			if (e.getWorld() instanceof ServerWorld srv) {
+				en.getValue().drain(MAX_S2C_PAYLOAD, payload -> srv.getChunkManager().sendToNearbyPlayers(e, new CustomPayloadS2CPacket(channel, payload)));
+			} else {
+				en.getValue().discard();
+			}
+		}
+		watcherBatches.clear();
+	}
+	
+	@Environment(EnvType.CLIENT)
+	private synchronized void flushServerbound() {
+		if (serverBatch.isEmpty()) return;
+		ClientPlayNetworkHandler conn = MinecraftClient.getInstance().getNetworkHandler();
+		if (conn == null) {
+			serverBatch.discard();
+		} else {
+			serverBatch.drain(MAX_C2S_PAYLOAD, payload -> conn.sendPacket(new CustomPayloadC2SPacket(channel, payload)));
+		}
+	}
+	
+	/**
+	 * Send everything batched on the server this tick. Called at the end of each server tick.
+	 */
+	public static void flushServerBatches() {
+		for (NetworkContext ctx : contexts) {
+			if (ctx.batching) ctx.flushClientbound();
+		}
+	}
+	
+	/**
+	 * Send everything batched on the client this tick. Called at the end of each client tick.
+	 */
+	@Environment(EnvType.CLIENT)
+	public static void flushClientBatches() {
+		for (NetworkContext ctx : contexts) {
+			if (ctx.batching) ctx.flushServerbound();
+		}
+	}
+	
+	private static PacketByteBuf view(PacketByteBuf data) {
+		// in singleplayer the sender's packet arrives as-is, and it may also be getting written
+		// to other connections, so don't move its reader index
+		return new PacketByteBuf(data.duplicate());
+	}
+	
+	/**
+	 * Read a payload as sent by {@link #encode} or {@link MessageBatch}: either a single Message,
+	 * possibly compressed, or a bundle of them. Nothing else is accepted, and everything
+	 * decompressed from one payload is counted against a single limit, so a small payload can't
+	 * make us inflate an arbitrary amount.
+	 */
+	private void readPayload(EnvType env, PacketByteBuf payload, Consumer<Message> handler) {
+		int[] budget = { env == EnvType.SERVER ? MAX_C2S_DECOMPRESSED : MAX_S2C_DECOMPRESSED };
+		int id = payload.getUnsignedByte(payload.readerIndex());
+		if (id == MessageBatch.BUNDLE_ID) {
+			payload.skipBytes(1);
+			int count = payload.readVarInt();
+			for (int i = 0; i < count; i++) {
+				int length = payload.readVarInt();
+				readEntry(env, new PacketByteBuf(payload.readSlice(length)), budget, handler);
+			}
+			if (payload.isReadable()) {
+				throw new BadMessageException("Bundle has "+payload.readableBytes()+" bytes left over after its "+count+" entries");
+			}
+		} else {
+			readEntry(env, payload, budget, handler);
+		}
+	}
+	
+	/**
+	 * @param budget how many more bytes may be decompressed from the payload this is part of
+	 */
+	private void readEntry(EnvType env, PacketByteBuf payload, int[] budget, Consumer<Message> handler) {
+		int id = payload.getUnsignedByte(payload.readerIndex());
+		if (id == MessageBatch.BUNDLE_ID) {
+			throw new BadMessageException("Bundles cannot be nested");
+		} else if (id == PayloadCompression.COMPRESSED_ID) {
+			int compressedBytes = payload.readableBytes();
+			payload.skipBytes(1);
+			PacketByteBuf inner = PayloadCompression.decompress(payload, compressionDictionary, budget[0]);
+			budget[0] -= inner.readableBytes();
+			int innerId = inner.isReadable() ? inner.getUnsignedByte(inner.readerIndex()) : -1;
+			if (innerId == MessageBatch.BUNDLE_ID || innerId == PayloadCompression.COMPRESSED_ID) {
+				throw new BadMessageException("Compressed payloads may only contain a single Message");
+			}
+			handler.accept(readPacket(env, inner, compressedBytes));
+		} else {
+			handler.accept(readPacket(env, payload, -1));
+		}
+	}
+	
+	/**
+	 * @param wireBytes how many bytes the payload took up as received, if it was decompressed
+	 * 		from something else; -1 if it's as received
+	 */
+	private Message readPacket(EnvType env, PacketByteBuf payload, int wireBytes) {
+		long start = System.nanoTime();
+		int bytes = payload.readableBytes();
+		if (wireBytes == -1) wireBytes = bytes;
 		int id = payload.readUnsignedByte();
 		if (!packetIds.containsValue(id)) {
 			throw new IllegalArgumentException("Unknown packet id " + id);
@@ -161,33 +507,10 @@ public final class NetworkContext {
 		if (m.getEnv() != env) {
 			throw new WrongSideException("Cannot receive packet of type " + clazz + " in environment " + env);
 		}
-		Set<WireField<?>> present = Sets.newHashSetWithExpectedSize(marshallers.get(m.getClass()).size());
-		int bools = booleanCount.count(m.getClass()) + optionalCount.count(m.getClass());
-		if (bools > 0) {
-			List<Consumer<Boolean>> li = Lists.newArrayListWithCapacity(bools);
-			for (WireField<?> wf : marshallers.get(m.getClass())) {
-				if (wf.getType() == Boolean.TYPE) {
-					li.add((b) -> ((WireField<Boolean>) wf).set(m, b));
-					present.add(wf);
-				} else if (wf.isOptional()) {
-					li.add((b) -> { if (b) { present.add(wf); } });
-				} else {
-					present.add(wf);
-				}
-			}
-			for (int i = 0; i < (bools + 7) / 8; i++) {
-				int by = payload.readUnsignedByte();
-				for (int j = i * 8; j < Math.min(li.size(), i + 8); j++) {
-					boolean val = (by & (1 << (j - i))) != 0;
-					li.get(j).accept(val);
-				}
-			}
-		} else {
-			present.addAll(marshallers.get(m.getClass()));
-		}
-		marshallers.get(m.getClass()).stream()
-		                             .filter((it) -> it.getType() != Boolean.TYPE && present.contains(it))
-		                             .forEach((it) -> it.unmarshal(m, payload));
+		codecs.get(clazz).decode(m, payload);
+		long end = System.nanoTime();
+		stats.get(clazz).recordReceived(wireBytes, bytes, end-start);
+		m.markReceived(end);
 		return m;
 	}
 	
@@ -211,6 +534,28 @@ public final class NetworkContext {
 	}
 	
 	
+	/**
+	 * Tracks how large a Message class tends to encode to, so its buffer can be allocated at
+	 * about the right size up front. Races between threads only cost accuracy.
+	 */
+	protected static final class SizeHint {
+		private volatile int size = 32;
+		
+		int get() {
+			return size;
+		}
+		
+		void update(int written) {
+			int s = size;
+			if (written > s) {
+				size = written;
+			} else {
+				// decay slowly, so one small message doesn't cause the next large one to regrow
+				size = s - ((s - written) >> 3);
+			}
+		}
+	}
+	
 	public static NetworkContext forChannel(String channel) {
 		return new NetworkContext(new Identifier(channel));
 	}
@@ -0,0 +1,103 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.unascribed.lib39.tunnel.api.exception.BadMessageException;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+
+/**
+ * Wraps encoded payloads in a zlib envelope. The envelope is a payload of its own, marked by a
+ * reserved packet id, so it can hold a single Message or a whole bundle.
+ * <p>
+ * Deflaters and inflaters are expensive to create and hold native memory, so each thread keeps
+ * one of each and resets it between uses.
+ */
+final class PayloadCompression {
+
+	/**
+	 * The packet id that marks a payload as compressed. Followed by the VarInt length of the
+	 * original payload, then its zlib-compressed bytes. Never assigned to a Message class.
+	 */
+	static final int COMPRESSED_ID = 254;
+
+	private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+	private static final ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+	/**
+	 * @return a pooled buffer holding the compressed form of the given payload, or null if
+	 * 		compressing it didn't make it any smaller; the input is left as-is either way
+	 */
+	static @Nullable ByteBuf compress(ByteBuf in, @Nullable byte[] dictionary) {
+		int length = in.readableBytes();
+		Deflater def = deflaters.get();
+		def.reset();
+		if (dictionary != null) def.setDictionary(dictionary);
+		def.setInput(in.nioBuffer());
+		def.finish();
+		ByteBuf out = PooledByteBufAllocator.DEFAULT.heapBuffer(length);
+		new PacketByteBuf(out).writeByte(COMPRESSED_ID).writeVarInt(length);
+		int start = out.writerIndex();
+		if (start >= length) {
+			out.release();
+			return null;
+		}
+		// only give it as much room as the original took, so we can tell when it didn't help
+		int written = def.deflate(out.nioBuffer(start, length-start));
+		if (!def.finished()) {
+			out.release();
+			return null;
+		}
+		out.writerIndex(start+written);
+		return out;
+	}
+
+	/**
+	 * Decompress an envelope whose id byte has already been read.
+	 *
+	 * @return a new buffer holding the original payload
+	 */
+	static PacketByteBuf decompress(PacketByteBuf in, @Nullable byte[] dictionary, int maxLength) {
+		int length = in.readVarInt();
+		if (length < 0 || length > maxLength) {
+			throw new BadMessageException("Compressed payload claims a length of "+length+", over the limit of "+maxLength);
+		}
+		Inflater inf = inflaters.get();
+		inf.reset();
+		inf.setInput(in.nioBuffer());
+		// unpooled, as marshallers may hand out slices or copies of it to handlers
+		ByteBuf out = Unpooled.buffer(length, length);
+		ByteBuffer nio = out.nioBuffer(0, length);
+		try {
+			while (!inf.finished()) {
+				if (inf.inflate(nio) == 0) {
+					if (inf.needsDictionary()) {
+						if (dictionary == null) throw new BadMessageException("Compressed payload needs a dictionary, but none is set");
+						inf.setDictionary(dictionary);
+					} else if (inf.needsInput() || !nio.hasRemaining()) {
+						throw new BadMessageException("Compressed payload is truncated or longer than claimed");
+					}
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new BadMessageException("Compressed payload is corrupt", e);
+		}
+		if (nio.position() != length) {
+			throw new BadMessageException("Compressed payload is "+nio.position()+" bytes, but claimed to be "+length);
+		}
+		in.skipBytes(in.readableBytes());
+		out.writerIndex(length);
+		return new PacketByteBuf(out);
+	}
+
+	private PayloadCompression() {}
+
+}
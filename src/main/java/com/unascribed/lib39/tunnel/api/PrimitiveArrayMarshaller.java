@@ -0,0 +1,380 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.function.Function;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.unascribed.lib39.tunnel.api.exception.BadMessageException;
+
+import com.google.common.collect.Lists;
+
+import io.netty.buffer.ByteBuf;
+import it.unimi.dsi.fastutil.bytes.ByteArrayList;
+import it.unimi.dsi.fastutil.bytes.ByteList;
+import it.unimi.dsi.fastutil.doubles.DoubleArrayList;
+import it.unimi.dsi.fastutil.doubles.DoubleList;
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.floats.FloatList;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.shorts.ShortArrayList;
+import it.unimi.dsi.fastutil.shorts.ShortList;
+import net.minecraft.network.PacketByteBuf;
+import net.minecraft.util.math.BlockPos;
+
+/**
+ * Marshals a primitive array as a VarInt length followed by its elements, without boxing them.
+ * Fixed-width elements are copied in bulk straight into the backing array of the buffer when it
+ * has one. The wire format matches the equivalent "-list" marshaller, e.g. an int[] and an
+ * {@code @MarshalledAs("i32-list") List<Integer>} are interchangeable.
+ */
+abstract class PrimitiveArrayMarshaller<A> implements Marshaller<A> {
+
+	// the smallest an element can be on the wire, to reject lengths the payload can't hold
+	private final int minBits;
+
+	private PrimitiveArrayMarshaller(int minBits) {
+		this.minBits = minBits;
+	}
+
+	abstract int length(A a);
+	abstract void write(PacketByteBuf out, A a, int len);
+	abstract A read(PacketByteBuf in, int len);
+
+	@Override
+	public void marshal(PacketByteBuf out, A a) {
+		int len = length(a);
+		out.writeVarInt(len);
+		write(out, a, len);
+	}
+
+	@Override
+	public A unmarshal(PacketByteBuf in) {
+		return read(in, readLength(in));
+	}
+
+	int readLength(PacketByteBuf in) {
+		int len = in.readVarInt();
+		if (len < 0 || (long)len*minBits > in.readableBytes()*8L) {
+			throw new BadMessageException("Array claims a length of "+len+", but only "+in.readableBytes()+" bytes remain");
+		}
+		return len;
+	}
+
+	/**
+	 * Reserve the given number of bytes at the writer index and skip past them.
+	 *
+	 * @return a big-endian view of the reserved bytes sharing the buffer's memory, or null if the
+	 * 		buffer has no backing array and the caller must write element by element instead
+	 */
+	private static @Nullable ByteBuffer reserve(ByteBuf out, int bytes) {
+		out.ensureWritable(bytes);
+		if (!out.hasArray()) return null;
+		int idx = out.writerIndex();
+		out.writerIndex(idx+bytes);
+		return ByteBuffer.wrap(out.array(), out.arrayOffset()+idx, bytes).slice().order(ByteOrder.BIG_ENDIAN);
+	}
+
+	/**
+	 * Consume the given number of bytes from the reader index.
+	 *
+	 * @return a big-endian view of the consumed bytes
+	 */
+	private static ByteBuffer consume(ByteBuf in, int bytes) {
+		ByteBuffer bb = in.nioBuffer(in.readerIndex(), bytes).order(ByteOrder.BIG_ENDIAN);
+		in.skipBytes(bytes);
+		return bb;
+	}
+
+	/**
+	 * Adapt this marshaller to a fastutil list, reading straight out of the list's backing array
+	 * when it's an array list.
+	 */
+	<L> Marshaller<L> forList(Function<L, A> elements, Function<L, Integer> size, Function<A, L> wrap) {
+		return new Marshaller<L>() {
+			@Override
+			public void marshal(PacketByteBuf out, L l) {
+				int len = size.apply(l);
+				out.writeVarInt(len);
+				write(out, elements.apply(l), len);
+			}
+
+			@Override
+			public L unmarshal(PacketByteBuf in) {
+				return wrap.apply(read(in, readLength(in)));
+			}
+		};
+	}
+
+	static final PrimitiveArrayMarshaller<boolean[]> BOOLEANS = new PrimitiveArrayMarshaller<>(1) {
+		@Override
+		int length(boolean[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, boolean[] a, int len) {
+			int bits = 0;
+			for (int i = 0; i < len; i++) {
+				if (a[i]) bits |= 1 << (i & 7);
+				if ((i & 7) == 7) {
+					out.writeByte(bits);
+					bits = 0;
+				}
+			}
+			if ((len & 7) != 0) out.writeByte(bits);
+		}
+
+		@Override
+		boolean[] read(PacketByteBuf in, int len) {
+			boolean[] a = new boolean[len];
+			int bits = 0;
+			for (int i = 0; i < len; i++) {
+				if ((i & 7) == 0) bits = in.readUnsignedByte();
+				a[i] = (bits & (1 << (i & 7))) != 0;
+			}
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<byte[]> BYTES = new PrimitiveArrayMarshaller<>(8) {
+		@Override
+		int length(byte[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, byte[] a, int len) {
+			out.writeBytes(a, 0, len);
+		}
+
+		@Override
+		byte[] read(PacketByteBuf in, int len) {
+			byte[] a = new byte[len];
+			in.readBytes(a);
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<short[]> SHORTS = new PrimitiveArrayMarshaller<>(16) {
+		@Override
+		int length(short[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, short[] a, int len) {
+			ByteBuffer bb = reserve(out, len*2);
+			if (bb != null) {
+				bb.asShortBuffer().put(a, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) out.writeShort(a[i]);
+			}
+		}
+
+		@Override
+		short[] read(PacketByteBuf in, int len) {
+			short[] a = new short[len];
+			consume(in, len*2).asShortBuffer().get(a);
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<int[]> INTS = new PrimitiveArrayMarshaller<>(32) {
+		@Override
+		int length(int[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, int[] a, int len) {
+			ByteBuffer bb = reserve(out, len*4);
+			if (bb != null) {
+				bb.asIntBuffer().put(a, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) out.writeInt(a[i]);
+			}
+		}
+
+		@Override
+		int[] read(PacketByteBuf in, int len) {
+			int[] a = new int[len];
+			consume(in, len*4).asIntBuffer().get(a);
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<long[]> LONGS = new PrimitiveArrayMarshaller<>(64) {
+		@Override
+		int length(long[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, long[] a, int len) {
+			ByteBuffer bb = reserve(out, len*8);
+			if (bb != null) {
+				bb.asLongBuffer().put(a, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) out.writeLong(a[i]);
+			}
+		}
+
+		@Override
+		long[] read(PacketByteBuf in, int len) {
+			long[] a = new long[len];
+			consume(in, len*8).asLongBuffer().get(a);
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<float[]> FLOATS = new PrimitiveArrayMarshaller<>(32) {
+		@Override
+		int length(float[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, float[] a, int len) {
+			ByteBuffer bb = reserve(out, len*4);
+			if (bb != null) {
+				bb.asFloatBuffer().put(a, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) out.writeFloat(a[i]);
+			}
+		}
+
+		@Override
+		float[] read(PacketByteBuf in, int len) {
+			float[] a = new float[len];
+			consume(in, len*4).asFloatBuffer().get(a);
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<double[]> DOUBLES = new PrimitiveArrayMarshaller<>(64) {
+		@Override
+		int length(double[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, double[] a, int len) {
+			ByteBuffer bb = reserve(out, len*8);
+			if (bb != null) {
+				bb.asDoubleBuffer().put(a, 0, len);
+			} else {
+				for (int i = 0; i < len; i++) out.writeDouble(a[i]);
+			}
+		}
+
+		@Override
+		double[] read(PacketByteBuf in, int len) {
+			double[] a = new double[len];
+			consume(in, len*8).asDoubleBuffer().get(a);
+			return a;
+		}
+	};
+
+	static final PrimitiveArrayMarshaller<int[]> VARINTS = new PrimitiveArrayMarshaller<>(8) {
+		@Override
+		int length(int[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, int[] a, int len) {
+			for (int i = 0; i < len; i++) out.writeVarInt(a[i]);
+		}
+
+		@Override
+		int[] read(PacketByteBuf in, int len) {
+			int[] a = new int[len];
+			for (int i = 0; i < len; i++) a[i] = in.readVarInt();
+			return a;
+		}
+	};
+
+	/**
+	 * Each element is written as the ZigZag VarLong of its difference from the one before it.
+	 * Sorted arrays of packed BlockPos (or anything else that clusters) come out at a byte or two
+	 * per element; unsorted arrays still round-trip, just less compactly.
+	 */
+	static final PrimitiveArrayMarshaller<long[]> DELTA_LONGS = new PrimitiveArrayMarshaller<>(8) {
+		@Override
+		int length(long[] a) {
+			return a.length;
+		}
+
+		@Override
+		void write(PacketByteBuf out, long[] a, int len) {
+			long prev = 0;
+			for (int i = 0; i < len; i++) {
+				long delta = a[i]-prev;
+				out.writeVarLong((delta << 1) ^ (delta >> 63));
+				prev = a[i];
+			}
+		}
+
+		@Override
+		long[] read(PacketByteBuf in, int len) {
+			long[] a = new long[len];
+			long prev = 0;
+			for (int i = 0; i < len; i++) {
+				long zz = in.readVarLong();
+				prev += (zz >>> 1) ^ -(zz & 1);
+				a[i] = prev;
+			}
+			return a;
+		}
+	};
+
+	static final Marshaller<ByteList> BYTE_LIST = BYTES.forList(
+			l -> l instanceof ByteArrayList al ? al.elements() : l.toByteArray(), ByteList::size, ByteArrayList::wrap);
+	static final Marshaller<ShortList> SHORT_LIST = SHORTS.forList(
+			l -> l instanceof ShortArrayList al ? al.elements() : l.toShortArray(), ShortList::size, ShortArrayList::wrap);
+	static final Marshaller<IntList> INT_LIST = INTS.forList(
+			l -> l instanceof IntArrayList al ? al.elements() : l.toIntArray(), IntList::size, IntArrayList::wrap);
+	static final Marshaller<LongList> LONG_LIST = LONGS.forList(
+			l -> l instanceof LongArrayList al ? al.elements() : l.toLongArray(), LongList::size, LongArrayList::wrap);
+	static final Marshaller<FloatList> FLOAT_LIST = FLOATS.forList(
+			l -> l instanceof FloatArrayList al ? al.elements() : l.toFloatArray(), FloatList::size, FloatArrayList::wrap);
+	static final Marshaller<DoubleList> DOUBLE_LIST = DOUBLES.forList(
+			l -> l instanceof DoubleArrayList al ? al.elements() : l.toDoubleArray(), DoubleList::size, DoubleArrayList::wrap);
+
+	/**
+	 * Same wire format as {@code blockpos-list}, but packs every position into the buffer in one
+	 * pass rather than going through the BlockPos marshaller once per element.
+	 */
+	static final Marshaller<List<BlockPos>> BLOCKPOS_LIST = new Marshaller<>() {
+		@Override
+		public void marshal(PacketByteBuf out, List<BlockPos> li) {
+			int len = li == null ? 0 : li.size();
+			out.writeVarInt(len);
+			if (len == 0) return;
+			ByteBuffer bb = reserve(out, len*8);
+			if (bb != null) {
+				for (BlockPos pos : li) bb.putLong(pos.asLong());
+			} else {
+				for (BlockPos pos : li) out.writeLong(pos.asLong());
+			}
+		}
+
+		@Override
+		public List<BlockPos> unmarshal(PacketByteBuf in) {
+			int len = LONGS.readLength(in);
+			ByteBuffer bb = consume(in, len*8);
+			List<BlockPos> li = Lists.newArrayListWithCapacity(len);
+			for (int i = 0; i < len; i++) {
+				li.add(BlockPos.fromLong(bb.getLong()));
+			}
+			return li;
+		}
+	};
+
+}
@@ -0,0 +1,77 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import net.minecraft.network.PacketByteBuf;
+
+/**
+ * The original WireField-driven codec. Used when a codec can't be generated for a class.
+ */
+final class ReflectiveMessageCodec implements MessageCodec {
+
+	private final List<WireField<?>> fields;
+	private final int flagCount;
+	
+	ReflectiveMessageCodec(List<WireField<?>> fields) {
+		this.fields = fields;
+		int flags = 0;
+		for (WireField<?> wf : fields) {
+			if (MessageCodecs.isFlag(wf)) flags++;
+		}
+		this.flagCount = flags;
+	}
+	
+	@Override
+	public void encode(Message m, ByteBuf out) {
+		if (flagCount > 0) {
+			int bits = 0;
+			int i = 0;
+			for (WireField<?> wf : fields) {
+				if (!MessageCodecs.isFlag(wf)) continue;
+				boolean b = wf.getType() == Boolean.TYPE ? (Boolean)wf.get(m) : wf.get(m) != null;
+				if (b) bits |= 1 << (i & 7);
+				i++;
+				if ((i & 7) == 0 || i == flagCount) {
+					out.writeByte(bits);
+					bits = 0;
+				}
+			}
+		}
+		for (WireField<?> wf : fields) {
+			if (wf.getType() != Boolean.TYPE) {
+				wf.marshal(m, (PacketByteBuf)out);
+			}
+		}
+	}
+	
+	@Override
+	@SuppressWarnings("unchecked")
+	public void decode(Message m, ByteBuf in) {
+		boolean[] present = new boolean[fields.size()];
+		int bits = 0;
+		int i = 0;
+		for (int f = 0; f < fields.size(); f++) {
+			WireField<?> wf = fields.get(f);
+			if (MessageCodecs.isFlag(wf)) {
+				if ((i & 7) == 0) bits = in.readUnsignedByte();
+				boolean b = (bits & (1 << (i & 7))) != 0;
+				i++;
+				if (wf.getType() == Boolean.TYPE) {
+					((WireField<Boolean>)wf).set(m, b);
+				} else {
+					present[f] = b;
+				}
+			} else {
+				present[f] = true;
+			}
+		}
+		for (int f = 0; f < fields.size(); f++) {
+			WireField<?> wf = fields.get(f);
+			if (wf.getType() != Boolean.TYPE && present[f]) {
+				wf.unmarshal(m, (PacketByteBuf)in);
+			}
+		}
+	}
+
+}
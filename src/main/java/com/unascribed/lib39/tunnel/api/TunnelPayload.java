@@ -0,0 +1,54 @@
+package com.unascribed.lib39.tunnel.api;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketByteBuf;
+
+/**
+ * The payload of a packet built by Tunnel. Messages are encoded into pooled buffers, but those
+ * are copied once into an unpooled buffer for the packet and released straight away: vanilla
+ * never releases the payload of a custom payload packet, may hand the same packet to many
+ * connections, and in singleplayer passes the packet object itself to the client, so there's no
+ * point at which pooled memory could safely be given back. Vanilla copies the payload each time
+ * the packet is written; as the bytes are never modified after encoding, {@link #copy()} returns
+ * a view instead.
+ */
+final class TunnelPayload extends PacketByteBuf {
+
+	private TunnelPayload(ByteBuf buf) {
+		super(buf);
+	}
+
+	/**
+	 * @return a payload holding a copy of the given buffer's readable bytes; the buffer is
+	 * 		released
+	 */
+	static TunnelPayload copyOf(ByteBuf pooled) {
+		try {
+			return wrap(ByteBufUtil.getBytes(pooled));
+		} finally {
+			pooled.release();
+		}
+	}
+
+	/**
+	 * @return a payload reading from the given bytes, which must not be modified afterward
+	 */
+	static TunnelPayload wrap(byte[] bytes) {
+		return new TunnelPayload(Unpooled.wrappedBuffer(bytes));
+	}
+
+	/**
+	 * @return an empty payload to be written into, with room for at least the given bytes
+	 */
+	static TunnelPayload allocate(int capacity) {
+		return new TunnelPayload(Unpooled.buffer(capacity));
+	}
+
+	@Override
+	public ByteBuf copy() {
+		return duplicate();
+	}
+
+}
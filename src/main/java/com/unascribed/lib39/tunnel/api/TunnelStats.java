@@ -0,0 +1,108 @@
+package com.unascribed.lib39.tunnel.api;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.unascribed.lib39.core.Lib39Log;
+import com.google.common.collect.Lists;
+
+import net.fabricmc.loader.api.FabricLoader;
+
+/**
+ * Reports over the {@link MessageStats} of every NetworkContext.
+ * <p>
+ * Set the {@code lib39.tunnel.statsInterval} system property to a number of seconds to have the
+ * report written to {@code logs/lib39-tunnel-stats.txt} that often.
+ */
+public final class TunnelStats {
+
+	private static final int INTERVAL = Integer.getInteger("lib39.tunnel.statsInterval", 0);
+	private static ScheduledExecutorService dumper;
+
+	/**
+	 * @return a table of every registered Message class that has seen any traffic, busiest
+	 * 		first, one row per line
+	 */
+	public static List<String> report() {
+		record Row(String channel, MessageStats stats) {}
+		List<Row> rows = Lists.newArrayList();
+		for (NetworkContext ctx : NetworkContext.contexts) {
+			for (MessageStats ms : ctx.getStats().values()) {
+				if (ms.getSent() == 0 && ms.getReceived() == 0) continue;
+				rows.add(new Row(ctx.getChannel().toString(), ms));
+			}
+		}
+		rows.sort(Comparator.comparingLong((Row r) -> r.stats().getSentBytes()+r.stats().getReceivedBytes()).reversed());
+		List<String> out = Lists.newArrayList();
+		out.add(String.format(Locale.ROOT, "%-40s %9s %11s %8s %9s %11s %8s %8s %8s %6s %6s",
+				"message", "sent", "sent B", "enc us", "recv", "recv B", "dec us", "hnd us", "lat us", "queue", "peak"));
+		for (Row r : rows) {
+			MessageStats ms = r.stats();
+			out.add(String.format(Locale.ROOT, "%-40s %9d %11d %8.1f %9d %11d %8.1f %8.1f %8.1f %6d %6d",
+					r.channel()+"/"+ms.getMessageClass().getSimpleName(),
+					ms.getSent(), ms.getSentBytes(), avgMicros(ms.getEncodeNanos(), ms.getSent()),
+					ms.getReceived(), ms.getReceivedBytes(), avgMicros(ms.getDecodeNanos(), ms.getReceived()),
+					avgMicros(ms.getHandlerNanos(), ms.getHandled()), avgMicros(ms.getHandlerLatencyNanos(), ms.getHandled()),
+					ms.getQueued(), ms.getPeakQueued()));
+		}
+		return out;
+	}
+
+	public static void resetAll() {
+		for (NetworkContext ctx : NetworkContext.contexts) {
+			for (MessageStats ms : ctx.getStats().values()) {
+				ms.reset();
+			}
+		}
+	}
+
+	/**
+	 * Write the report to {@code logs/lib39-tunnel-stats.txt}, replacing whatever was there.
+	 *
+	 * @return the file written
+	 */
+	public static Path dump() throws IOException {
+		Path file = FabricLoader.getInstance().getGameDir().resolve("logs").resolve("lib39-tunnel-stats.txt");
+		Path tmp = file.resolveSibling(file.getFileName()+".tmp");
+		List<String> lines = Lists.newArrayList();
+		lines.add("# "+LocalDateTime.now());
+		lines.addAll(report());
+		Files.createDirectories(file.getParent());
+		Files.write(tmp, lines, StandardCharsets.UTF_8);
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return file;
+	}
+
+	static synchronized void startDumperIfConfigured() {
+		if (INTERVAL <= 0 || dumper != null) return;
+		dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "Lib39 Tunnel stats dumper");
+			t.setDaemon(true);
+			return t;
+		});
+		dumper.scheduleAtFixedRate(() -> {
+			try {
+				dump();
+			} catch (Throwable t) {
+				Lib39Log.warn("Failed to write Tunnel stats", t);
+			}
+		}, INTERVAL, INTERVAL, TimeUnit.SECONDS);
+	}
+
+	private static double avgMicros(long nanos, long count) {
+		return count == 0 ? 0 : nanos/1000D/count;
+	}
+
+	private TunnelStats() {}
+
+}
@@ -53,7 +53,8 @@ class WireField<T> {
 						} else if (ImmutableMarshallable.class.isAssignableFrom(paramClazz)) {
 							marshaller = new ListMarshaller(new ImmutableMarshallableMarshaller(paramClazz));
 						} else {
-							marshaller = DefaultMarshallers.getByType(type);
+							Marshaller<?> element = DefaultMarshallers.getByType(paramClazz);
+							marshaller = element == null ? null : (Marshaller) DefaultMarshallers.listOf(element);
 						}
 					} else {
 						marshaller = DefaultMarshallers.getByType(type);
@@ -102,10 +103,13 @@ class WireField<T> {
 		T value = get(owner);
 		if (value == null) {
 			if (isOptional()) return;
-			throw new BadMessageException("Wire fields cannot be null (in " + type + " " + f.getDeclaringClass().getName() + "." + f.getName() + ") - did you want to make it @Optional?");
+			throw nullField(describe());
 		}
 		marshaller.marshal(out, value);
 	}
+	static BadMessageException nullField(String desc) {
+		return new BadMessageException("Wire fields cannot be null (in " + desc + ") - did you want to make it @Optional?");
+	}
 	public void unmarshal(Object owner, PacketByteBuf in) {
 		set(owner, marshaller.unmarshal(in));
 	}
@@ -125,4 +129,18 @@ class WireField<T> {
 	public Marshaller<T> getMarshaller(){
 		return marshaller;
 	}
+	
+	
+	// used by MessageCodecs to generate direct accessors
+	MethodHandle getGetter() {
+		return getter;
+	}
+	
+	MethodHandle getSetter() {
+		return setter;
+	}
+	
+	String describe() {
+		return type + " " + f.getDeclaringClass().getName() + "." + f.getName();
+	}
 }
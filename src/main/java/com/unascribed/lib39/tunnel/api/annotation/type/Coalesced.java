@@ -0,0 +1,21 @@
+package com.unascribed.lib39.tunnel.api.annotation.type;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.unascribed.lib39.tunnel.api.Message;
+
+/**
+ * Specifies that only the most recent Message of this type needs to be delivered. When sent
+ * more than once to the same recipient within a tick, earlier copies with the same
+ * {@link Message#getStateKey() state key} are dropped.
+ * <p>
+ * <i>No effect unless the Message's NetworkContext has batching enabled.</i>
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Coalesced {}
@@ -0,0 +1,23 @@
+package com.unascribed.lib39.tunnel.api.annotation.type;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Specifies that a Message should be compressed when it encodes to at least the given number of
+ * bytes. Overrides the threshold set on its NetworkContext, if any.
+ * <p>
+ * Worthwhile for Messages that carry large NBT, lists of ItemStacks, or raw ByteBufs.
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Compressed {
+	/**
+	 * The encoded size in bytes at or above which the Message is compressed.
+	 */
+	int threshold() default 256;
+}
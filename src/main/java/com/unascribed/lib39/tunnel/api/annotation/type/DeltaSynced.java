@@ -0,0 +1,30 @@
+package com.unascribed.lib39.tunnel.api.annotation.type;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import com.unascribed.lib39.tunnel.api.Message;
+
+/**
+ * Specifies that a Message describes some state that is sent repeatedly, and that only the fields
+ * that changed since the last time it was sent to a player need to be sent again. Messages are
+ * compared by their {@link Message#getStateKey() state key}; the first one sent to a player for a
+ * given key is sent in full.
+ * <p>
+ * Only {@link Message#sendTo} sends deltas. Anything sent some other way is sent in full, and
+ * doesn't affect what later deltas are based on. Received Messages have every field filled in,
+ * so the handler doesn't need to know whether a delta was sent.
+ * <p>
+ * <i>Only valid for Messages received on the client, as the server keeps no baselines for what
+ * clients send it.</i>
+ * <p>
+ * <i>Cannot be combined with {@link Coalesced @Coalesced}, as dropping a delta would leave the
+ * receiving side out of step.</i>
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface DeltaSynced {}
@@ -0,0 +1,20 @@
+package com.unascribed.lib39.tunnel.mixin;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import com.unascribed.lib39.tunnel.TunnelStatsCommand;
+
+import net.minecraft.server.command.CommandManager;
+
+@Mixin(CommandManager.class)
+public class MixinCommandManager {
+	
+	@Inject(at=@At("RETURN"), method="<init>")
+	public void lib39Tunnel$registerCommands(CallbackInfo ci) {
+		TunnelStatsCommand.register(((CommandManager)(Object)this).getDispatcher());
+	}
+	
+}
@@ -0,0 +1,34 @@
+package com.unascribed.lib39.tunnel.mixin;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import com.unascribed.lib39.tunnel.api.NetworkContext;
+
+import net.fabricmc.api.EnvType;
+import net.fabricmc.api.Environment;
+import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.gui.screen.Screen;
+
+@Environment(EnvType.CLIENT)
+@Mixin(MinecraftClient.class)
+public class MixinMinecraftClient {
+	
+	@Inject(at=@At("HEAD"), method="tick()V")
+	public void lib39Tunnel$runHandlers(CallbackInfo ci) {
+		NetworkContext.runClientHandlers();
+	}
+	
+	@Inject(at=@At("TAIL"), method="tick()V")
+	public void lib39Tunnel$flushBatches(CallbackInfo ci) {
+		NetworkContext.flushClientBatches();
+	}
+	
+	@Inject(at=@At("HEAD"), method="disconnect(Lnet/minecraft/client/gui/screen/Screen;)V")
+	public void lib39Tunnel$clearDeltaState(Screen screen, CallbackInfo ci) {
+		NetworkContext.clearClientDeltaState();
+	}
+	
+}
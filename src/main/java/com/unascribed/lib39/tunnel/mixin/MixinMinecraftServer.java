@@ -0,0 +1,27 @@
+package com.unascribed.lib39.tunnel.mixin;
+
+import java.util.function.BooleanSupplier;
+
+import org.spongepowered.asm.mixin.Mixin;
+import org.spongepowered.asm.mixin.injection.At;
+import org.spongepowered.asm.mixin.injection.Inject;
+import org.spongepowered.asm.mixin.injection.callback.CallbackInfo;
+
+import com.unascribed.lib39.tunnel.api.NetworkContext;
+
+import net.minecraft.server.MinecraftServer;
+
+@Mixin(MinecraftServer.class)
+public class MixinMinecraftServer {
+	
+	@Inject(at=@At("HEAD"), method="tick(Ljava/util/function/BooleanSupplier;)V")
+	public void lib39Tunnel$runHandlers(BooleanSupplier shouldKeepTicking, CallbackInfo ci) {
+		NetworkContext.runServerHandlers();
+	}
+	
+	@Inject(at=@At("TAIL"), method="tick(Ljava/util/function/BooleanSupplier;)V")
+	public void lib39Tunnel$flushBatches(BooleanSupplier shouldKeepTicking, CallbackInfo ci) {
+		NetworkContext.flushServerBatches();
+	}
+	
+}
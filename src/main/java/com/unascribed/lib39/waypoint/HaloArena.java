@@ -0,0 +1,332 @@
+package com.unascribed.lib39.waypoint;
+
+import static org.lwjgl.opengl.GL32.*;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.joml.Matrix4f;
+import org.lwjgl.PointerBuffer;
+import org.lwjgl.opengl.GL;
+import org.lwjgl.opengl.GL44;
+import org.lwjgl.system.MemoryUtil;
+
+import com.mojang.blaze3d.systems.RenderSystem;
+import com.mojang.blaze3d.vertex.VertexBuffer;
+import com.unascribed.lib39.core.Lib39Log;
+
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntRBTreeMap;
+import it.unimi.dsi.fastutil.ints.Int2IntSortedMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import net.minecraft.client.render.ShaderProgram;
+
+/**
+ * One large vertex buffer that halo geometry is sub-allocated from, drawn with a single
+ * {@code glMultiDrawElementsBaseVertex} call per frame. When the driver supports
+ * ARB_buffer_storage the buffer is persistently mapped and written directly; otherwise slices are
+ * written with glBufferSubData.
+ * <p>
+ * Slices are never overwritten in place. Replacing a lamp's geometry allocates a new slice and
+ * retires the old one, which only becomes free again once the GPU has passed a fence placed at the
+ * end of the frame it was retired in.
+ */
+public class HaloArena implements AutoCloseable {
+
+	public static final class Slice {
+		public static final Slice EMPTY = new Slice(0, 0);
+
+		private final int offset;
+		private final int vertices;
+
+		private Slice(int offset, int vertices) {
+			this.offset = offset;
+			this.vertices = vertices;
+		}
+
+		public int getVertexCount() {
+			return vertices;
+		}
+
+		public boolean isEmpty() {
+			return vertices == 0;
+		}
+	}
+
+	private record Retired(long fence, int[] ranges) {}
+
+	private static final int VERTEX_SIZE = HaloMeshBuilder.VERTEX_SIZE;
+	private static final int MAP_FLAGS = GL44.GL_MAP_WRITE_BIT | GL44.GL_MAP_PERSISTENT_BIT | GL44.GL_MAP_COHERENT_BIT;
+
+	private final boolean persistent;
+
+	private int vao;
+	private int vbo;
+	private int ibo;
+	private int capacity;
+	private int indexQuads;
+	private ByteBuffer mapped;
+
+	// offset -> length, in vertices
+	private final Int2IntSortedMap free = new Int2IntRBTreeMap();
+	private final IntArrayList retiring = new IntArrayList();
+	private final Deque<Retired> retired = new ArrayDeque<>();
+	private int used;
+
+	private IntBuffer counts;
+	private IntBuffer baseVertices;
+	private PointerBuffer offsets;
+	private int queued;
+
+	public HaloArena(int initialVertices) {
+		RenderSystem.assertOnRenderThread();
+		var caps = GL.getCapabilities();
+		persistent = caps.OpenGL44 || caps.GL_ARB_buffer_storage;
+		vao = glGenVertexArrays();
+		ibo = glGenBuffers();
+		counts = MemoryUtil.memAllocInt(64);
+		baseVertices = MemoryUtil.memAllocInt(64);
+		offsets = MemoryUtil.memCallocPointer(64);
+		allocateStorage(Math.max(1024, initialVertices), 0);
+		Lib39Log.debug("Created halo arena with room for {} vertices ({})", capacity, persistent ? "persistent mapped" : "buffer sub data");
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public int getUsedVertices() {
+		return used;
+	}
+
+	/**
+	 * Copy the given vertices into a fresh slice of this arena, growing it if necessary.
+	 */
+	public Slice upload(ByteBuffer vertices, int vertexCount) {
+		if (vertexCount == 0) return Slice.EMPTY;
+		int offset = allocate(vertexCount);
+		if (offset == -1) {
+			allocateStorage(Math.max(capacity*2, capacity+vertexCount), capacity);
+			offset = allocate(vertexCount);
+		}
+		ByteBuffer src = MemoryUtil.memSlice(vertices, 0, vertexCount*VERTEX_SIZE);
+		if (mapped != null) {
+			MemoryUtil.memCopy(src, MemoryUtil.memSlice(mapped, offset*VERTEX_SIZE, vertexCount*VERTEX_SIZE));
+		} else {
+			glBindBuffer(GL_ARRAY_BUFFER, vbo);
+			glBufferSubData(GL_ARRAY_BUFFER, (long)offset*VERTEX_SIZE, src);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+		}
+		used += vertexCount;
+		ensureIndices(vertexCount/4);
+		return new Slice(offset, vertexCount);
+	}
+
+	/**
+	 * Retire a slice. Its space is reused once the GPU is done with the current frame.
+	 */
+	public void free(Slice slice) {
+		if (slice == null || slice.isEmpty()) return;
+		retiring.add(slice.offset);
+		retiring.add(slice.vertices);
+		used -= slice.vertices;
+	}
+
+	/**
+	 * Return the space of any retired slices the GPU has finished with to the free list.
+	 */
+	public void beginFrame() {
+		while (!retired.isEmpty()) {
+			Retired r = retired.peekFirst();
+			int res = glClientWaitSync(r.fence, 0, 0);
+			if (res != GL_ALREADY_SIGNALED && res != GL_CONDITION_SATISFIED) break;
+			retired.removeFirst();
+			glDeleteSync(r.fence);
+			for (int i = 0; i < r.ranges.length; i += 2) {
+				release(r.ranges[i], r.ranges[i+1]);
+			}
+		}
+		queued = 0;
+	}
+
+	public void queue(Slice slice) {
+		if (slice.isEmpty()) return;
+		if (queued == counts.capacity()) {
+			int cap = queued*2;
+			counts = MemoryUtil.memRealloc(counts, cap);
+			baseVertices = MemoryUtil.memRealloc(baseVertices, cap);
+			PointerBuffer newOffsets = MemoryUtil.memCallocPointer(cap);
+			MemoryUtil.memFree(offsets);
+			offsets = newOffsets;
+		}
+		counts.put(queued, (slice.vertices/4)*6);
+		baseVertices.put(queued, slice.offset);
+		queued++;
+	}
+
+	public boolean hasQueued() {
+		return queued > 0;
+	}
+
+	/**
+	 * Draw every queued slice in one call. The given shader is set up the same way VertexBuffer
+	 * would set it up.
+	 */
+	public void draw(Matrix4f modelView, Matrix4f projection, ShaderProgram shader) {
+		if (queued == 0) return;
+		for (int i = 0; i < 12; i++) {
+			shader.addSampler("Sampler"+i, RenderSystem.getShaderTexture(i));
+		}
+		if (shader.modelViewMat != null) shader.modelViewMat.set(modelView);
+		if (shader.projectionMat != null) shader.projectionMat.set(projection);
+		if (shader.colorModulator != null) shader.colorModulator.set(RenderSystem.getShaderColor());
+		if (shader.fogStart != null) shader.fogStart.set(RenderSystem.getShaderFogStart());
+		if (shader.fogEnd != null) shader.fogEnd.set(RenderSystem.getShaderFogEnd());
+		if (shader.fogColor != null) shader.fogColor.set(RenderSystem.getShaderFogColor());
+		if (shader.fogShape != null) shader.fogShape.set(RenderSystem.getShaderFogShape().getId());
+		RenderSystem.setupShaderLights(shader);
+		shader.bind();
+		glBindVertexArray(vao);
+		counts.limit(queued);
+		baseVertices.limit(queued);
+		offsets.limit(queued);
+		glMultiDrawElementsBaseVertex(GL_TRIANGLES, counts, GL_UNSIGNED_INT, offsets, baseVertices);
+		counts.clear();
+		baseVertices.clear();
+		offsets.clear();
+		shader.unbind();
+		VertexBuffer.unbind();
+	}
+
+	/**
+	 * Fence everything retired during this frame.
+	 */
+	public void endFrame() {
+		if (retiring.isEmpty()) return;
+		retired.addLast(new Retired(glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0), retiring.toIntArray()));
+		retiring.clear();
+	}
+
+	private int allocate(int vertices) {
+		for (Int2IntMap.Entry en : free.int2IntEntrySet()) {
+			int len = en.getIntValue();
+			if (len >= vertices) {
+				int off = en.getIntKey();
+				free.remove(off);
+				if (len > vertices) free.put(off+vertices, len-vertices);
+				return off;
+			}
+		}
+		return -1;
+	}
+
+	private void release(int offset, int length) {
+		Int2IntSortedMap after = free.tailMap(offset);
+		if (!after.isEmpty() && after.firstIntKey() == offset+length) {
+			length += free.remove(after.firstIntKey());
+		}
+		Int2IntSortedMap before = free.headMap(offset);
+		if (!before.isEmpty()) {
+			int prev = before.lastIntKey();
+			if (prev+free.get(prev) == offset) {
+				free.put(prev, free.get(prev)+length);
+				return;
+			}
+		}
+		free.put(offset, length);
+	}
+
+	private void allocateStorage(int newCapacity, int keep) {
+		int newVbo = glGenBuffers();
+		glBindBuffer(GL_ARRAY_BUFFER, newVbo);
+		long bytes = (long)newCapacity*VERTEX_SIZE;
+		if (persistent) {
+			GL44.glBufferStorage(GL_ARRAY_BUFFER, bytes, MAP_FLAGS);
+		} else {
+			glBufferData(GL_ARRAY_BUFFER, bytes, GL_DYNAMIC_DRAW);
+		}
+		if (keep > 0) {
+			glBindBuffer(GL_COPY_READ_BUFFER, vbo);
+			glCopyBufferSubData(GL_COPY_READ_BUFFER, GL_ARRAY_BUFFER, 0, 0, (long)keep*VERTEX_SIZE);
+			glBindBuffer(GL_COPY_READ_BUFFER, 0);
+		}
+		if (vbo != 0) {
+			if (mapped != null) {
+				glBindBuffer(GL_COPY_READ_BUFFER, vbo);
+				glUnmapBuffer(GL_COPY_READ_BUFFER);
+				glBindBuffer(GL_COPY_READ_BUFFER, 0);
+			}
+			glDeleteBuffers(vbo);
+			Lib39Log.debug("Grew halo arena from {} to {} vertices", capacity, newCapacity);
+		}
+		vbo = newVbo;
+		if (persistent) {
+			mapped = glMapBufferRange(GL_ARRAY_BUFFER, 0, bytes, MAP_FLAGS);
+		}
+		release(keep, newCapacity-keep);
+		capacity = newCapacity;
+
+		VertexBuffer.unbind();
+		glBindVertexArray(vao);
+		glBindBuffer(GL_ARRAY_BUFFER, vbo);
+		// POSITION_TEXTURE_COLOR_NORMAL; attribute indices match the order of the format's elements
+		glEnableVertexAttribArray(0);
+		glVertexAttribPointer(0, 3, GL_FLOAT, false, VERTEX_SIZE, 0);
+		glEnableVertexAttribArray(1);
+		glVertexAttribPointer(1, 2, GL_FLOAT, false, VERTEX_SIZE, 12);
+		glEnableVertexAttribArray(2);
+		glVertexAttribPointer(2, 4, GL_UNSIGNED_BYTE, true, VERTEX_SIZE, 20);
+		glEnableVertexAttribArray(3);
+		glVertexAttribPointer(3, 3, GL_BYTE, true, VERTEX_SIZE, 24);
+		glBindBuffer(GL_ELEMENT_ARRAY_BUFFER, ibo);
+		glBindVertexArray(0);
+		glBindBuffer(GL_ARRAY_BUFFER, 0);
+	}
+
+	private void ensureIndices(int quads) {
+		if (quads <= indexQuads) return;
+		int newQuads = Math.max(quads, Math.max(256, indexQuads*2));
+		IntBuffer indices = MemoryUtil.memAllocInt(newQuads*6);
+		try {
+			for (int i = 0; i < newQuads; i++) {
+				int v = i*4;
+				indices.put(v).put(v+1).put(v+2).put(v+2).put(v+3).put(v);
+			}
+			indices.flip();
+			VertexBuffer.unbind();
+			glBindVertexArray(vao);
+			glBufferData(GL_ELEMENT_ARRAY_BUFFER, indices, GL_STATIC_DRAW);
+			glBindVertexArray(0);
+		} finally {
+			MemoryUtil.memFree(indices);
+		}
+		indexQuads = newQuads;
+	}
+
+	@Override
+	public void close() {
+		RenderSystem.assertOnRenderThread();
+		for (Retired r : retired) {
+			glDeleteSync(r.fence);
+		}
+		retired.clear();
+		retiring.clear();
+		if (mapped != null) {
+			glBindBuffer(GL_ARRAY_BUFFER, vbo);
+			glUnmapBuffer(GL_ARRAY_BUFFER);
+			glBindBuffer(GL_ARRAY_BUFFER, 0);
+			mapped = null;
+		}
+		glDeleteBuffers(vbo);
+		glDeleteBuffers(ibo);
+		glDeleteVertexArrays(vao);
+		vbo = ibo = vao = 0;
+		MemoryUtil.memFree(counts);
+		MemoryUtil.memFree(baseVertices);
+		MemoryUtil.memFree(offsets);
+		free.clear();
+	}
+
+}
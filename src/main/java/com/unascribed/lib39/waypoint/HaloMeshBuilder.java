@@ -0,0 +1,170 @@
+package com.unascribed.lib39.waypoint;
+
+import java.nio.ByteBuffer;
+
+import org.lwjgl.system.MemoryUtil;
+
+import com.mojang.blaze3d.vertex.VertexConsumer;
+
+/**
+ * A minimal VertexConsumer that writes straight into an off-heap buffer laid out as
+ * POSITION_TEXTURE_COLOR_NORMAL, so the result can be copied into a {@link HaloArena} slice
+ * without going through a BufferBuilder.
+ */
+public class HaloMeshBuilder implements VertexConsumer, AutoCloseable {
+
+	public static final int VERTEX_SIZE = 28;
+
+	private static final int POSITION = 0;
+	private static final int UV = 12;
+	private static final int COLOR = 20;
+	private static final int NORMAL = 24;
+
+	private ByteBuffer buf;
+	private int vertexCount;
+
+	private boolean colorFixed;
+	private int fixedColor;
+
+	public HaloMeshBuilder(int initialVertices) {
+		buf = MemoryUtil.memAlloc(Math.max(4, initialVertices)*VERTEX_SIZE);
+	}
+
+	public void reset() {
+		vertexCount = 0;
+	}
+
+	public int getVertexCount() {
+		return vertexCount;
+	}
+
+	/**
+	 * @return a view of the written vertices; only valid until the next write or reset
+	 */
+	public ByteBuffer getVertices() {
+		return MemoryUtil.memSlice(buf, 0, vertexCount*VERTEX_SIZE);
+	}
+
+	/**
+	 * Append vertices previously captured with {@link #toIntArray()}, offsetting their positions.
+	 */
+	public void putTranslated(int[] data, int fromVertex, int toVertex, float dx, float dy, float dz) {
+		int count = toVertex-fromVertex;
+		if (count <= 0) return;
+		int need = (vertexCount+count)*VERTEX_SIZE;
+		if (need > buf.capacity()) {
+			buf = MemoryUtil.memRealloc(buf, Math.max(need, buf.capacity()*2));
+		}
+		int ints = VERTEX_SIZE/4;
+		for (int v = fromVertex; v < toVertex; v++) {
+			int b = vertexCount*VERTEX_SIZE;
+			int i = v*ints;
+			buf.putFloat(b+POSITION, Float.intBitsToFloat(data[i])+dx);
+			buf.putFloat(b+POSITION+4, Float.intBitsToFloat(data[i+1])+dy);
+			buf.putFloat(b+POSITION+8, Float.intBitsToFloat(data[i+2])+dz);
+			for (int j = 3; j < ints; j++) {
+				buf.putInt(b+(j*4), data[i+j]);
+			}
+			vertexCount++;
+		}
+	}
+
+	/**
+	 * @return a copy of the written vertices, {@code VERTEX_SIZE/4} ints per vertex
+	 */
+	public int[] toIntArray() {
+		int[] out = new int[vertexCount*(VERTEX_SIZE/4)];
+		getVertices().order(buf.order()).asIntBuffer().get(out);
+		return out;
+	}
+
+	private int base() {
+		int need = (vertexCount+1)*VERTEX_SIZE;
+		if (need > buf.capacity()) {
+			buf = MemoryUtil.memRealloc(buf, Math.max(need, buf.capacity()*2));
+		}
+		return vertexCount*VERTEX_SIZE;
+	}
+
+	@Override
+	public VertexConsumer vertex(double x, double y, double z) {
+		int b = base();
+		buf.putFloat(b+POSITION, (float)x);
+		buf.putFloat(b+POSITION+4, (float)y);
+		buf.putFloat(b+POSITION+8, (float)z);
+		if (colorFixed) putColor(b, fixedColor);
+		return this;
+	}
+
+	@Override
+	public VertexConsumer color(int red, int green, int blue, int alpha) {
+		if (colorFixed) return this;
+		putColor(base(), (red&0xFF) | ((green&0xFF) << 8) | ((blue&0xFF) << 16) | ((alpha&0xFF) << 24));
+		return this;
+	}
+
+	private void putColor(int b, int abgr) {
+		buf.put(b+COLOR, (byte)abgr);
+		buf.put(b+COLOR+1, (byte)(abgr >> 8));
+		buf.put(b+COLOR+2, (byte)(abgr >> 16));
+		buf.put(b+COLOR+3, (byte)(abgr >> 24));
+	}
+
+	@Override
+	public VertexConsumer uv(float u, float v) {
+		int b = base();
+		buf.putFloat(b+UV, u);
+		buf.putFloat(b+UV+4, v);
+		return this;
+	}
+
+	@Override
+	public VertexConsumer overlay(int u, int v) {
+		return this;
+	}
+
+	@Override
+	public VertexConsumer light(int u, int v) {
+		return this;
+	}
+
+	@Override
+	public VertexConsumer normal(float x, float y, float z) {
+		int b = base();
+		buf.put(b+NORMAL, packNormal(x));
+		buf.put(b+NORMAL+1, packNormal(y));
+		buf.put(b+NORMAL+2, packNormal(z));
+		buf.put(b+NORMAL+3, (byte)0);
+		return this;
+	}
+
+	private static byte packNormal(float f) {
+		return (byte)((int)(Math.max(-1, Math.min(1, f))*127) & 0xFF);
+	}
+
+	@Override
+	public void next() {
+		base();
+		vertexCount++;
+	}
+
+	@Override
+	public void fixColor(int red, int green, int blue, int alpha) {
+		colorFixed = true;
+		fixedColor = (red&0xFF) | ((green&0xFF) << 8) | ((blue&0xFF) << 16) | ((alpha&0xFF) << 24);
+	}
+
+	@Override
+	public void unfixColor() {
+		colorFixed = false;
+	}
+
+	@Override
+	public void close() {
+		if (buf != null) {
+			MemoryUtil.memFree(buf);
+			buf = null;
+		}
+	}
+
+}
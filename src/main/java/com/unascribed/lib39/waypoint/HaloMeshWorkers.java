@@ -0,0 +1,149 @@
+package com.unascribed.lib39.waypoint;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jetbrains.annotations.Nullable;
+import org.lwjgl.system.MemoryUtil;
+
+import com.unascribed.lib39.core.Lib39Log;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockState;
+import net.minecraft.block.Blocks;
+import net.minecraft.block.entity.BlockEntity;
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.fluid.FluidState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.Direction;
+import net.minecraft.world.BlockView;
+
+/**
+ * Builds halo meshes on a pool of worker threads, similar to vanilla's chunk builder. Everything a
+ * build needs from the world is captured on the render thread when the request is made; finished
+ * meshes are queued and uploaded by the render thread a bounded number at a time.
+ */
+public class HaloMeshWorkers {
+
+	public static final int MAX_UPLOADS_PER_FRAME = 128;
+
+	public record Request(BlockEntity blockEntity, int generation, BlockPos pos, BlockPos origin,
+			BlockState state, HaloQuadCache.Entry quads, BlockState[] neighbors, int bottomY, int height) {}
+
+	public record Result(BlockEntity blockEntity, int generation, ByteBuffer vertices, int vertexCount, List<Sprite> sprites) {
+		public void free() {
+			if (vertices != null) MemoryUtil.memFree(vertices);
+		}
+	}
+
+	private static final ExecutorService POOL; static {
+		AtomicInteger count = new AtomicInteger();
+		int threads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()/2));
+		POOL = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "Lib39 Waypoint halo builder #"+count.getAndIncrement());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+
+	private static final ThreadLocal<HaloMeshBuilder> builders = ThreadLocal.withInitial(() -> new HaloMeshBuilder(24));
+
+	private final Queue<Result> completed = new ConcurrentLinkedQueue<>();
+
+	public void submit(Request req) {
+		POOL.execute(() -> {
+			try {
+				completed.add(build(req));
+			} catch (Throwable t) {
+				Lib39Log.error("Failed to build halo at {}", req.pos(), t);
+			}
+		});
+	}
+
+	/**
+	 * @return the next finished mesh, or null if there are none
+	 */
+	public @Nullable Result poll() {
+		return completed.poll();
+	}
+
+	public void discardCompleted() {
+		Result r;
+		while ((r = completed.poll()) != null) {
+			r.free();
+		}
+	}
+
+	private static Result build(Request req) {
+		HaloMeshBuilder builder = builders.get();
+		builder.reset();
+		NeighborView view = new NeighborView(req);
+		int faces = 0;
+		for (Direction d : Direction.values()) {
+			if (Block.shouldDrawSide(req.state(), view, req.pos(), d, req.pos().offset(d))) {
+				faces |= 1 << d.getId();
+			}
+		}
+		req.quads().emit(builder, faces, req.pos().getX()-req.origin().getX(),
+				req.pos().getY()-req.origin().getY(), req.pos().getZ()-req.origin().getZ());
+		int count = builder.getVertexCount();
+		ByteBuffer copy = null;
+		if (count > 0) {
+			ByteBuffer src = builder.getVertices();
+			copy = MemoryUtil.memAlloc(src.remaining());
+			MemoryUtil.memCopy(src, copy);
+		}
+		return new Result(req.blockEntity(), req.generation(), copy, count, req.quads().getSprites());
+	}
+
+	/**
+	 * A BlockView over the neighbor states captured for a request, so face culling can run
+	 * without touching the live world.
+	 */
+	private static final class NeighborView implements BlockView {
+		private final Request req;
+
+		NeighborView(Request req) {
+			this.req = req;
+		}
+
+		@Override
+		public BlockState getBlockState(BlockPos pos) {
+			if (pos.equals(req.pos())) return req.state();
+			for (Direction d : Direction.values()) {
+				if (pos.getX() == req.pos().getX()+d.getOffsetX()
+						&& pos.getY() == req.pos().getY()+d.getOffsetY()
+						&& pos.getZ() == req.pos().getZ()+d.getOffsetZ()) {
+					return req.neighbors()[d.getId()];
+				}
+			}
+			return Blocks.AIR.getDefaultState();
+		}
+
+		@Override
+		public FluidState getFluidState(BlockPos pos) {
+			return getBlockState(pos).getFluidState();
+		}
+
+		@Override
+		public @Nullable BlockEntity getBlockEntity(BlockPos pos) {
+			return null;
+		}
+
+		@Override
+		public int getHeight() {
+			return req.height();
+		}
+
+		@Override
+		public int getBottomY() {
+			return req.bottomY();
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package com.unascribed.lib39.waypoint;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jetbrains.annotations.Nullable;
+
+import com.google.common.collect.Lists;
+
+import net.minecraft.block.BlockState;
+import net.minecraft.client.render.model.BakedModel;
+import net.minecraft.client.texture.Sprite;
+import net.minecraft.client.util.math.MatrixStack;
+import net.minecraft.util.math.Direction;
+import net.minecraft.util.math.random.Random;
+
+/**
+ * Memoizes the rotated, tinted halo quads for a given block state, color and facing, so building a
+ * lamp's mesh is a copy plus a translation. Entries are split by cull face so culling still works
+ * per-lamp. Only touched on the render thread; entries themselves are immutable and can be handed
+ * to the mesh workers.
+ */
+public class HaloQuadCache {
+
+	private static final int MAX_SIZE = 4096;
+
+	private record Key(BlockState state, int color, @Nullable Direction facing) {}
+
+	public static final class Entry {
+		private final int[] vertices;
+		// vertex index each segment starts at; segment 0 is unculled, segment n is Direction id n-1
+		private final int[] segments;
+		private final List<Sprite> sprites;
+
+		private Entry(int[] vertices, int[] segments, List<Sprite> sprites) {
+			this.vertices = vertices;
+			this.segments = segments;
+			this.sprites = sprites;
+		}
+
+		public List<Sprite> getSprites() {
+			return sprites;
+		}
+
+		/**
+		 * Write the quads for the unculled faces and the cull faces in the mask, offset by the
+		 * given amount.
+		 */
+		public void emit(HaloMeshBuilder out, int faces, float dx, float dy, float dz) {
+			out.putTranslated(vertices, segments[0], segments[1], dx, dy, dz);
+			for (Direction d : Direction.values()) {
+				if ((faces & (1 << d.getId())) != 0) {
+					out.putTranslated(vertices, segments[d.getId()+1], segments[d.getId()+2], dx, dy, dz);
+				}
+			}
+		}
+
+		public boolean isEmpty() {
+			return vertices.length == 0;
+		}
+	}
+
+	private final Map<Key, Entry> entries = new LinkedHashMap<>(64, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+			return size() > MAX_SIZE;
+		}
+	};
+
+	private HaloMeshBuilder scratch;
+
+	/**
+	 * @return the cached quads for the given parameters, or null if the state has no halo model
+	 */
+	public @Nullable Entry get(BlockState state, int color, @Nullable Direction facing) {
+		Key key = new Key(state, color, facing);
+		Entry e = entries.get(key);
+		if (e == null) {
+			BakedModel bm = HaloRenderer.getHaloModel(state);
+			if (bm == null) return null;
+			e = build(bm, state, color, facing);
+			entries.put(key, e);
+		}
+		return e;
+	}
+
+	public void clear() {
+		entries.clear();
+		if (scratch != null) {
+			scratch.close();
+			scratch = null;
+		}
+	}
+
+	private Entry build(BakedModel bm, BlockState state, int color, @Nullable Direction facing) {
+		if (scratch == null) scratch = new HaloMeshBuilder(24);
+		scratch.reset();
+		if (color == 0) color = 0x222222;
+		float r = ((color >> 16)&0xFF)/255f;
+		float g = ((color >> 8)&0xFF)/255f;
+		float b = (color&0xFF)/255f;
+		var dvc = HaloRenderer.haloConsumer(scratch);
+		MatrixStack matrices = new MatrixStack();
+		HaloRenderer.orient(matrices, facing);
+		// a fixed seed, as entries are shared between positions
+		Random random = Random.create(42);
+		List<Sprite> sprites = Lists.newArrayList();
+		int[] segments = new int[8];
+		segments[0] = 0;
+		HaloRenderer.emitFace(bm, matrices.peek(), dvc, state, null, r, g, b, random, s -> {
+			if (!sprites.contains(s)) sprites.add(s);
+		});
+		for (Direction d : Direction.values()) {
+			segments[d.getId()+1] = scratch.getVertexCount();
+			HaloRenderer.emitFace(bm, matrices.peek(), dvc, state, d, r, g, b, random, s -> {
+				if (!sprites.contains(s)) sprites.add(s);
+			});
+		}
+		segments[7] = scratch.getVertexCount();
+		int[] vertices = scratch.toIntArray();
+		return new Entry(vertices, segments, List.copyOf(sprites));
+	}
+
+}
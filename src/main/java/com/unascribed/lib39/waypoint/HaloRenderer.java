@@ -1,6 +1,5 @@
 package com.unascribed.lib39.waypoint;
 
-import java.util.Collection;
 import java.util.Iterator;
 import java.util.function.Consumer;
 import java.util.regex.Pattern;
@@ -10,11 +9,7 @@ import org.joml.AxisAngle4f;
 import org.joml.Quaternionf;
 
 import com.mojang.blaze3d.systems.RenderSystem;
-import com.mojang.blaze3d.vertex.BufferBuilder;
-import com.mojang.blaze3d.vertex.VertexBuffer;
 import com.mojang.blaze3d.vertex.VertexConsumer;
-import com.mojang.blaze3d.vertex.VertexFormat.DrawMode;
-import com.mojang.blaze3d.vertex.VertexFormats;
 import com.unascribed.lib39.core.Lib39Log;
 import com.unascribed.lib39.util.api.DelegatingVertexConsumer;
 import com.unascribed.lib39.waypoint.api.HaloBlockEntity;
@@ -24,8 +19,12 @@ import it.unimi.dsi.fastutil.longs.Long2ReferenceOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongArraySet;
 import it.unimi.dsi.fastutil.longs.LongIterator;
 import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.objects.Reference2IntMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
 import it.unimi.dsi.fastutil.objects.Reference2ReferenceMap;
 import it.unimi.dsi.fastutil.objects.Reference2ReferenceOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ReferenceSet;
 import net.fabricmc.fabric.api.client.rendering.v1.WorldRenderContext;
 import net.minecraft.block.Block;
 import net.minecraft.block.BlockState;
@@ -43,6 +42,7 @@ import net.minecraft.util.math.ChunkSectionPos;
 import net.minecraft.util.math.Direction;
 import net.minecraft.util.math.MathHelper;
 import net.minecraft.util.math.Vec3d;
+import net.minecraft.util.math.random.Random;
 import net.minecraft.util.profiler.Profiler;
 import net.minecraft.world.World;
 
@@ -52,16 +52,50 @@ public class HaloRenderer {
 	
 	private static final Long2ReferenceMap<BlockEntity> lampsByBlock = new Long2ReferenceOpenHashMap<>();
 	private static final Reference2ReferenceMap<BlockEntity, Object> lastState = new Reference2ReferenceOpenHashMap<>();
+	private static final ReferenceSet<BlockEntity> polledLamps = new ReferenceOpenHashSet<>();
+	private static final ReferenceSet<BlockEntity> dirtyLamps = new ReferenceOpenHashSet<>();
 	private static final Long2ReferenceMultimap<BlockEntity> lampsBySection = new Long2ReferenceMultimap<>();
-	private static final Long2ReferenceMap<VertexBuffer> buffers = new Long2ReferenceOpenHashMap<>();
+	private static final Long2ReferenceMap<HaloArena.Slice> slices = new Long2ReferenceOpenHashMap<>();
 	private static final Long2ReferenceMap<Box> boundingBoxes = new Long2ReferenceOpenHashMap<>();
 	private static final Long2ReferenceMultimap<Sprite> sprites = new Long2ReferenceMultimap<>();
 
+	private static final int REBASE_DISTANCE = 4096;
+
+	private static final HaloMeshWorkers workers = new HaloMeshWorkers();
+	private static final HaloQuadCache quadCache = new HaloQuadCache();
+	// the generation of the newest request per lamp, so stale worker results can be ignored
+	private static final Reference2IntMap<BlockEntity> generations = new Reference2IntOpenHashMap<>();
+	private static int nextGeneration;
+	static {
+		generations.defaultReturnValue(-1);
+	}
+
+	private static HaloArena arena;
+	private static BlockPos origin;
+
 	public static void clearCache() {
-		buffers.values().forEach(VertexBuffer::close);
-		buffers.clear();
+		if (arena != null) {
+			arena.close();
+			arena = null;
+		}
+		workers.discardCompleted();
+		generations.clear();
+		quadCache.clear();
+		slices.clear();
 		boundingBoxes.clear();
 		sprites.clear();
+		origin = null;
+		dirtyLamps.addAll(lampsByBlock.values());
+	}
+	
+	/**
+	 * Schedule the halo of the given block entity to be rebuilt on the next frame. Only needed for
+	 * blocks that {@link HaloBlockEntity#invalidatesHaloItself() invalidate their own halo}.
+	 */
+	public static void markDirty(BlockEntity be) {
+		if (lampsByBlock.get(be.getPos().asLong()) == be) {
+			dirtyLamps.add(be);
+		}
 	}
 
 	public static void render(World world, MatrixStack matrices, VertexConsumer vc, BlockState state,
@@ -72,20 +106,73 @@ public class HaloRenderer {
 	public static void render(World world, MatrixStack matrices, VertexConsumer vc, BlockState state,
 			int color, @Nullable Direction facing, @Nullable BlockPos pos,
 			Consumer<Sprite> spriteMemoizer) {
-		if (color == 0) color = 0x222222;
-		float r = ((color >> 16)&0xFF)/255f;
-		float g = ((color >> 8)&0xFF)/255f;
-		float b = (color&0xFF)/255f;
+		BakedModel bm = getHaloModel(state);
+		if (bm == null) return;
+		int faces = 0;
+		for (Direction dir : Direction.values()) {
+			if (pos == null || Block.shouldDrawSide(state, MinecraftClient.getInstance().world, pos, dir, pos.offset(dir))) {
+				faces |= 1 << dir.getId();
+			}
+		}
+		emit(bm, matrices, vc, state, color, facing, faces, world == null ? null : world.random, spriteMemoizer);
+	}
+	
+	/**
+	 * Resolve the halo model for the given state. Must be called on the render thread, as the
+	 * model override predicate relies on {@link Lib39Waypoint#retrievingHalo}.
+	 */
+	static @Nullable BakedModel getHaloModel(BlockState state) {
 		BakedModel base = MinecraftClient.getInstance().getBlockRenderManager().getModel(state);
-		BakedModel bm;
 		try {
 			Lib39Waypoint.retrievingHalo = true;
-			bm = base.getOverrides().apply(base, ItemStack.EMPTY, MinecraftClient.getInstance().world, MinecraftClient.getInstance().player, 39);
+			return base.getOverrides().apply(base, ItemStack.EMPTY, MinecraftClient.getInstance().world, MinecraftClient.getInstance().player, 39);
 		} finally {
 			Lib39Waypoint.retrievingHalo = false;
 		}
-		if (bm == null) return;
-		DelegatingVertexConsumer dvc = new DelegatingVertexConsumer(vc) {
+	}
+	
+	/**
+	 * Write the quads of an already-resolved halo model. Doesn't touch the world, so it is safe to
+	 * call from any thread.
+	 * 
+	 * @param faces bitmask of cull faces to include, indexed by {@link Direction#getId}
+	 */
+	static void emit(BakedModel bm, MatrixStack matrices, VertexConsumer vc, BlockState state,
+			int color, @Nullable Direction facing, int faces, @Nullable Random random,
+			Consumer<Sprite> spriteMemoizer) {
+		if (color == 0) color = 0x222222;
+		float r = ((color >> 16)&0xFF)/255f;
+		float g = ((color >> 8)&0xFF)/255f;
+		float b = (color&0xFF)/255f;
+		VertexConsumer dvc = haloConsumer(vc);
+
+		matrices.push();
+		orient(matrices, facing);
+
+		emitFace(bm, matrices.peek(), dvc, state, null, r, g, b, random, spriteMemoizer);
+		for (Direction dir : Direction.values()) {
+			if ((faces & (1 << dir.getId())) != 0) {
+				emitFace(bm, matrices.peek(), dvc, state, dir, r, g, b, random, spriteMemoizer);
+			}
+		}
+
+		matrices.pop();
+	}
+	
+	static void emitFace(BakedModel bm, MatrixStack.Entry entry, VertexConsumer dvc, BlockState state,
+			@Nullable Direction cullFace, float r, float g, float b, @Nullable Random random,
+			Consumer<Sprite> spriteMemoizer) {
+		for (BakedQuad bq : bm.getQuads(state, cullFace, random)) {
+			spriteMemoizer.accept(bq.getSprite());
+			dvc.bakedQuad(entry, bq, r, g, b, 0, 0);
+		}
+	}
+	
+	/**
+	 * Wrap the given consumer so that baked quads only write the attributes the halo format has.
+	 */
+	static VertexConsumer haloConsumer(VertexConsumer vc) {
+		return new DelegatingVertexConsumer(vc) {
 			@Override
 			public void vertex(
 					float x, float y, float z,
@@ -101,40 +188,27 @@ public class HaloRenderer {
 					next();
 				}
 		};
-
-		matrices.push();
-
-		if (facing != null) {
-			int x = 0;
-			int y = 0;
-			switch (facing) {
-				case DOWN: break;
-				case WEST: x = 90; y = 90; break;
-				case NORTH: x = 90; break;
-				case SOUTH: x = 90; y = 180; break;
-				case EAST: x = 90; y = 270; break;
-				case UP: x = 180; break;
-			}
-			matrices.translate(0.5, 0.5, 0.5);
-			matrices.multiply(new Quaternionf(new AxisAngle4f(y*MathHelper.RADIANS_PER_DEGREE, 0, 1, 0)));
-			matrices.multiply(new Quaternionf(new AxisAngle4f(x*MathHelper.RADIANS_PER_DEGREE, 1, 0, 0)));
-			matrices.translate(-0.5, -0.5, -0.5);
-		}
-
-		for (BakedQuad bq : bm.getQuads(state, null, world == null ? null : world.random)) {
-			spriteMemoizer.accept(bq.getSprite());
-			dvc.bakedQuad(matrices.peek(), bq, r, g, b, 0, 0);
-		}
-		for (Direction dir : Direction.values()) {
-			if (pos == null || Block.shouldDrawSide(state, MinecraftClient.getInstance().world, pos, dir, pos.offset(dir))) {
-				for (BakedQuad bq : bm.getQuads(state, dir, world == null ? null : world.random)) {
-					spriteMemoizer.accept(bq.getSprite());
-					dvc.bakedQuad(matrices.peek(), bq, r, g, b, 0, 0);
-				}
-			}
+	}
+	
+	/**
+	 * Rotate the given matrices so a model pointing up points towards {@code facing}.
+	 */
+	static void orient(MatrixStack matrices, @Nullable Direction facing) {
+		if (facing == null) return;
+		int x = 0;
+		int y = 0;
+		switch (facing) {
+			case DOWN: break;
+			case WEST: x = 90; y = 90; break;
+			case NORTH: x = 90; break;
+			case SOUTH: x = 90; y = 180; break;
+			case EAST: x = 90; y = 270; break;
+			case UP: x = 180; break;
 		}
-
-		matrices.pop();
+		matrices.translate(0.5, 0.5, 0.5);
+		matrices.multiply(new Quaternionf(new AxisAngle4f(y*MathHelper.RADIANS_PER_DEGREE, 0, 1, 0)));
+		matrices.multiply(new Quaternionf(new AxisAngle4f(x*MathHelper.RADIANS_PER_DEGREE, 1, 0, 0)));
+		matrices.translate(-0.5, -0.5, -0.5);
 	}
 	
 	private static Boolean driverIsBuggy;
@@ -156,107 +230,163 @@ public class HaloRenderer {
 			return;
 		}
 		wrc.profiler().swap("lib39-waypoint");
+		if (arena != null) arena.beginFrame();
 		if (!lampsBySection.isEmpty()) {
 			wrc.profiler().push("prepare");
-			LongSet needsRebuild = null;
-			for (BlockEntity be : lampsBySection.values()) {
-				if (!(be instanceof HaloBlockEntity)) continue;
+			Vec3d cam = wrc.camera().getPos();
+			if (origin == null || Math.abs(cam.x-origin.getX()) > REBASE_DISTANCE
+					|| Math.abs(cam.y-origin.getY()) > REBASE_DISTANCE || Math.abs(cam.z-origin.getZ()) > REBASE_DISTANCE) {
+				// vertices are stored relative to the origin, keep it near the camera for precision
+				freeAllSlices();
+				dirtyLamps.addAll(lampsByBlock.values());
+				origin = BlockPos.ofFloored(cam);
+			}
+			if (arena == null) {
+				arena = new HaloArena(24 * lampsByBlock.size());
+				arena.beginFrame();
+			}
+			// lamps that don't invalidate themselves still need their state objects polled
+			for (BlockEntity be : polledLamps) {
 				Object s = ((HaloBlockEntity)be).getStateObject();
-				long csp = ChunkSectionPos.toLong(be.getPos());
-				if (lastState.get(be) != s || !buffers.containsKey(csp)) {
+				if (lastState.get(be) != s) {
 					lastState.put(be, s);
-					if (needsRebuild == null) {
-						needsRebuild = new LongArraySet();
-					}
-					needsRebuild.add(csp);
+					dirtyLamps.add(be);
 				}
 			}
-			wrc.profiler().swap("rebuild");
-			MatrixStack scratch = new MatrixStack();
-			if (needsRebuild != null) {
-				LongIterator iter = needsRebuild.iterator();
-				while (iter.hasNext()) {
-					long csp = iter.nextLong();
-					Collection<BlockEntity> l = lampsBySection.get(csp);
-					sprites.removeAll(csp);
-					if (l.isEmpty()) {
-						if (buffers.containsKey(csp)) {
-							buffers.remove(csp).close();
-							boundingBoxes.remove(csp);
+			if (!dirtyLamps.isEmpty()) {
+				wrc.profiler().swap("rebuild");
+				LongSet emptiedSections = null;
+				for (BlockEntity be : dirtyLamps) {
+					if (be.isRemoved() || lampsByBlock.get(be.getPos().asLong()) != be) continue;
+					rebuild(be);
+					wrc.profiler().visit("lib39-waypoint:rebuilt_halo");
+					if (slices.get(be.getPos().asLong()) == HaloArena.Slice.EMPTY) {
+						if (emptiedSections == null) {
+							emptiedSections = new LongArraySet();
 						}
-						continue;
+						emptiedSections.add(ChunkSectionPos.toLong(be.getPos()));
 					}
-					Box bounds = null;
-					// POSITION_TEXTURE_COLOR_NORMAL is one of the few generic shaders with fog support
-					BufferBuilder vc = new BufferBuilder(24 * VertexFormats.POSITION_TEXTURE_COLOR_NORMAL.getVertexSize() * l.size());
-					vc.begin(DrawMode.QUADS, VertexFormats.POSITION_TEXTURE_COLOR_NORMAL);
-					for (BlockEntity be : l) {
-						if (!(be instanceof HaloBlockEntity) || !((HaloBlockEntity)be).shouldRenderHalo()) continue;
-						scratch.push();
-							scratch.translate(be.getPos().getX()-minX(csp), be.getPos().getY()-minY(csp), be.getPos().getZ()-minZ(csp));
-							int color = ((HaloBlockEntity)be).getGlowColor();
-							BlockState state = be.getCachedState();
-							Direction facing = ((HaloBlockEntity)be).getFacing();
-							render(mc.world, scratch, vc, state, color, facing, be.getPos(), s -> sprites.put(csp, s));
-							Box myBox = new Box(be.getPos()).expand(0.5);
-							if (bounds == null) {
-								bounds = myBox;
-							} else {
-								bounds = bounds.union(myBox);
-							}
-						scratch.pop();
+				}
+				dirtyLamps.clear();
+				if (emptiedSections != null) {
+					LongIterator iter = emptiedSections.iterator();
+					while (iter.hasNext()) {
+						updateBounds(iter.nextLong());
 					}
-					VertexBuffer vb = buffers.computeIfAbsent(csp, blah -> new VertexBuffer(VertexBuffer.Usage.STATIC));
-					vb.bind();
-					vb.upload(vc.end());
-					buffers.put(csp, vb);
-					boundingBoxes.put(csp, bounds);
 				}
 			}
+			wrc.profiler().swap("upload");
+			uploadCompleted(wrc.profiler());
 			wrc.profiler().swap("render");
-			sprites.values().forEach(SodiumAccess.markSpriteActive);
-			MatrixStack matrices = wrc.matrixStack();
-			matrices.push();
-			Vec3d cam = wrc.camera().getPos();
-			matrices.translate(-cam.x, -cam.y, -cam.z);
-			boolean started = false;
-			LongIterator iter = buffers.keySet().iterator();
+			LongIterator iter = boundingBoxes.keySet().iterator();
 			while (iter.hasNext()) {
-				long pos = iter.nextLong();
-				Box box = boundingBoxes.get(pos);
-				if (box != null && wrc.frustum().isVisible(box) && wrc.worldRenderer().isChunkBuilt(ChunkSectionPos.from(pos).getMinPos())) {
-					matrices.push();
-						matrices.translate(minX(pos), minY(pos), minZ(pos));
-						VertexBuffer buf = buffers.get(pos);
-						buf.bind();
-						if (!started) {
-							WaypointRenderLayers.getHalo().startDrawing();
-							started = true;
-						}
-						buf.draw(matrices.peek().getModel(), RenderSystem.getProjectionMatrix(), GameRenderer.getPositionTexColorNormalShader());
-						VertexBuffer.unbind();
-					matrices.pop();
+				long csp = iter.nextLong();
+				Box box = boundingBoxes.get(csp);
+				if (box != null && wrc.frustum().isVisible(box) && wrc.worldRenderer().isChunkBuilt(ChunkSectionPos.from(csp).getMinPos())) {
+					for (BlockEntity be : lampsBySection.get(csp)) {
+						long bp = be.getPos().asLong();
+						HaloArena.Slice slice = slices.get(bp);
+						if (slice == null || slice.isEmpty()) continue;
+						arena.queue(slice);
+						sprites.get(bp).forEach(SodiumAccess.markSpriteActive);
+					}
 				}
 			}
-			if (started) WaypointRenderLayers.getHalo().endDrawing();
-			matrices.pop();
+			if (arena.hasQueued()) {
+				MatrixStack matrices = wrc.matrixStack();
+				matrices.push();
+					matrices.translate(origin.getX()-cam.x, origin.getY()-cam.y, origin.getZ()-cam.z);
+					WaypointRenderLayers.getHalo().startDrawing();
+					arena.draw(matrices.peek().getModel(), RenderSystem.getProjectionMatrix(), GameRenderer.getPositionTexColorNormalShader());
+					WaypointRenderLayers.getHalo().endDrawing();
+				matrices.pop();
+			}
 			wrc.profiler().pop();
 		}
+		if (arena != null) arena.endFrame();
 		wrc.profiler().swap("particles");
 	}
-	
-	private static int minX(long csp) {
-		return ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackX(csp));
+
+	private static void rebuild(BlockEntity be) {
+		long bp = be.getPos().asLong();
+		int gen = nextGeneration++;
+		generations.put(be, gen);
+		HaloBlockEntity hbe = (HaloBlockEntity)be;
+		HaloQuadCache.Entry quads = hbe.shouldRenderHalo() ? quadCache.get(be.getCachedState(), hbe.getGlowColor(), hbe.getFacing()) : null;
+		if (quads == null || quads.isEmpty()) {
+			arena.free(slices.put(bp, HaloArena.Slice.EMPTY));
+			sprites.removeAll(bp);
+			return;
+		}
+		BlockState[] neighbors = new BlockState[6];
+		for (Direction d : Direction.values()) {
+			neighbors[d.getId()] = mc.world.getBlockState(be.getPos().offset(d));
+		}
+		workers.submit(new HaloMeshWorkers.Request(be, gen, be.getPos(), origin, be.getCachedState(), quads,
+				neighbors, mc.world.getBottomY(), mc.world.getHeight()));
 	}
-	
-	private static int minY(long csp) {
-		return ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackY(csp));
+
+	/**
+	 * Upload meshes finished by the workers, up to {@link HaloMeshWorkers#MAX_UPLOADS_PER_FRAME}.
+	 * Results that were superseded or whose lamp is gone are thrown away.
+	 */
+	private static void uploadCompleted(Profiler profiler) {
+		LongSet changedSections = null;
+		for (int i = 0; i < HaloMeshWorkers.MAX_UPLOADS_PER_FRAME; i++) {
+			HaloMeshWorkers.Result res = workers.poll();
+			if (res == null) break;
+			try {
+				BlockEntity be = res.blockEntity();
+				long bp = be.getPos().asLong();
+				if (generations.getInt(be) != res.generation() || lampsByBlock.get(bp) != be) continue;
+				generations.removeInt(be);
+				arena.free(slices.put(bp, arena.upload(res.vertices(), res.vertexCount())));
+				sprites.removeAll(bp);
+				sprites.putAll(bp, res.sprites());
+				profiler.visit("lib39-waypoint:uploaded_halo");
+				if (changedSections == null) {
+					changedSections = new LongArraySet();
+				}
+				changedSections.add(ChunkSectionPos.toLong(be.getPos()));
+			} finally {
+				res.free();
+			}
+		}
+		if (changedSections != null) {
+			LongIterator iter = changedSections.iterator();
+			while (iter.hasNext()) {
+				updateBounds(iter.nextLong());
+				profiler.visit("lib39-waypoint:dirty_section");
+			}
+		}
 	}
-	
-	private static int minZ(long csp) {
-		return ChunkSectionPos.getBlockCoord(ChunkSectionPos.unpackZ(csp));
+
+	private static void updateBounds(long csp) {
+		Box bounds = null;
+		for (BlockEntity be : lampsBySection.get(csp)) {
+			HaloArena.Slice slice = slices.get(be.getPos().asLong());
+			if (slice == null || slice.isEmpty()) continue;
+			Box myBox = new Box(be.getPos()).expand(0.5);
+			bounds = bounds == null ? myBox : bounds.union(myBox);
+		}
+		if (bounds == null) {
+			boundingBoxes.remove(csp);
+		} else {
+			boundingBoxes.put(csp, bounds);
+		}
 	}
 
+	private static void freeAllSlices() {
+		if (arena != null) {
+			for (HaloArena.Slice slice : slices.values()) {
+				arena.free(slice);
+			}
+		}
+		slices.clear();
+		boundingBoxes.clear();
+		sprites.clear();
+	}
+	
 	public static <T extends BlockEntity & HaloBlockEntity> void notifyCreated(T be) {
 		long cs = ChunkSectionPos.toLong(be.getPos());
 		if (!lampsBySection.containsEntry(cs, be)) {
@@ -264,9 +394,17 @@ public class HaloRenderer {
 			if (lampsByBlock.containsKey(bp)) {
 				BlockEntity other = lampsByBlock.remove(bp);
 				lampsBySection.remove(cs, other);
+				lastState.remove(other);
+				generations.removeInt(other);
+				polledLamps.remove(other);
+				dirtyLamps.remove(other);
 			}
 			lampsByBlock.put(bp, be);
 			lampsBySection.put(cs, be);
+			dirtyLamps.add(be);
+			if (!be.invalidatesHaloItself()) {
+				polledLamps.add(be);
+			}
 		}
 	}
 	
@@ -277,24 +415,41 @@ public class HaloRenderer {
 		if (mc.world != null) {
 			Profiler p = mc.getProfiler();
 			p.push("validate");
+			LongSet removedSections = null;
 			Iterator<BlockEntity> iter = lampsBySection.values().iterator();
 			while (iter.hasNext()) {
 				BlockEntity be = iter.next();
 				if (be.isRemoved() || be.getWorld() != mc.world) {
-					long cs = ChunkSectionPos.toLong(be.getPos());
-					if (buffers.containsKey(cs)) {
-						buffers.remove(cs).close();
+					long bp = be.getPos().asLong();
+					if (lampsByBlock.remove(bp, be)) {
+						if (arena != null) arena.free(slices.remove(bp));
+						sprites.removeAll(bp);
+						if (removedSections == null) {
+							removedSections = new LongArraySet();
+						}
+						removedSections.add(ChunkSectionPos.toLong(be.getPos()));
 					}
-					lampsByBlock.remove(be.getPos().asLong(), be);
+					lastState.remove(be);
+					generations.removeInt(be);
+					polledLamps.remove(be);
+					dirtyLamps.remove(be);
 					iter.remove();
 				}
 			}
+			if (removedSections != null) {
+				LongIterator li = removedSections.iterator();
+				while (li.hasNext()) {
+					updateBounds(li.nextLong());
+				}
+			}
 			p.pop();
 		} else {
 			lampsByBlock.clear();
 			lampsBySection.clear();
 			lastState.clear();
+			polledLamps.clear();
 			clearCache();
+			dirtyLamps.clear();
 		}
 	}
 
@@ -1,5 +1,6 @@
 package com.unascribed.lib39.waypoint;
 
+import com.unascribed.lib39.core.api.StartupProfiler;
 import com.unascribed.lib39.waypoint.compat.WaypointSodiumCompat;
 
 import net.fabricmc.api.ClientModInitializer;
@@ -39,7 +40,9 @@ public class Lib39Waypoint implements ClientModInitializer {
 		});
 		
 		if (FabricLoader.getInstance().isModLoaded("sodium")) {
-			WaypointSodiumCompat.init();
+			try (var s = StartupProfiler.begin("initializer", "lib39-waypoint")) {
+				WaypointSodiumCompat.init();
+			}
 		}
 	}
 
@@ -11,6 +11,17 @@ import net.minecraft.world.World;
 
 public abstract class AbstractHaloBlockEntity extends BlockEntity implements HaloBlockEntity {
 
+	private static final ClassValue<Boolean> USES_CACHED_STATE = new ClassValue<>() {
+		@Override
+		protected Boolean computeValue(Class<?> type) {
+			try {
+				return type.getMethod("getStateObject").getDeclaringClass() == AbstractHaloBlockEntity.class;
+			} catch (NoSuchMethodException e) {
+				return false;
+			}
+		}
+	};
+
 	private boolean clientCreated = false;
 
 	public AbstractHaloBlockEntity(BlockEntityType<?> type, BlockPos pos, BlockState state) {
@@ -30,6 +41,37 @@ public abstract class AbstractHaloBlockEntity extends BlockEntity implements Hal
 		return getCachedState();
 	}
 	
+	/**
+	 * If you override {@link #getStateObject()}, you should also override this to return true and
+	 * call {@link #markHaloDirty()} whenever your state object changes. Otherwise your state object
+	 * will be polled every frame.
+	 */
+	@Override
+	public boolean invalidatesHaloItself() {
+		return USES_CACHED_STATE.get(getClass());
+	}
+	
+	/**
+	 * Tell the renderer that this block's halo needs to be rebuilt. Does nothing on the server.
+	 */
+	public void markHaloDirty() {
+		if (world != null && world.isClient) {
+			clientMarkHaloDirty();
+		}
+	}
+	
+	@Environment(EnvType.CLIENT)
+	private void clientMarkHaloDirty() {
+		HaloRenderer.markDirty(this);
+	}
+	
+	@Override
+	@SuppressWarnings("deprecation")
+	public void setCachedState(BlockState state) {
+		super.setCachedState(state);
+		markHaloDirty();
+	}
+	
 	public static void tick(World world, BlockPos bp, BlockState state, BlockEntity be) {
 		if (world.isClient && be instanceof AbstractHaloBlockEntity yt) {
 			yt.clientTick();
@@ -42,5 +42,14 @@ public interface HaloBlockEntity {
 	 * @return an arbitrary state object for determining rebakes
 	 */
 	Object getStateObject();
+	/**
+	 * Return {@code true} if this block tells the renderer when its halo changes by calling
+	 * {@link AbstractHaloBlockEntity#markHaloDirty()}, instead of having {@link #getStateObject()}
+	 * polled every frame. {@link AbstractHaloBlockEntity} does this automatically when its block
+	 * state changes.
+	 * 
+	 * @return {@code true} if this block invalidates its own halo
+	 */
+	default boolean invalidatesHaloItself() { return false; }
 	
 }